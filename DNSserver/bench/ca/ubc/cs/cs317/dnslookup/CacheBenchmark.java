@@ -0,0 +1,146 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures lookups and insertions in DNSCache as the number of cached questions grows, so that costs that depend on
+ * the size of the cache (hashing, timer wheel, eviction policy) show up. Questions are visited in a fixed pseudo-random
+ * order, so consecutive operations do not hit the same shard or the same cache lines. Run with "make bench" to include
+ * the allocation profile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class CacheBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int entries;
+
+    private DNSCache cache;
+    private DNSQuestion[] questions;
+    private DNSQuestion[] missing;
+    private ResourceRecord[] records;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        cache = new DNSCache();
+        questions = new DNSQuestion[entries];
+        missing = new DNSQuestion[entries];
+        records = new ResourceRecord[entries];
+        for (int i = 0; i < entries; i++) {
+            questions[i] = new DNSQuestion("host" + i + ".bench.test", RecordType.A, RecordClass.IN);
+            missing[i] = new DNSQuestion("host" + i + ".bench.test", RecordType.AAAA, RecordClass.IN);
+            records[i] = new ResourceRecord(questions[i], 86400,
+                    InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i}));
+            cache.addResult(records[i]);
+        }
+    }
+
+    /**
+     * The position of a benchmark thread in the sequence of questions.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        private int next(int entries) {
+            // Stepping by a large odd constant visits the questions in a scattered order
+            next = (next + 0x9e3779b1) & Integer.MAX_VALUE;
+            return next % entries;
+        }
+    }
+
+    @Benchmark
+    public List<ResourceRecord> getCachedResultsHit(Cursor cursor) {
+        return cache.getCachedResults(questions[cursor.next(entries)], true);
+    }
+
+    @Benchmark
+    public List<ResourceRecord> getCachedResultsMiss(Cursor cursor) {
+        return cache.getCachedResults(missing[cursor.next(entries)], true);
+    }
+
+    /**
+     * Adds a record that is already cached, as when a question is resolved again, which only updates its expiration
+     * time.
+     */
+    @Benchmark
+    public void addResultExisting(Cursor cursor) {
+        cache.addResult(records[cursor.next(entries)]);
+    }
+
+    /**
+     * Adds a record for a question that is not cached to a full cache, which evicts another question. Questions for
+     * A and AAAA records of the same names are added in turn, so the added question has usually been evicted since it
+     * was last added.
+     */
+    @Benchmark
+    public void addResultEvicting(FullCache full, Cursor cursor) {
+        int i = cursor.next(2 * entries);
+        full.cache.addResult(i < entries ? records[i] : full.records[i - entries]);
+    }
+
+    /**
+     * A mix of 90% lookups and 10% insertions of records that are already cached, from a single thread. Compared with
+     * mixedAllThreads, shows how the throughput of the cache scales with the number of threads.
+     */
+    @Benchmark
+    @Threads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object mixed(Cursor cursor) {
+        return mix(cursor);
+    }
+
+    /**
+     * The mix of mixed, from as many threads as there are processors.
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object mixedAllThreads(Cursor cursor) {
+        return mix(cursor);
+    }
+
+    private Object mix(Cursor cursor) {
+        int i = cursor.next(entries);
+        if (i % 10 != 0) return cache.getCachedResults(questions[i], true);
+        cache.addResult(records[i]);
+        return null;
+    }
+
+    /**
+     * A cache bounded to the number of questions of the benchmark, filled with the A records of all names.
+     */
+    @State(Scope.Benchmark)
+    public static class FullCache {
+        private DNSCache cache;
+        private ResourceRecord[] records;
+
+        @Setup
+        public void setUp(CacheBenchmark benchmark) throws UnknownHostException {
+            int entries = benchmark.entries;
+            // A single shard, so the bound is exact regardless of how questions are spread
+            cache = new DNSCache(1, entries, Long.MAX_VALUE);
+            records = new ResourceRecord[entries];
+            byte[] address = new byte[16];
+            address[0] = (byte) 0xfd;
+            for (int i = 0; i < entries; i++) {
+                cache.addResult(benchmark.records[i]);
+                address[13] = (byte) (i >> 16);
+                address[14] = (byte) (i >> 8);
+                address[15] = (byte) i;
+                records[i] = new ResourceRecord(benchmark.missing[i], 86400, InetAddress.getByAddress(address));
+            }
+        }
+    }
+}
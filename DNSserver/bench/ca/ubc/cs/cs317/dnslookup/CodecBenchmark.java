@@ -0,0 +1,186 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of encoding queries and decoding responses, with the pooled codec used by the query engine and
+ * with heap messages copied through getUsed(). Also covers the encoding of a response with compressed names, the
+ * decoding of a name that follows a long chain of compression pointers, and the decoding of a record of each type.
+ * Referrals are decoded both sequentially and through the record index used by the resolver.
+ * Run with "make bench" to include the allocation profile (gc.alloc.rate.norm is the number of bytes allocated per
+ * operation).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    /**
+     * Number of compression pointers followed to decode the deep name.
+     */
+    private static final int POINTER_DEPTH = 16;
+
+    private final DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+    private final DNSQuestion zone = new DNSQuestion("cs.ubc.ca", RecordType.NS, RecordClass.IN);
+    private ResourceRecord[] nameservers;
+    private ResourceRecord[] glue;
+    private DatagramChannel channel;
+    private InetSocketAddress sink;
+    private ByteBuffer referral;
+    private ByteBuffer deepName;
+    private int id;
+
+    @Setup
+    public void setUp() throws IOException {
+        channel = DatagramChannel.open();
+        // Nothing listens on the discard port, datagrams are dropped by the loopback interface
+        sink = new InetSocketAddress(InetAddress.getLoopbackAddress(), 9);
+
+        nameservers = new ResourceRecord[4];
+        glue = new ResourceRecord[4];
+        for (int i = 1; i <= 4; i++) {
+            nameservers[i - 1] = new ResourceRecord(zone, 86400, "ns" + i + ".cs.ubc.ca");
+            glue[i - 1] = new ResourceRecord(new DNSQuestion("ns" + i + ".cs.ubc.ca", RecordType.A, RecordClass.IN),
+                    86400, InetAddress.getByName("142.103.6." + i));
+        }
+        referral = direct(encodeReferral());
+
+        // The name at offset 12 is made of single labels, each followed by a pointer to the next one
+        ByteBuffer packet = ByteBuffer.allocate(12 + 4 * POINTER_DEPTH + 16);
+        packet.position(12);
+        for (int i = 0; i < POINTER_DEPTH; i++) {
+            int next = packet.position() + 4;
+            packet.put((byte) 1).put((byte) ('a' + i)).putShort((short) (0xc000 | next));
+        }
+        packet.put((byte) 7).put("example".getBytes(StandardCharsets.US_ASCII)).put((byte) 3)
+                .put("com".getBytes(StandardCharsets.US_ASCII)).put((byte) 0);
+        deepName = direct(Arrays.copyOf(packet.array(), packet.position()));
+    }
+
+    private static ByteBuffer direct(byte[] content) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+        buffer.put(content).flip();
+        return buffer;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+    }
+
+    @Benchmark
+    public int encodeAndSendPooled() throws IOException {
+        DNSMessage query = DNSMessage.allocate(++id & 0xffff);
+        query.addQuestion(question);
+        int sent = query.send(channel, sink);
+        query.release();
+        return sent;
+    }
+
+    @Benchmark
+    public int encodeAndSendHeap() throws IOException {
+        DNSMessage query = new DNSMessage((short) ++id);
+        query.addQuestion(question);
+        return channel.send(ByteBuffer.wrap(query.getUsed()), sink);
+    }
+
+    @Benchmark
+    public byte[] encodeReferral() {
+        DNSMessage response = new DNSMessage((short) ++id);
+        response.setQR(true);
+        response.addQuestion(question);
+        for (ResourceRecord record : nameservers)
+            response.addResourceRecord(record, "nameserver");
+        for (ResourceRecord record : glue)
+            response.addResourceRecord(record, "additional");
+        return response.getUsed();
+    }
+
+    @Benchmark
+    public String decodeDeepName() {
+        return DNSMessage.wrap(deepName.duplicate(), false).getName();
+    }
+
+    @Benchmark
+    public ResourceRecord decodeRecord(RecordState state) {
+        DNSMessage response = DNSMessage.wrap(state.packet.duplicate(), false);
+        response.getQuestion();
+        return response.getRR();
+    }
+
+    @Benchmark
+    public void decodeReferral(Blackhole blackhole) {
+        DNSMessage response = DNSMessage.wrap(referral, false);
+        blackhole.consume(response.getQuestion());
+        int records = response.getANCount() + response.getNSCount() + response.getARCount();
+        for (int i = 0; i < records; i++)
+            blackhole.consume(response.getRR());
+    }
+
+    @Benchmark
+    public void decodeReferralIndexed(Blackhole blackhole) {
+        // The access pattern of processResponse: every record of the answer and nameserver sections, and only the
+        // addresses of the additional section
+        DNSMessage response = DNSMessage.wrap(referral, false);
+        blackhole.consume(response.getQuestion());
+        int additional = response.getANCount() + response.getNSCount();
+        for (int i = 0; i < additional; i++)
+            blackhole.consume(response.getRR(i));
+        for (int i = additional; i < response.getRecordCount(); i++)
+            if (response.getRecordTypeCode(i) == RecordType.A.getCode())
+                blackhole.consume(response.getRR(i));
+    }
+
+    /**
+     * A response with a single answer of a specific type.
+     */
+    @State(Scope.Thread)
+    public static class RecordState {
+
+        @Param({"A", "AAAA", "NS", "CNAME", "MX", "SOA", "OTHER"})
+        public RecordType type;
+
+        private ByteBuffer packet;
+
+        @Setup
+        public void setUp() throws IOException {
+            DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", type, RecordClass.IN);
+            ResourceRecord record;
+            switch (type) {
+                case A:
+                    record = new ResourceRecord(question, 3600, InetAddress.getByName("142.103.6.6"));
+                    break;
+                case AAAA:
+                    record = new ResourceRecord(question, 3600, InetAddress.getByName("2001:db8::6"));
+                    break;
+                case SOA:
+                    record = new ResourceRecord(question, 3600,
+                            "ns1.cs.ubc.ca hostmaster.cs.ubc.ca 2024010101 7200 900 1209600 300");
+                    break;
+                case OTHER:
+                    record = new ResourceRecord(question, 3600, "0a1b2c3d4e5f");
+                    break;
+                default:
+                    record = new ResourceRecord(question, 3600, "web.cs.ubc.ca");
+            }
+            DNSMessage response = new DNSMessage((short) 1);
+            response.setQR(true);
+            response.addQuestion(question);
+            response.addResourceRecord(record, "answer");
+            packet = direct(response.getUsed());
+        }
+    }
+}
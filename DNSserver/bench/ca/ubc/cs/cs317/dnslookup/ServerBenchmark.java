@@ -0,0 +1,102 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the caching server answering from the cache. Each benchmark thread is a load generator
+ * client with one query outstanding at a time, asking for names picked in turn from a set of cached names, so the
+ * number of threads is the number of concurrent clients. Run with "make bench BENCH_ARGS=ServerBenchmark" to run
+ * only this benchmark; the receivers parameter sets the number of receiver threads of the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class ServerBenchmark {
+
+    private static final int NAMES = 10_000;
+
+    @Param({"1", "4"})
+    public int receivers;
+
+    private DNSLookupService service;
+    private DNSCachingServer server;
+    private byte[][] queries;
+
+    @Setup
+    public void setUp() throws IOException {
+        // Nothing listens on the nameserver, every query is answered from the cache
+        service = new DNSLookupService("127.0.0.1", new DNSLookupCUI());
+        service.setPrefetchRatio(0);
+        server = new DNSCachingServer(service, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), receivers);
+
+        DNSCache cache = DNSCache.getInstance();
+        queries = new byte[NAMES][];
+        for (int i = 0; i < NAMES; i++) {
+            DNSQuestion question = new DNSQuestion("host" + i + ".bench.test", RecordType.A, RecordClass.IN);
+            cache.addResult(new ResourceRecord(question, 86400,
+                    InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i})));
+            DNSMessage query = new DNSMessage((short) i);
+            query.setRD(true);
+            query.addQuestion(question);
+            queries[i] = query.getUsed();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+        service.close();
+    }
+
+    /**
+     * A load generator client, with its own socket.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Client {
+        private DatagramSocket socket;
+        private DatagramPacket response;
+        private int next;
+        public long timeouts;
+
+        @Setup
+        public void setUp(ServerBenchmark benchmark) throws IOException {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(1000);
+            socket.connect(benchmark.server.getLocalAddress());
+            response = new DatagramPacket(new byte[DNSMessage.MAX_UDP_PAYLOAD_SIZE], DNSMessage.MAX_UDP_PAYLOAD_SIZE);
+            next = (int) (Thread.currentThread().getId() * 7919 % NAMES);
+        }
+
+        @TearDown
+        public void tearDown() {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public int cachedQuery(Client client) throws IOException {
+        byte[] query = queries[client.next];
+        client.next = (client.next + 1) % NAMES;
+        client.socket.send(new DatagramPacket(query, query.length));
+        try {
+            client.socket.receive(client.response);
+        } catch (SocketTimeoutException e) {
+            client.timeouts++;
+            return 0;
+        }
+        return client.response.getLength();
+    }
+}
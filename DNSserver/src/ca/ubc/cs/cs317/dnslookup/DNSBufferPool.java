@@ -0,0 +1,82 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers used to encode and receive DNS messages. Direct buffers can be handed to a channel
+ * without being copied to a temporary native buffer first, but are expensive to allocate, so they are recycled once a
+ * message is no longer used.
+ * <p>
+ * The pool is bounded: buffers released while the pool is full are left to the garbage collector, and buffers are
+ * allocated on demand while it is empty, so a buffer that is never released is not a leak.
+ */
+class DNSBufferPool {
+
+    private static final DNSBufferPool INSTANCE = new DNSBufferPool(DNSMessage.MAX_UDP_PAYLOAD_SIZE, 1024);
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param bufferSize Capacity of the buffers, in bytes.
+     * @param maxPooled  Maximum number of released buffers kept for reuse.
+     */
+    DNSBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns the pool of buffers sized for DNS messages sent over UDP, including EDNS0 payloads.
+     *
+     * @return The shared pool.
+     */
+    static DNSBufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a cleared buffer, reusing a released buffer if one is available. The content of a reused buffer is not
+     * erased.
+     *
+     * @return A direct buffer with a position of 0 and a limit equal to its capacity.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used by the caller afterwards.
+     *
+     * @param buffer A buffer previously obtained from acquire().
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.isDirect()) return;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.add(buffer);
+    }
+
+    /**
+     * Returns the number of released buffers currently available for reuse.
+     *
+     * @return The number of pooled buffers.
+     */
+    int getPooledCount() {
+        return pooled.get();
+    }
+}
@@ -1,6 +1,12 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -9,6 +15,34 @@ import java.util.stream.Stream;
  * This class handles a cache of DNS results. It is based on a map that links nodes (queries) to a set of resource
  * records (results). Cached results are only maintained for the duration of the TTL (time-to-live) returned by the
  * server, and are deleted before being returned to the user.
+ * <p>
+ * The map is split into a fixed number of shards, selected by the hash of the question. Each shard is protected by its
+ * own read/write lock, so lookups for different questions proceed in parallel and lookups for the same question only
+ * contend with writers of that shard. The cache can therefore be shared by any number of resolver threads.
+ * <p>
+ * Expired records are removed by a timer wheel kept in each shard. The set of records of each question is scheduled
+ * in the wheel at the expiration time of its earliest record, and the wheel is advanced whenever a shard is modified
+ * (or read after at least one wheel tick), so records are removed even if their question is never asked again. Reads
+ * skip expired records that the wheel has not removed yet, but never modify the cache themselves.
+ * <p>
+ * The cache may be bounded by a number of records and by an estimate of the memory they use. Each shard enforces its
+ * share of the bounds using a W-TinyLFU policy: new questions enter a small FIFO admission window, and when the window
+ * overflows its oldest entry is only admitted to the main region if it has been requested more often (according to a
+ * frequency sketch) than the victim chosen by a CLOCK sweep of the main region. Names seen only once, such as those
+ * of a scan, are therefore evicted before popular names. The root nameservers are never evicted and are not counted
+ * against the bounds.
+ * <p>
+ * Negative answers (RFC 2308), i.e., responses stating that a name does not exist (NXDOMAIN) or has no records of the
+ * requested type (NODATA), are cached for a question as the SOA record that came with them, with the negative TTL
+ * derived from that SOA. They are expired and evicted like any other records, and are replaced as soon as a positive
+ * record is cached for the same question.
+ * <p>
+ * The cache can optionally keep expired positive records for a bounded time, so a resolver can serve stale data when
+ * it cannot reach any nameserver (RFC 8767). Stale records are never returned by getCachedResults, only by
+ * getStaleResults, and are removed by the timer wheel once they are older than the configured maximum staleness.
+ * <p>
+ * Data derived from the cached records, such as encoded responses, can be kept consistent with the cache by an
+ * InvalidationListener, which is notified whenever the records of a question are added, removed, evicted or expired.
  */
 public class DNSCache {
 
@@ -19,11 +53,67 @@ public class DNSCache {
             .map(s -> new ResourceRecord(rootQuestion, Integer.MAX_VALUE, s))
             .collect(Collectors.toSet());
 
-    private static final DNSCache instance = new DNSCache();
+    private static final int DEFAULT_CONCURRENCY_LEVEL = Runtime.getRuntime().availableProcessors() * 4;
+    private static final double WINDOW_RATIO = 0.01;
+    private static final long RECORD_OVERHEAD_BYTES = 64;
+    private static final long DATA_OVERHEAD_BYTES = 16;
+    private static final long QUESTION_OVERHEAD_BYTES = 112;
 
-    private final Map<DNSQuestion, Set<ResourceRecord>> cachedResults = new TreeMap<>();
+    private static final DNSCache instance = new DNSCache(DEFAULT_CONCURRENCY_LEVEL,
+            Long.getLong("dnslookup.cache.maxRecords", Long.MAX_VALUE),
+            Long.getLong("dnslookup.cache.maxBytes", Long.MAX_VALUE));
+
+    static {
+        instance.setMaxStale(Long.getLong("dnslookup.cache.maxStale", 0));
+    }
+
+    private final Shard[] shards;
+    private final int shardMask;
+    private final long maxShardRecords;
+    private final long maxShardBytes;
+    private final long maxWindowRecords;
+    private final LongAdder[] hitCounts = newCounters();
+    private final LongAdder[] missCounts = newCounters();
+    private final LongAdder evictionCount = new LongAdder();
+    private final List<InvalidationListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile long maxStaleNanos;
 
     public DNSCache() {
+        this(DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Creates an unbounded cache split into a specific number of shards. The number is rounded up to the next power of
+     * two.
+     *
+     * @param concurrencyLevel Expected number of threads accessing the cache at the same time.
+     */
+    public DNSCache(int concurrencyLevel) {
+        this(concurrencyLevel, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a bounded cache split into a specific number of shards. Each shard enforces an equal share of the bounds.
+     * The singleton instance takes its bounds from the system properties dnslookup.cache.maxRecords and
+     * dnslookup.cache.maxBytes, and is unbounded if they are not set.
+     *
+     * @param concurrencyLevel Expected number of threads accessing the cache at the same time.
+     * @param maxRecords       Maximum number of records kept in the cache, or Long.MAX_VALUE for no limit.
+     * @param maxBytes         Maximum estimated size in bytes of the records kept in the cache, or Long.MAX_VALUE for
+     *                         no limit.
+     */
+    public DNSCache(int concurrencyLevel, long maxRecords, long maxBytes) {
+        if (maxRecords <= 0 || maxBytes <= 0)
+            throw new IllegalArgumentException("Cache bounds must be positive");
+        int count = concurrencyLevel <= 1 ? 1 : Integer.highestOneBit((concurrencyLevel - 1) << 1);
+        this.maxShardRecords = maxRecords == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, maxRecords / count);
+        this.maxShardBytes = maxBytes == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, maxBytes / count);
+        this.maxWindowRecords = (long) Math.max(1, Math.min(maxShardRecords, maxShardBytes / RECORD_OVERHEAD_BYTES)
+                * WINDOW_RATIO);
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++)
+            shards[i] = new Shard();
+        this.shardMask = count - 1;
         reset();
     }
 
@@ -37,19 +127,81 @@ public class DNSCache {
         return instance;
     }
 
+    /**
+     * Sets how long expired records are kept to be served stale by getStaleResults. The singleton instance takes its
+     * initial value from the system property dnslookup.cache.maxStale; other instances do not keep stale records
+     * initially. A new value only applies to the records still in the cache.
+     *
+     * @param seconds Number of seconds an expired record is kept after its expiration, at most one year, or 0 to
+     *                remove records as soon as they expire.
+     */
+    public void setMaxStale(long seconds) {
+        if (seconds < 0 || seconds > TimeUnit.DAYS.toSeconds(365))
+            throw new IllegalArgumentException("Maximum staleness must be between 0 and 365 days");
+        this.maxStaleNanos = TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    /**
+     * Returns how long expired records are kept to be served stale.
+     *
+     * @return The maximum staleness of records, in seconds.
+     */
+    public long getMaxStale() {
+        return TimeUnit.NANOSECONDS.toSeconds(maxStaleNanos);
+    }
+
     /**
      * Resets the cache to its initial value, containing only root nameservers.
      */
     public void reset() {
-        this.cachedResults.clear();
-        this.cachedResults.put(rootQuestion, rootNameServersMap);
+        for (Shard shard : shards) {
+            shard.lock.writeLock().lock();
+            try {
+                shard.cachedResults.clear();
+                shard.wheel.clear();
+                shard.window.clear();
+                shard.main.clear();
+                shard.recordCount = shard.byteCount = shard.windowRecords = 0;
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        }
+        for (InvalidationListener listener : listeners)
+            listener.invalidateAll();
+        for (ResourceRecord record : rootNameServersMap)
+            addResult(record);
+    }
+
+    /**
+     * Registers a listener notified whenever cached records change.
+     *
+     * @param listener The listener to be added.
+     */
+    void addInvalidationListener(InvalidationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener added by addInvalidationListener.
+     *
+     * @param listener The listener to be removed.
+     */
+    void removeInvalidationListener(InvalidationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Notifies the listeners that the records of a question changed.
+     */
+    private void invalidate(DNSQuestion question) {
+        for (InvalidationListener listener : listeners)
+            listener.invalidate(question);
     }
 
     /**
      * Returns a set of resource records already cached for a particular query. If no results are cached for the
-     * specified query, returns an empty set. Expired results are removed from the cache before being returned. This
-     * method does not perform the query itself, it only returns previously cached results. Results are returned in
-     * random order.
+     * specified query, returns an empty set. Expired results are never returned. This method does not perform the
+     * query itself, it only returns previously cached results. Results are returned in random order.
      *
      * @param question     DNS query (host name/type/class) for the results to be obtained.
      * @param includeCname Set to true to indicate that records for the same FQDN but with a CNAME record type should be
@@ -58,25 +210,111 @@ public class DNSCache {
      * @return A potentially empty set of resources associated to the query.
      */
     public List<ResourceRecord> getCachedResults(DNSQuestion question, boolean includeCname) {
+        long now = System.nanoTime();
         List<ResourceRecord> returningList = new ArrayList<>();
-        Set<ResourceRecord> results = cachedResults.get(question);
-        if (results != null) {
-            results.removeIf(ResourceRecord::isExpired);
-            returningList.addAll(results);
-        }
+        collectResults(question, returningList, now);
 
-        if (includeCname && question.getRecordType() != RecordType.CNAME) {
-            results = cachedResults.get(new DNSQuestion(question.getHostName(), RecordType.CNAME, question.getRecordClass()));
-            if (results != null) {
-                results.removeIf(ResourceRecord::isExpired);
-                returningList.addAll(results);
-            }
-        }
+        if (includeCname && question.getRecordType() != RecordType.CNAME)
+            collectResults(new DNSQuestion(question.getName(), RecordType.CNAME, question.getRecordClass()),
+                    returningList, now);
+
+        if (returningList.isEmpty())
+            missCounts[question.getRecordType().ordinal()].increment();
+        else
+            hitCounts[question.getRecordType().ordinal()].increment();
 
         Collections.shuffle(returningList);
         return returningList;
     }
 
+    /**
+     * Records a lookup of a question answered from data derived from the cache rather than from the cache itself, e.g.,
+     * a CNAME chain kept by DNSChainCache, as getCachedResults(question, true) would have recorded it: the access to
+     * the records of the question and to its CNAME records counts for the eviction policy, and the lookup is counted as
+     * a hit if any of them is cached, or as a miss otherwise. No records are copied.
+     *
+     * @param question DNS query (host name/type/class) that was answered.
+     */
+    void recordLookup(DNSQuestion question) {
+        boolean found = recordAccess(question);
+        if (question.getRecordType() != RecordType.CNAME)
+            found |= recordAccess(new DNSQuestion(question.getName(), RecordType.CNAME, question.getRecordClass()));
+
+        if (found)
+            hitCounts[question.getRecordType().ordinal()].increment();
+        else
+            missCounts[question.getRecordType().ordinal()].increment();
+    }
+
+    /**
+     * Records an access to the records of a question for the eviction policy, as collectResults and getNegativeResult
+     * do, and returns true if records other than a negative answer are cached for the question.
+     */
+    private boolean recordAccess(DNSQuestion question) {
+        Shard shard = shardFor(question);
+        shard.lock.readLock().lock();
+        try {
+            RecordSet results = shard.cachedResults.get(question);
+            if (shard.sketch != null)
+                shard.sketch.increment(question.hashCode());
+            if (results == null) return false;
+            results.referenced = true;
+            return !results.negative && !results.isEmpty();
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the unexpired NS records cached for a zone, as getCachedResults does, without counting the lookup as a
+     * hit or a miss. Finding the closest zone cut of a name probes every zone enclosing the name, most of which are not
+     * cached, so these probes are not lookups of the name itself.
+     *
+     * @param zone        The name of the zone.
+     * @param recordClass The class of the records.
+     * @return A potentially empty list of the NS records of the zone, in random order.
+     */
+    List<ResourceRecord> getCachedNameServers(DNSName zone, RecordClass recordClass) {
+        List<ResourceRecord> nameservers = new ArrayList<>();
+        collectResults(new DNSQuestion(zone, RecordType.NS, recordClass), nameservers, System.nanoTime());
+        Collections.shuffle(nameservers);
+        return nameservers;
+    }
+
+    /**
+     * Adds all unexpired records cached for a question to a list. The shard is only read-locked while the records are
+     * copied, and the access is recorded for the eviction policy without modifying the shard. If a tick of the shard's
+     * timer wheel has elapsed, the wheel is advanced afterwards, unless another thread is already modifying the shard.
+     *
+     * @param question DNS query for the results to be obtained.
+     * @param list     List where the unexpired records are added.
+     * @param now      The current time, as returned by System.nanoTime().
+     */
+    private void collectResults(DNSQuestion question, List<ResourceRecord> list, long now) {
+        Shard shard = shardFor(question);
+        shard.lock.readLock().lock();
+        try {
+            RecordSet results = shard.cachedResults.get(question);
+            if (results != null && !results.negative) {
+                results.referenced = true;
+                for (ResourceRecord record : results)
+                    if (!record.isExpired(now))
+                        list.add(record);
+            }
+            if (shard.sketch != null)
+                shard.sketch.increment(question.hashCode());
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+        if (shard.isDue(now) && shard.lock.writeLock().tryLock()) {
+            try {
+                shard.expire(now);
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        }
+    }
+
     /**
      * Adds a specific resource record to the DNS cache. If the cache already has an equivalent resource record, the
      * existing record is updated if the new one expires after the existing record.
@@ -85,30 +323,325 @@ public class DNSCache {
      */
     public void addResult(ResourceRecord record) {
 
-        if (record.isExpired()) return;
+        long now = System.nanoTime();
+        if (record.isExpired(now)) return;
+
+        Shard shard = shardFor(record.getQuestion());
+        shard.lock.writeLock().lock();
+        try {
+            shard.expire(now);
+            shard.add(record);
+            shard.evict();
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds many resource records to the DNS cache at once, as addResult would add each of them, e.g., the records of a
+     * snapshot. The records are grouped by shard, so that each shard is locked, expired and evicted once for all of
+     * its records, rather than once per record.
+     *
+     * @param records Resource records to be added.
+     */
+    void addResults(Collection<ResourceRecord> records) {
+        long now = System.nanoTime();
+        List<List<ResourceRecord>> groups = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++)
+            groups.add(new ArrayList<>(records.size() / shards.length + 1));
+        for (ResourceRecord record : records)
+            if (!record.isExpired(now))
+                groups.get(shardIndex(record.getQuestion())).add(record);
+
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[i];
+            shard.lock.writeLock().lock();
+            try {
+                shard.expire(now);
+                shard.reserve(groups.get(i).size());
+                for (ResourceRecord record : groups.get(i))
+                    shard.add(record);
+                shard.evict();
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the records cached for a question that are either unexpired, or expired for less than the maximum
+     * staleness set by setMaxStale. Meant to answer a question when no nameserver can be reached, so the access is not
+     * counted as a hit or a miss.
+     *
+     * @param question     DNS query (host name/type/class) associated to the result.
+     * @param includeCname Set to true if the stale CNAME records associated to the question should be included.
+     * @return A potentially empty list of unexpired and stale records.
+     */
+    public List<ResourceRecord> getStaleResults(DNSQuestion question, boolean includeCname) {
+        long horizon = System.nanoTime() - maxStaleNanos;
+        List<ResourceRecord> returningList = new ArrayList<>();
+        collectStaleResults(question, returningList, horizon);
+        if (includeCname && question.getRecordType() != RecordType.CNAME)
+            collectStaleResults(new DNSQuestion(question.getName(), RecordType.CNAME, question.getRecordClass()),
+                    returningList, horizon);
+        return returningList;
+    }
+
+    private void collectStaleResults(DNSQuestion question, List<ResourceRecord> list, long horizon) {
+        Shard shard = shardFor(question);
+        shard.lock.readLock().lock();
+        try {
+            RecordSet results = shard.cachedResults.get(question);
+            if (results != null && !results.negative)
+                for (ResourceRecord record : results)
+                    if (!record.isExpired(horizon))
+                        list.add(record);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
 
-        Set<ResourceRecord> results = cachedResults.computeIfAbsent(record.getQuestion(), q -> new HashSet<>());
+    /**
+     * Caches a negative answer for a question stating that the name has no records of the requested type (NODATA), as
+     * in addNegativeResult(question, soa, ttl, false).
+     *
+     * @param question The question that received a negative answer.
+     * @param soa      The SOA record found in the authority section of the negative response.
+     * @param ttl      Number of seconds to keep the negative answer in cache.
+     */
+    public void addNegativeResult(DNSQuestion question, ResourceRecord soa, long ttl) {
+        addNegativeResult(question, soa, ttl, false);
+    }
+
+    /**
+     * Caches a negative answer for a question, i.e., the fact that the name does not exist or has no records of the
+     * requested type. Has no effect if unexpired records are already cached for the question.
+     *
+     * @param question    The question that received a negative answer.
+     * @param soa         The SOA record found in the authority section of the negative response.
+     * @param ttl         Number of seconds to keep the negative answer in cache, usually the smaller of the SOA
+     *                    record's TTL and its MINIMUM field.
+     * @param nonExistent true if the name does not exist (NXDOMAIN), false if it only has no records of the requested
+     *                    type (NODATA).
+     */
+    public void addNegativeResult(DNSQuestion question, ResourceRecord soa, long ttl, boolean nonExistent) {
+
+        if (ttl <= 0) return;
+        ResourceRecord record = new ResourceRecord(soa.getQuestion(), (int) Math.min(ttl, Integer.MAX_VALUE),
+                soa.getTextResult());
+        long now = System.nanoTime();
 
-        // Find a record for the same question containing the same result
-        ResourceRecord oldRecord = results.stream().filter(record::equals).findFirst().orElse(null);
-        if (oldRecord == null)
+        Shard shard = shardFor(question);
+        shard.lock.writeLock().lock();
+        try {
+            shard.expire(now);
+            RecordSet results = shard.getOrCreate(question);
+            if (!results.negative)
+                for (ResourceRecord cached : results)
+                    if (!cached.isExpired(now)) return;
+            shard.clearRecords(results);
+            results.negative = true;
+            results.nonExistent = nonExistent;
             results.add(record);
-        else
-            oldRecord.update(record);
+            shard.addWeight(results, 1, estimateBytes(record));
+            invalidate(question);
+            shard.schedule(results, record.getExpirationNanos());
+            shard.evict();
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the negative answer cached for a question, if any. A negative answer indicates that the name does not
+     * exist or has no records of the requested type, so the question does not need to be sent to a nameserver.
+     *
+     * @param question DNS query (host name/type/class) to be checked.
+     * @return The SOA record of the negative answer, whose remaining TTL is the remaining negative caching time, or
+     * null if no unexpired negative answer is cached for the question.
+     */
+    public ResourceRecord getNegativeResult(DNSQuestion question) {
+        long now = System.nanoTime();
+        Shard shard = shardFor(question);
+        shard.lock.readLock().lock();
+        try {
+            RecordSet results = shard.cachedResults.get(question);
+            if (results == null || !results.negative) return null;
+            results.referenced = true;
+            if (shard.sketch != null)
+                shard.sketch.increment(question.hashCode());
+            for (ResourceRecord record : results)
+                if (!record.isExpired(now))
+                    return record;
+            return null;
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns true if the negative answer cached for a question states that the name does not exist (NXDOMAIN), as
+     * opposed to having no records of the requested type (NODATA).
+     *
+     * @param question DNS query (host name/type/class) to be checked.
+     * @return true if an NXDOMAIN answer is cached for the question, false if a NODATA answer, records or nothing is
+     * cached for it. The expiration of the negative answer is not checked, see getNegativeResult.
+     */
+    public boolean isNonExistent(DNSQuestion question) {
+        Shard shard = shardFor(question);
+        shard.lock.readLock().lock();
+        try {
+            RecordSet results = shard.cachedResults.get(question);
+            return results != null && results.negative && results.nonExistent;
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all expired records from the cache. Expired records are also removed as the cache is used, so calling
+     * this method is only needed to release memory when the cache is idle.
+     */
+    public void cleanUp() {
+        long now = System.nanoTime();
+        for (Shard shard : shards) {
+            shard.lock.writeLock().lock();
+            try {
+                shard.expire(now);
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of calls to getCachedResults that returned at least one record.
+     *
+     * @return The number of cache hits since the cache was created.
+     */
+    public long getHitCount() {
+        return sum(hitCounts);
+    }
+
+    /**
+     * Returns the number of calls to getCachedResults for questions of a record type that returned at least one
+     * record.
+     *
+     * @param type The record type of the questions.
+     * @return The number of cache hits for the record type since the cache was created.
+     */
+    public long getHitCount(RecordType type) {
+        return hitCounts[type.ordinal()].sum();
+    }
+
+    /**
+     * Returns the number of calls to getCachedResults that returned no records.
+     *
+     * @return The number of cache misses since the cache was created.
+     */
+    public long getMissCount() {
+        return sum(missCounts);
+    }
+
+    /**
+     * Returns the number of calls to getCachedResults for questions of a record type that returned no records.
+     *
+     * @param type The record type of the questions.
+     * @return The number of cache misses for the record type since the cache was created.
+     */
+    public long getMissCount(RecordType type) {
+        return missCounts[type.ordinal()].sum();
+    }
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[RecordType.values().length];
+        for (int i = 0; i < counters.length; i++)
+            counters[i] = new LongAdder();
+        return counters;
+    }
+
+    private static long sum(LongAdder[] counters) {
+        long sum = 0;
+        for (LongAdder counter : counters)
+            sum += counter.sum();
+        return sum;
+    }
+
+    /**
+     * Returns the number of unexpired records removed from the cache to keep it within its bounds.
+     *
+     * @return The number of evicted records since the cache was created.
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * Returns the number of records in the cache, not including the root nameservers. Records that expired but were
+     * not removed yet are included.
+     *
+     * @return The number of records currently held by the cache.
+     */
+    public long getRecordCount() {
+        long count = 0;
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                count += shard.recordCount;
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns an estimate of the memory used by the records in the cache, not including the root nameservers.
+     *
+     * @return The estimated size of the cached records, in bytes.
+     */
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                bytes += shard.byteCount;
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return bytes;
     }
 
     /**
      * Perform a specific action for each query and its set of cached records. This action can be specified using a
-     * lambda expression or method name. Expired records are removed before the action is performed.
+     * lambda expression or method name. Expired records are removed before the action is performed. Questions are
+     * visited in order, and the action receives a snapshot of the records, so it is performed without holding any lock
+     * and may itself use the cache.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachQuestion(BiConsumer<DNSQuestion, Collection<ResourceRecord>> consumer) {
-        cachedResults.forEach((question, records) -> {
-            records.removeIf(ResourceRecord::isExpired);
-            if (!records.isEmpty())
-                consumer.accept(question, records);
-        });
+        long now = System.nanoTime();
+        Map<DNSQuestion, Collection<ResourceRecord>> snapshot = new TreeMap<>();
+        for (Shard shard : shards) {
+            shard.lock.writeLock().lock();
+            try {
+                shard.expire(now);
+                for (RecordSet results : shard.cachedResults.values()) {
+                    if (results.negative) continue;
+                    List<ResourceRecord> records = new ArrayList<>(results.size());
+                    for (ResourceRecord record : results)
+                        if (!record.isExpired(now))
+                            records.add(record);
+                    if (!records.isEmpty())
+                        snapshot.put(results.question, records);
+                }
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        }
+        snapshot.forEach(consumer);
     }
 
     /**
@@ -121,4 +654,471 @@ public class DNSCache {
         forEachQuestion((question, records) -> records.forEach(record -> consumer.accept(question, record)));
     }
 
+    /**
+     * Writes a snapshot of the cache to a file, so that its records can be restored after a restart with
+     * loadSnapshot. The root nameservers are not included. See DNSCacheSnapshot for the format of the file.
+     *
+     * @param file The file where the snapshot is written. It is replaced if it already exists.
+     * @return The number of records written.
+     * @throws IOException If the file cannot be written.
+     */
+    public int writeSnapshot(Path file) throws IOException {
+        return DNSCacheSnapshot.write(this, file);
+    }
+
+    /**
+     * Adds the records of a snapshot written by writeSnapshot to the cache. Records that expired since the snapshot was
+     * written are skipped, and the others are cached with their remaining TTL.
+     *
+     * @param file The snapshot file.
+     * @return The number of records added to the cache.
+     * @throws IOException If the file cannot be read or is not a valid snapshot.
+     */
+    public int loadSnapshot(Path file) throws IOException {
+        return DNSCacheSnapshot.load(this, file);
+    }
+
+    /**
+     * Performs an action for each unexpired record in the cache, including the SOA records of negative answers, but not
+     * the root nameservers. Unlike forEachRecord, the records are not sorted, and the action is performed while the
+     * record's shard is read-locked, so it must be short and must not use the cache.
+     *
+     * @param consumer Action to be performed for each record.
+     */
+    void forEachEntry(EntryConsumer consumer) {
+        long now = System.nanoTime();
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                for (RecordSet results : shard.cachedResults.values()) {
+                    if (results.isPinned()) continue;
+                    for (ResourceRecord record : results)
+                        if (!record.isExpired(now))
+                            consumer.accept(results.question, record, results.negative, results.nonExistent);
+                }
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+    }
+
+    private Shard shardFor(DNSQuestion question) {
+        return shards[shardIndex(question)];
+    }
+
+    private int shardIndex(DNSQuestion question) {
+        // The shard is selected by the high bits of a mixed hash, since the low bits select the bucket in the shard's map
+        int h = question.hashCode() * 0x9e3779b9;
+        return (h >>> 16) & shardMask;
+    }
+
+    /**
+     * Returns an estimate of the memory used by a cached record, including its share of the set that holds it. The host
+     * name of the record is an interned name shared with the question of the set, so it is counted with the question,
+     * and so is a host name that results from the record. Addresses are kept in the record itself, and the data of
+     * unsupported types in an array.
+     *
+     * @param record The record being cached.
+     * @return The estimated size of the record, in bytes.
+     */
+    private static long estimateBytes(ResourceRecord record) {
+        if (record.getAddressLength() > 0) return RECORD_OVERHEAD_BYTES;
+        if (record.getDataLength() >= 0) return RECORD_OVERHEAD_BYTES + DATA_OVERHEAD_BYTES + record.getDataLength();
+        switch (record.getRecordType()) {
+            case NS:
+            case CNAME:
+            case MX:
+                return RECORD_OVERHEAD_BYTES;
+            default:
+                return RECORD_OVERHEAD_BYTES + 2L * record.getTextResult().length();
+        }
+    }
+
+    /**
+     * A portion of the cache, containing the questions whose hash maps to it, the timer wheel used to expire their
+     * records, the state of its eviction policy and the lock that protects them.
+     */
+    private class Shard {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private Map<DNSQuestion, RecordSet> cachedResults = new HashMap<>();
+        private final TimerWheel<RecordSet> wheel = new TimerWheel<>(System.nanoTime());
+        private volatile long wheelTime = wheel.getTime();
+        private final AccessQueue window = new AccessQueue();
+        private final AccessQueue main = new AccessQueue();
+        private final FrequencySketch sketch = maxShardRecords == Long.MAX_VALUE && maxShardBytes == Long.MAX_VALUE ?
+                null : new FrequencySketch(Math.min(maxShardRecords, maxShardBytes / RECORD_OVERHEAD_BYTES));
+        private long recordCount;
+        private long byteCount;
+        private long windowRecords;
+
+        /**
+         * Returns true if advancing the timer wheel would have any effect. May be called without holding the lock.
+         */
+        private boolean isDue(long now) {
+            return (now - wheelTime) >= (1L << 30);
+        }
+
+        /**
+         * Makes room for a number of new questions, so that adding many records at once, e.g., from a cache snapshot,
+         * rehashes the map once instead of doubling it step by step. Must be called with the write lock held.
+         */
+        private void reserve(int count) {
+            if (count <= cachedResults.size()) return;
+            Map<DNSQuestion, RecordSet> larger = new HashMap<>((int) ((cachedResults.size() + count) / 0.75f) + 1);
+            larger.putAll(cachedResults);
+            cachedResults = larger;
+        }
+
+        /**
+         * Advances the timer wheel, removing expired records. Must be called with the write lock held.
+         */
+        private void expire(long now) {
+            if (!wheel.isDue(now)) return;
+            wheel.advance(now, results -> {
+                // Positive records are kept until they are too stale to be served
+                long stale = results.negative ? 0 : maxStaleNanos;
+                Iterator<ResourceRecord> it = results.iterator();
+                boolean removed = false;
+                while (it.hasNext()) {
+                    ResourceRecord record = it.next();
+                    if (record.isExpired(now - stale)) {
+                        it.remove();
+                        addWeight(results, -1, -estimateBytes(record));
+                        removed = true;
+                    }
+                }
+                if (removed)
+                    invalidate(results.question);
+                if (results.isEmpty()) {
+                    remove(results);
+                } else {
+                    long earliest = 0;
+                    boolean first = true;
+                    for (ResourceRecord record : results) {
+                        if (first || record.getExpirationNanos() - earliest < 0)
+                            earliest = record.getExpirationNanos();
+                        first = false;
+                    }
+                    results.deadline = earliest + stale;
+                    wheel.schedule(results);
+                }
+            });
+            wheelTime = now;
+        }
+
+        /**
+         * Returns the set of records of a question, creating an empty one in the admission window if there is none.
+         * Must be called with the write lock held.
+         */
+        private RecordSet getOrCreate(DNSQuestion question) {
+            RecordSet results = cachedResults.get(question);
+            if (results == null) {
+                results = new RecordSet(question);
+                cachedResults.put(question, results);
+                if (!results.isPinned()) {
+                    results.inWindow = true;
+                    window.addLast(results);
+                }
+            }
+            return results;
+        }
+
+        /**
+         * Adds a record to the set of its question, or updates the equivalent record of the set if the new one expires
+         * after it. A positive record replaces a negative answer. Must be called with the write lock held.
+         */
+        private void add(ResourceRecord record) {
+            RecordSet results = getOrCreate(record.getQuestion());
+            if (results.negative) {
+                // A positive answer replaces a cached negative answer
+                clearRecords(results);
+                results.negative = false;
+                results.nonExistent = false;
+                invalidate(results.question);
+            }
+
+            // The records of a set share the question of the set
+            record.shareQuestion(results.question);
+            ResourceRecord oldRecord = results.add(record);
+            if (oldRecord == null) {
+                addWeight(results, 1, estimateBytes(record));
+                invalidate(results.question);
+            } else
+                oldRecord.update(record); // Data derived from the old record only expires earlier
+            schedule(results, record.getExpirationNanos() + maxStaleNanos);
+        }
+
+        /**
+         * Schedules a set of records in the timer wheel, unless it is already scheduled before a new record's
+         * expiration time. Must be called with the write lock held.
+         */
+        private void schedule(RecordSet results, long expirationNanos) {
+            if (!results.isScheduled() || expirationNanos - results.deadline < 0) {
+                results.deadline = expirationNanos;
+                wheel.schedule(results);
+            }
+        }
+
+        /**
+         * Removes all records from a set, keeping the set itself. Must be called with the write lock held.
+         */
+        private void clearRecords(RecordSet results) {
+            Iterator<ResourceRecord> it = results.iterator();
+            while (it.hasNext()) {
+                ResourceRecord record = it.next();
+                it.remove();
+                addWeight(results, -1, -estimateBytes(record));
+            }
+        }
+
+        /**
+         * Updates the weight of a set of records and the totals of the shard. Must be called with the write lock held.
+         */
+        private void addWeight(RecordSet results, int records, long bytes) {
+            if (results.isPinned()) return;
+            if (results.weight == 0)
+                bytes += QUESTION_OVERHEAD_BYTES + 2L * results.question.getHostName().length();
+            results.weight += bytes;
+            recordCount += records;
+            byteCount += bytes;
+            if (results.inWindow)
+                windowRecords += records;
+            if (results.isEmpty()) {
+                // The overhead of the set itself goes away with its last record
+                byteCount -= results.weight;
+                results.weight = 0;
+            }
+        }
+
+        /**
+         * Removes a set of records from the shard. Must be called with the write lock held.
+         */
+        private void remove(RecordSet results) {
+            cachedResults.remove(results.question);
+            if (!results.isEmpty())
+                invalidate(results.question);
+            wheel.deschedule(results);
+            if (results.isPinned()) return;
+            (results.inWindow ? window : main).remove(results);
+            recordCount -= results.size();
+            byteCount -= results.weight;
+            if (results.inWindow)
+                windowRecords -= results.size();
+        }
+
+        /**
+         * Evicts sets of records until the shard is within its bounds, then moves the entries that overflow the
+         * admission window to the main region. When the window is over its share, its oldest entry competes with the
+         * victim of the main region, and the one with the lower estimated frequency is evicted. Must be called with
+         * the write lock held.
+         */
+        private void evict() {
+            if (sketch == null) return;
+            while ((recordCount > maxShardRecords || byteCount > maxShardBytes) && !(window.isEmpty() && main.isEmpty())) {
+                RecordSet candidate = windowRecords > maxWindowRecords || main.isEmpty() ? window.first() : null;
+                RecordSet victim = main.isEmpty() ? null : selectVictim();
+                RecordSet evicted;
+                if (candidate == null)
+                    evicted = victim;
+                else if (victim == null)
+                    evicted = candidate;
+                else
+                    evicted = sketch.frequency(candidate.question.hashCode()) > sketch.frequency(victim.question.hashCode())
+                            ? victim : candidate;
+                evictionCount.add(evicted.size());
+                remove(evicted);
+            }
+            while (windowRecords > maxWindowRecords) {
+                RecordSet admitted = window.first();
+                window.remove(admitted);
+                windowRecords -= admitted.size();
+                admitted.inWindow = false;
+                admitted.referenced = false;
+                main.addLast(admitted);
+            }
+        }
+
+        /**
+         * Chooses the next victim of the main region using the CLOCK algorithm: entries read since the last sweep get a
+         * second chance and are moved to the back of the queue.
+         */
+        private RecordSet selectVictim() {
+            while (true) {
+                RecordSet head = main.first();
+                if (!head.referenced) return head;
+                head.referenced = false;
+                main.remove(head);
+                main.addLast(head);
+            }
+        }
+    }
+
+    /**
+     * The records cached for a single question. The set is scheduled in the shard's timer wheel at the expiration time
+     * of its earliest record, and linked in the queue of the eviction policy region it belongs to. A negative set only
+     * contains the SOA record of a negative answer.
+     * <p>
+     * Most questions have a single record, which the set holds directly: a RecordTable is only created when a second
+     * record is added. The set is the largest fixed cost of a cached question, so it has no field that can be derived
+     * from the others, e.g., whether it holds the root nameservers.
+     */
+    private static class RecordSet extends TimerWheel.Node implements Iterable<ResourceRecord> {
+        private final DNSQuestion question;
+        // null, the only record of the set, or a RecordTable of its records
+        private Object records;
+        private boolean negative;
+        private boolean nonExistent;
+        private RecordSet queuePrev;
+        private RecordSet queueNext;
+        private boolean inWindow;
+        private volatile boolean referenced;
+        private int weight;
+
+        private RecordSet(DNSQuestion question) {
+            this.question = question;
+        }
+
+        /**
+         * Returns true if the set holds the root nameservers, which are never expired, evicted or counted.
+         */
+        private boolean isPinned() {
+            return question.equals(rootQuestion);
+        }
+
+        private int size() {
+            Object current = records;
+            return current == null ? 0 : current instanceof RecordTable ? ((RecordTable) current).size() : 1;
+        }
+
+        private boolean isEmpty() {
+            return size() == 0;
+        }
+
+        /**
+         * Adds a record to the set, unless the set already contains an equal record, as in RecordTable.add.
+         *
+         * @param record The record to be added.
+         * @return The record of the set that is equal to the record, or null if the record was added.
+         */
+        private ResourceRecord add(ResourceRecord record) {
+            Object current = records;
+            if (current == null) {
+                records = record;
+                return null;
+            }
+            if (current instanceof RecordTable)
+                return ((RecordTable) current).add(record);
+            ResourceRecord only = (ResourceRecord) current;
+            if (only.equals(record)) return only;
+            RecordTable table = new RecordTable();
+            table.add(only);
+            table.add(record);
+            records = table;
+            return null;
+        }
+
+        /**
+         * Returns an iterator over the records of the set, in no particular order, as in RecordTable.iterator. The
+         * iterator supports removing records.
+         */
+        @Override
+        public Iterator<ResourceRecord> iterator() {
+            Object current = records;
+            if (current instanceof RecordTable)
+                return ((RecordTable) current).iterator();
+            return new Iterator<ResourceRecord>() {
+                private boolean hasNext = current != null;
+                private boolean removable;
+
+                @Override
+                public boolean hasNext() {
+                    return hasNext;
+                }
+
+                @Override
+                public ResourceRecord next() {
+                    if (!hasNext) throw new NoSuchElementException();
+                    hasNext = false;
+                    removable = true;
+                    return (ResourceRecord) current;
+                }
+
+                @Override
+                public void remove() {
+                    if (!removable) throw new IllegalStateException();
+                    removable = false;
+                    records = null;
+                }
+            };
+        }
+    }
+
+    /**
+     * An action performed for each record of the cache by forEachEntry.
+     */
+    interface EntryConsumer {
+        /**
+         * @param question    The question the record is cached for.
+         * @param record      The cached record.
+         * @param negative    true if the record is the SOA record of a negative answer, false otherwise.
+         * @param nonExistent true if the record is the SOA record of a negative answer stating that the name does not
+         *                    exist (NXDOMAIN), false otherwise.
+         */
+        void accept(DNSQuestion question, ResourceRecord record, boolean negative, boolean nonExistent);
+    }
+
+    /**
+     * Notified when cached records change, so that data derived from them can be discarded. Listeners are called while
+     * the cache is locked, so they must be short and must not use the cache.
+     */
+    interface InvalidationListener {
+        /**
+         * Called when records are added to or removed from the records of a question, or when a negative answer
+         * is cached for it. Records whose expiration time is extended are not reported.
+         *
+         * @param question The question whose records changed.
+         */
+        void invalidate(DNSQuestion question);
+
+        /**
+         * Called when all records are removed from the cache.
+         */
+        void invalidateAll();
+    }
+
+    /**
+     * A FIFO queue of record sets, linked through the sets themselves so that any set can be removed in constant time.
+     */
+    private static class AccessQueue {
+        private final RecordSet sentinel = new RecordSet(rootQuestion);
+
+        private AccessQueue() {
+            clear();
+        }
+
+        private boolean isEmpty() {
+            return sentinel.queueNext == sentinel;
+        }
+
+        private RecordSet first() {
+            return isEmpty() ? null : sentinel.queueNext;
+        }
+
+        private void addLast(RecordSet results) {
+            results.queuePrev = sentinel.queuePrev;
+            results.queueNext = sentinel;
+            sentinel.queuePrev.queueNext = results;
+            sentinel.queuePrev = results;
+        }
+
+        private void remove(RecordSet results) {
+            results.queuePrev.queueNext = results.queueNext;
+            results.queueNext.queuePrev = results.queuePrev;
+            results.queuePrev = results.queueNext = null;
+        }
+
+        private void clear() {
+            sentinel.queuePrev = sentinel.queueNext = sentinel;
+        }
+    }
 }
@@ -0,0 +1,264 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes snapshots of the content of a DNS cache, so that a resolver can start with the records it had
+ * before it was restarted. Snapshots use a compact binary format:
+ * <pre>
+ * header:  int magic ("DNSC"), short version, short reserved, long time written (ms since the epoch),
+ *          int number of strings, int number of records
+ * strings: for each string, unsigned short length followed by its UTF-8 bytes
+ * records: int host name (string index), byte type, byte class, byte flags (negative answer, NXDOMAIN, IPv4 or IPv6
+ *          address, MX preference), long expiration time (ms since the epoch),
+ *          [negative answers only: int host name, byte type, byte class of the SOA record],
+ *          [MX records only: unsigned short preference],
+ *          result: int string index, or the 4 or 16 bytes of an address
+ * </pre>
+ * Host names and textual results are stored once in the string table, no matter how many records use them. Types and
+ * classes are stored as the ordinal of their enum constant, so the format version must change if constants are added
+ * in the middle of these enums. Expiration times are absolute, so records keep aging while the resolver is down, and
+ * records that expired in the meantime are not restored.
+ * <p>
+ * A snapshot is first written to a temporary file in the same directory, then moved over the previous snapshot, so an
+ * interrupted write never leaves a corrupted snapshot behind. Files are read and written in a single buffer rather
+ * than mapped, since a mapping outlives the channel until it is garbage collected, and a mapped file cannot be replaced
+ * on some platforms, e.g., Windows.
+ */
+final class DNSCacheSnapshot {
+
+    private static final int MAGIC = 0x444e5343;
+    private static final short VERSION = 1;
+    private static final int HEADER_LENGTH = 24;
+    private static final int NEGATIVE = 0x1;
+    private static final int IPV4 = 0x2;
+    private static final int IPV6 = 0x4;
+    private static final int NXDOMAIN = 0x8;
+    private static final int PREFERENCE = 0x10;
+    private static final RecordType[] TYPES = RecordType.values();
+    private static final RecordClass[] CLASSES = RecordClass.values();
+
+    private DNSCacheSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of all unexpired records of a cache, except the root nameservers, to a file.
+     *
+     * @param cache The cache to be saved.
+     * @param file  The file where the snapshot is written. It is replaced if it already exists.
+     * @return The number of records written.
+     * @throws IOException If the file cannot be written.
+     */
+    static int write(DNSCache cache, Path file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long nanos = System.nanoTime();
+        long millis = System.currentTimeMillis();
+        cache.forEachEntry((question, record, negative, nonExistent) ->
+                entries.add(new Entry(question, record, negative, nonExistent)));
+
+        Map<String, Integer> stringIndex = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        long length = HEADER_LENGTH;
+        for (Entry entry : entries) {
+            length += 4 + 3 + 8;
+            length += addString(entry.question.getHostName(), stringIndex, strings);
+            if (entry.negative) {
+                length += 4 + 2;
+                length += addString(entry.record.getHostName(), stringIndex, strings);
+            }
+            if (entry.record.getPreference() != 0)
+                length += 2;
+            int addressLength = entry.record.getAddressLength();
+            if (addressLength > 0)
+                length += addressLength;
+            else
+                length += 4 + addString(entry.record.getTextResult(), stringIndex, strings);
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Too many records for a DNS cache snapshot");
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            buffer.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(millis);
+            buffer.putInt(strings.size()).putInt(entries.size());
+            for (byte[] string : strings)
+                buffer.putShort((short) string.length).put(string);
+            for (Entry entry : entries) {
+                DNSQuestion question = entry.question;
+                ResourceRecord record = entry.record;
+                int addressLength = record.getAddressLength();
+                int flags = (entry.negative ? NEGATIVE : 0) | (entry.nonExistent ? NXDOMAIN : 0) |
+                        (record.getPreference() != 0 ? PREFERENCE : 0) |
+                        (addressLength == 0 ? 0 : addressLength == 4 ? IPV4 : IPV6);
+                putQuestion(buffer, question, stringIndex);
+                buffer.put((byte) flags);
+                buffer.putLong(millis + (record.getExpirationNanos() - nanos) / 1_000_000L);
+                if (entry.negative)
+                    putQuestion(buffer, record.getQuestion(), stringIndex);
+                if ((flags & PREFERENCE) != 0)
+                    buffer.putShort((short) record.getPreference());
+                if (addressLength > 0)
+                    record.putAddress(buffer);
+                else
+                    buffer.putInt(stringIndex.get(record.getTextResult()));
+            }
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return entries.size();
+    }
+
+    /**
+     * Adds the records of a snapshot file to a cache. Records that expired since the snapshot was written are skipped,
+     * and the others are cached with their remaining TTL.
+     *
+     * @param cache The cache where the records are added.
+     * @param file  The snapshot file.
+     * @return The number of records added to the cache.
+     * @throws IOException If the file cannot be read or is not a valid snapshot.
+     */
+    static int load(DNSCache cache, Path file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(file + " is not a DNS cache snapshot");
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Read the whole file
+            }
+            buffer.flip();
+        }
+        try {
+            if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC)
+                throw new IOException(file + " is not a DNS cache snapshot");
+            if (buffer.getShort() != VERSION)
+                throw new IOException("Unsupported version of DNS cache snapshot in " + file);
+            buffer.getShort();
+            buffer.getLong();
+            return readRecords(cache, buffer);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated or corrupted DNS cache snapshot in " + file, e);
+        }
+    }
+
+    private static int readRecords(DNSCache cache, ByteBuffer buffer) throws IOException {
+        int stringCount = buffer.getInt();
+        int recordCount = buffer.getInt();
+        if (stringCount < 0 || stringCount > buffer.remaining() / 2 || recordCount < 0)
+            throw new IOException("Corrupted DNS cache snapshot");
+        String[] strings = new String[stringCount];
+        byte[] scratch = new byte[0xffff];
+        for (int i = 0; i < strings.length; i++) {
+            int length = buffer.getShort() & 0xffff;
+            buffer.get(scratch, 0, length);
+            strings[i] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // Host names are interned once per string, not once per record, in a table sized for all of them
+        DNSName.reserve(strings.length);
+        DNSName[] names = new DNSName[strings.length];
+        long millis = System.currentTimeMillis();
+        long nanos = System.nanoTime();
+        int restored = 0;
+        // Records are added all at once, so that each shard of the cache is only locked once
+        List<ResourceRecord> records = new ArrayList<>(Math.min(recordCount, buffer.remaining() / 19));
+        DNSQuestion question = null;
+        for (int i = 0; i < recordCount; i++) {
+            question = getQuestion(buffer, strings, names, question);
+            int flags = buffer.get();
+            long remainingNanos = (buffer.getLong() - millis) * 1_000_000L;
+            long expirationNanos = nanos + remainingNanos;
+            DNSQuestion recordQuestion = (flags & NEGATIVE) != 0 ? getQuestion(buffer, strings, names, null) : question;
+            int preference = (flags & PREFERENCE) != 0 ? buffer.getShort() & 0xffff : 0;
+            ResourceRecord record;
+            if ((flags & IPV4) != 0)
+                record = new ResourceRecord(question, 0, buffer.getInt(), false, expirationNanos, remainingNanos);
+            else if ((flags & IPV6) != 0)
+                record = new ResourceRecord(question, buffer.getLong(), buffer.getLong(), true, expirationNanos,
+                        remainingNanos);
+            else if ((flags & NEGATIVE) != 0)
+                record = new ResourceRecord(recordQuestion, 0, strings[buffer.getInt()]);
+            else if (preference != 0)
+                record = new ResourceRecord(question, 0, preference, DNSName.of(strings[buffer.getInt()]))
+                        .withExpiration(expirationNanos);
+            else
+                record = new ResourceRecord(question, 0, strings[buffer.getInt()]).withExpiration(expirationNanos);
+            if (remainingNanos <= 0) continue;
+
+            if ((flags & NEGATIVE) != 0)
+                cache.addNegativeResult(question, record, (remainingNanos + 999_999_999L) / 1_000_000_000L,
+                        (flags & NXDOMAIN) != 0);
+            else
+                records.add(record);
+            restored++;
+        }
+        cache.addResults(records);
+        return restored;
+    }
+
+    private static int addString(String string, Map<String, Integer> stringIndex, List<byte[]> strings) {
+        if (stringIndex.containsKey(string)) return 0;
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff)
+            throw new IllegalArgumentException("String too long for a DNS cache snapshot");
+        stringIndex.put(string, strings.size());
+        strings.add(bytes);
+        return 2 + bytes.length;
+    }
+
+    private static void putQuestion(ByteBuffer buffer, DNSQuestion question, Map<String, Integer> stringIndex) {
+        buffer.putInt(stringIndex.get(question.getHostName()));
+        buffer.put((byte) question.getRecordType().ordinal());
+        buffer.put((byte) question.getRecordClass().ordinal());
+    }
+
+    private static DNSQuestion getQuestion(ByteBuffer buffer, String[] strings, DNSName[] names,
+                                           DNSQuestion previous) {
+        int index = buffer.getInt();
+        DNSName name = names[index];
+        if (name == null)
+            name = names[index] = DNSName.of(strings[index]);
+        RecordType type = TYPES[buffer.get()];
+        RecordClass recordClass = CLASSES[buffer.get()];
+        // The records of a question are written next to each other, so they can share the same question object
+        if (previous != null && previous.getName() == name && previous.getRecordType() == type &&
+                previous.getRecordClass() == recordClass)
+            return previous;
+        return new DNSQuestion(name, type, recordClass);
+    }
+
+    /**
+     * A record collected from the cache, with the question it is cached for.
+     */
+    private static class Entry {
+        private final DNSQuestion question;
+        private final ResourceRecord record;
+        private final boolean negative;
+        private final boolean nonExistent;
+
+        private Entry(DNSQuestion question, ResourceRecord record, boolean negative, boolean nonExistent) {
+            this.question = question;
+            this.record = record;
+            this.negative = negative;
+            this.nonExistent = nonExistent;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A caching DNS server answering recursive queries from other processes over UDP. Questions are answered from the
+ * shared DNSCache when possible, and resolved iteratively by a DNSLookupService otherwise, following CNAME records.
+ * <p>
+ * Queries are received by a pool of receiver threads sharing a single DatagramChannel. Each receiver decodes a query
+ * in place in its own direct buffer, and answers it right away when the answer is cached, so cached answers do not
+ * involve any other thread. Queries that require a resolution are handed to the non-blocking engine of the lookup
+ * service, and answered by its I/O thread once the resolution is complete, so the receivers never wait for a
+ * nameserver. Responses are encoded in pooled direct buffers (see DNSBufferPool).
+ * <p>
+ * Encoded responses are kept in a DNSResponseCache, so a question asked again is answered by copying its response and
+ * patching its header and TTLs, without looking up or encoding its records. The response cache is kept consistent with
+ * the DNSCache, and a response is only encoded again once its records change or are due for a refresh.
+ * <p>
+ * Responses larger than the UDP payload size advertised by the client (512 bytes without EDNS0) are truncated to
+ * their question, with the TC bit set. Negative answers are sent with the SOA record in the authority section, and
+ * with the NXDOMAIN error code if the name at the end of the CNAME chain does not exist, or no error otherwise (NODATA).
+ */
+public class DNSCachingServer implements AutoCloseable {
+
+    public static final int DEFAULT_RECEIVERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_MAX_CACHED_RESPONSES = 100_000;
+    private static final int MAX_INDIRECTION_LEVEL = 10;
+    /**
+     * Length of an OPT record with no options: root name, type, class, TTL and data length.
+     */
+    private static final int OPT_RECORD_LENGTH = 11;
+    private static final int FORMERR = 1;
+    private static final int SERVFAIL = 2;
+    private static final int NXDOMAIN = 3;
+    private static final int NOTIMP = 4;
+
+    private final DNSLookupService lookupService;
+    private final DNSCache cache = DNSCache.getInstance();
+    private final DNSResponseCache responseCache = new DNSResponseCache(cache,
+            Integer.getInteger("dnslookup.server.maxCachedResponses", DEFAULT_MAX_CACHED_RESPONSES));
+    private final DatagramChannel channel;
+    private final Thread[] receivers;
+    private final LongAdder queryCount = new LongAdder();
+    private final LongAdder cachedAnswerCount = new LongAdder();
+    private final LongAdder truncatedCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private volatile boolean open = true;
+
+    /**
+     * Starts a server and its receiver threads.
+     *
+     * @param lookupService The lookup service used to resolve questions that are not cached.
+     * @param address       The address and port the server listens on. Port 0 selects any free port.
+     * @param receivers     The number of threads receiving queries.
+     * @throws IOException If the server cannot listen on the address.
+     */
+    public DNSCachingServer(DNSLookupService lookupService, InetSocketAddress address, int receivers)
+            throws IOException {
+        if (receivers < 1) throw new IllegalArgumentException("At least one receiver is required");
+        this.lookupService = lookupService;
+        this.channel = DatagramChannel.open();
+        channel.bind(address);
+        this.receivers = new Thread[receivers];
+        for (int i = 0; i < receivers; i++) {
+            this.receivers[i] = new Thread(this::receive, "dns-server-receiver-" + i);
+            this.receivers[i].setDaemon(true);
+            this.receivers[i].start();
+        }
+    }
+
+    /**
+     * Returns the address and port the server listens on.
+     *
+     * @return The local address of the server's channel.
+     * @throws IOException If the channel is closed.
+     */
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * Returns the number of queries received, including malformed queries.
+     *
+     * @return The number of queries received since the server was started.
+     */
+    public long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    /**
+     * Returns the number of queries answered without waiting for a resolution.
+     *
+     * @return The number of queries answered from the cache since the server was started.
+     */
+    public long getCachedAnswerCount() {
+        return cachedAnswerCount.sum();
+    }
+
+    /**
+     * Returns the number of queries answered with a copy of a previously encoded response.
+     *
+     * @return The number of hits of the response cache since the server was started.
+     */
+    public long getEncodedAnswerCount() {
+        return responseCache.getHitCount();
+    }
+
+    /**
+     * Returns the number of responses truncated because they did not fit in the client's UDP payload size.
+     *
+     * @return The number of truncated responses since the server was started.
+     */
+    public long getTruncatedCount() {
+        return truncatedCount.sum();
+    }
+
+    /**
+     * Returns the number of queries answered with an error (format error, server failure or not implemented).
+     *
+     * @return The number of error responses since the server was started.
+     */
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    /**
+     * Stops the server. Resolutions still in progress complete, but their responses are not sent.
+     */
+    @Override
+    public void close() {
+        open = false;
+        responseCache.close();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (Thread receiver : receivers) {
+            try {
+                receiver.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Main loop of a receiver thread.
+     */
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DNSMessage.MAX_UDP_PAYLOAD_SIZE);
+        while (open) {
+            SocketAddress client = null;
+            try {
+                buffer.clear();
+                client = channel.receive(buffer);
+                buffer.flip();
+                queryCount.increment();
+                handle(buffer, client);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // Failure to answer a single client, keep serving the others
+            } catch (RuntimeException e) {
+                // An unexpected failure to handle a single query must not stop the receiver
+                if (client != null && buffer.limit() >= 12 && (buffer.get(2) & 0x80) == 0)
+                    sendServerFailure(buffer.getShort(0) & 0xffff, (buffer.get(2) & 0x01) != 0, client);
+            }
+        }
+    }
+
+    /**
+     * Answers a query whose handling failed unexpectedly with a server failure, without a question, as the question
+     * may be what could not be handled.
+     */
+    private void sendServerFailure(int id, boolean rd, SocketAddress client) {
+        try {
+            sendError(id, rd, null, SERVFAIL, client);
+        } catch (IOException | RuntimeException e) {
+            // The client will retry
+        }
+    }
+
+    /**
+     * Decodes a query and answers it, either right away or once its question is resolved.
+     *
+     * @param packet The query, between position 0 and the limit of the buffer.
+     * @param client The address the query came from.
+     * @throws IOException If a response cannot be sent.
+     */
+    private void handle(ByteBuffer packet, SocketAddress client) throws IOException {
+        if (packet.limit() < 12) return; // Not even a header, nothing to answer
+        DNSMessage query = DNSMessage.wrap(packet, false);
+        if (query.getQR()) return; // Responses are never answered, so two servers cannot bounce messages forever
+
+        int id = query.getID();
+        boolean rd = query.getRD();
+        if (query.getOpcode() != DNSMessage.QUERY) {
+            sendError(id, rd, null, NOTIMP, client);
+            return;
+        }
+        DNSQuestion question;
+        int payloadSize;
+        try {
+            if (query.getQDCount() != 1)
+                throw new IllegalArgumentException("Queries must contain exactly one question");
+            question = query.getQuestion();
+            payloadSize = Math.min(DNSMessage.MAX_UDP_PAYLOAD_SIZE, query.getUDPPayloadSize());
+        } catch (RuntimeException e) {
+            sendError(id, rd, null, FORMERR, client);
+            return;
+        }
+        RecordType type = question.getRecordType();
+        if (question.getRecordClass() != RecordClass.IN || type == RecordType.OTHER || type == RecordType.OPT) {
+            sendError(id, rd, question, NOTIMP, client);
+            return;
+        }
+
+        boolean edns = payloadSize > DNSMessage.MAX_DNS_MESSAGE_LENGTH;
+        DNSMessage encoded = responseCache.get(question, id, rd,
+                edns ? payloadSize - OPT_RECORD_LENGTH : payloadSize);
+        if (encoded != null) {
+            cachedAnswerCount.increment();
+            if (edns)
+                encoded.addOPT(DNSMessage.MAX_UDP_PAYLOAD_SIZE);
+            send(encoded, client);
+            return;
+        }
+
+        long generation = responseCache.getGeneration();
+        CompletableFuture<Collection<ResourceRecord>> results =
+                lookupService.getResultsFollowingCNamesAsync(question, MAX_INDIRECTION_LEVEL);
+        if (results.isDone())
+            cachedAnswerCount.increment();
+        results.whenComplete((answers, error) -> {
+            try {
+                if (error != null)
+                    sendError(id, rd, question, SERVFAIL, client);
+                else
+                    sendAnswer(id, rd, question, answers, payloadSize, generation, client);
+            } catch (IOException e) {
+                // The client will retry
+            } catch (RuntimeException e) {
+                sendServerFailure(id, rd, client);
+            }
+        });
+    }
+
+    /**
+     * Sends the answer to a question. If there is no answer, sends the negative answer cached for the question or the
+     * end of its CNAME chain, with the NXDOMAIN error code if the name does not exist, or a server failure if no
+     * nameserver provided an answer. The encoded response is kept in
+     * the response cache, unless the records it was encoded from changed since the generation was read.
+     */
+    private void sendAnswer(int id, boolean rd, DNSQuestion question, Collection<ResourceRecord> answers,
+                            int payloadSize, long generation, SocketAddress client) throws IOException {
+        DNSQuestion last = lastInChain(question, answers);
+        ResourceRecord soa = null;
+        int rcode = 0;
+        if (answers.isEmpty() || !containsType(answers, question.getRecordType())) {
+            soa = cache.getNegativeResult(last);
+            if (answers.isEmpty() && soa == null) {
+                sendError(id, rd, question, SERVFAIL, client);
+                return;
+            }
+            // The error code applies to the last name of the chain (RFC 6604)
+            if (soa != null && cache.isNonExistent(last))
+                rcode = NXDOMAIN;
+        }
+
+        DNSMessage response = newResponse(id, rd, question);
+        response.setRcode(rcode);
+        boolean fits = true;
+        try {
+            for (ResourceRecord record : answers)
+                response.addResourceRecord(record, "answer");
+            if (soa != null)
+                response.addResourceRecord(soa, "nameserver");
+            cacheResponse(question, response, answers, soa, last, generation);
+            if (payloadSize > DNSMessage.MAX_DNS_MESSAGE_LENGTH)
+                response.addOPT(DNSMessage.MAX_UDP_PAYLOAD_SIZE);
+        } catch (BufferOverflowException e) {
+            fits = false;
+        }
+        if (!fits || response.length() > payloadSize) {
+            response.release();
+            truncatedCount.increment();
+            response = newResponse(id, rd, question);
+            response.setRcode(rcode);
+            response.setTC(true);
+        }
+        send(response, client);
+    }
+
+    /**
+     * Sends a response with an error code and no records.
+     *
+     * @param question The question of the query, or null if it could not be decoded.
+     */
+    private void sendError(int id, boolean rd, DNSQuestion question, int rcode, SocketAddress client)
+            throws IOException {
+        errorCount.increment();
+        DNSMessage response = question == null ? newResponse(id, rd) : newResponse(id, rd, question);
+        response.setRcode(rcode);
+        send(response, client);
+    }
+
+    private static DNSMessage newResponse(int id, boolean rd) {
+        DNSMessage response = DNSMessage.allocate(id);
+        response.setQR(true);
+        response.setRD(rd);
+        response.setRA(true);
+        return response;
+    }
+
+    private static DNSMessage newResponse(int id, boolean rd, DNSQuestion question) {
+        DNSMessage response = newResponse(id, rd);
+        response.addQuestion(question);
+        return response;
+    }
+
+    private void send(DNSMessage response, SocketAddress client) throws IOException {
+        try {
+            if (open) response.send(channel, client);
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Keeps an encoded response in the response cache, with the names of the question, its answers and the end of its
+     * CNAME chain as the names it depends on.
+     */
+    private void cacheResponse(DNSQuestion question, DNSMessage response, Collection<ResourceRecord> answers,
+                               ResourceRecord soa, DNSQuestion last, long generation) {
+        List<ResourceRecord> records = new ArrayList<>(answers);
+        if (soa != null)
+            records.add(soa);
+        Set<DNSName> names = new HashSet<>();
+        names.add(question.getName());
+        names.add(last.getName());
+        for (ResourceRecord record : answers)
+            names.add(record.getQuestion().getName());
+        responseCache.put(question, response, records, names, lookupService.getPrefetchRatio(), generation);
+    }
+
+    private static boolean containsType(Collection<ResourceRecord> records, RecordType type) {
+        for (ResourceRecord record : records)
+            if (record.getRecordType() == type)
+                return true;
+        return false;
+    }
+
+    /**
+     * Returns the question asked at the end of the CNAME chain found in a set of answers.
+     */
+    private static DNSQuestion lastInChain(DNSQuestion question, Collection<ResourceRecord> answers) {
+        String name = question.getHostName();
+        for (int hops = 0; hops <= answers.size(); hops++) {
+            String current = name;
+            for (ResourceRecord record : answers)
+                if (record.getRecordType() == RecordType.CNAME && record.getHostName().equalsIgnoreCase(current))
+                    name = record.getTextResult();
+            if (name.equals(current)) break;
+        }
+        return name.equals(question.getHostName()) ? question :
+                new DNSQuestion(name, question.getRecordType(), question.getRecordClass());
+    }
+}
@@ -0,0 +1,100 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of the results of DNSLookupService.getResultsFollowingCNames for questions whose names lead to a CNAME
+ * chain. Each entry holds the CNAME records of the chain and the answers found at its end, flattened in the order they
+ * are returned, so that a lookup of a name behind several CNAMEs (common for names served by content delivery
+ * networks) takes a single probe, instead of one cache lookup and one list per hop. Chains are discarded when any
+ * record along them changes or is due for a refresh, as described in DNSDependentCache, so that the lookup service
+ * sees the chain again and can refresh its records ahead of their expiration.
+ * <p>
+ * Each entry keeps the number of CNAME indirection levels its chain needs. A lookup allowing fewer levels is not
+ * answered from the entry, so that it follows the chain itself and fails as it would without the chain cache. Chains
+ * that could not be followed, e.g., because they loop, are never kept.
+ * <p>
+ * A hit is recorded in the DNSCache as a lookup of every name of the chain, as following the chain would have, so that
+ * the names of the most used chains count as hits, and are the least likely to be evicted.
+ */
+class DNSChainCache extends DNSDependentCache<DNSChainCache.Entry> {
+
+    private final LongAdder hitCount = new LongAdder();
+
+    /**
+     * Creates an empty chain cache, kept consistent with the records of a DNSCache until it is closed.
+     *
+     * @param cache      The cache the chains are built from.
+     * @param maxEntries Maximum number of chains kept. Chains are not added once the cache is full.
+     */
+    DNSChainCache(DNSCache cache, int maxEntries) {
+        super(cache, maxEntries);
+    }
+
+    /**
+     * Returns the results cached for a question, if its chain is still valid and does not need more indirection
+     * levels than allowed.
+     *
+     * @param question             The question being looked up.
+     * @param maxIndirectionLevels Number of CNAME indirection levels allowed.
+     * @return A new list with the records of the chain and its answers, or null if no valid chain is cached.
+     */
+    List<ResourceRecord> get(DNSQuestion question, int maxIndirectionLevels) {
+        Entry entry = getEntry(question, System.nanoTime());
+        if (entry == null || entry.levels > maxIndirectionLevels) return null;
+        hitCount.increment();
+        for (DNSName name : entry.names)
+            getCache().recordLookup(new DNSQuestion(name, question.getRecordType(), question.getRecordClass()));
+        return new ArrayList<>(entry.records);
+    }
+
+    /**
+     * Keeps the results of a question whose CNAME chain was followed, unless an invalidation happened since the
+     * records of the chain were read.
+     *
+     * @param question   The question that was looked up.
+     * @param records    The records returned for the question: the CNAME records of the chain and its answers.
+     * @param bounds     Other records whose expiration ends the validity of the chain, e.g., the SOA records of
+     *                   negative answers at the end of the chain.
+     * @param names      The names whose records the chain was built from, i.e., all names of the chain.
+     * @param levels     Number of CNAME indirection levels needed to follow the chain.
+     * @param ratio      The fraction of the TTL of the records during which they are refreshed ahead of their
+     *                   expiration.
+     * @param generation The generation returned by getGeneration before the records were read.
+     */
+    void put(DNSQuestion question, Collection<ResourceRecord> records, Collection<ResourceRecord> bounds,
+             Collection<DNSName> names, int levels, double ratio, long generation) {
+        if (isFull()) return;
+        long refreshNanos = earliestRefresh(earliestRefresh(Long.MAX_VALUE, records, ratio), bounds, ratio);
+        putEntry(question, new Entry(new ArrayList<>(records), names.toArray(new DNSName[0]), levels, refreshNanos),
+                names, generation);
+    }
+
+    /**
+     * Returns the number of lookups answered by get.
+     *
+     * @return The number of hits since the chain cache was created.
+     */
+    long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * The flattened results of a CNAME chain.
+     */
+    static class Entry extends DNSDependentCache.Entry {
+        private final List<ResourceRecord> records;
+        private final DNSName[] names;
+        private final int levels;
+
+        private Entry(List<ResourceRecord> records, DNSName[] names, int levels, long refreshNanos) {
+            super(refreshNanos);
+            this.records = records;
+            this.names = names;
+            this.levels = levels;
+        }
+    }
+}
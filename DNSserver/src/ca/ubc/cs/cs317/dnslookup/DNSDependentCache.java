@@ -0,0 +1,177 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of data derived from the records of DNSCache, keyed by the question it answers. Entries are discarded
+ * whenever the records they were derived from change: the cache listens to the invalidations of DNSCache, and discards
+ * every entry that used a name whose records were added, removed, evicted or expired. An entry also expires on its own
+ * when the first of its records is due for a refresh (see DNSLookupService.setPrefetchRatio), so that the lookup
+ * service sees the question again and can refresh its records ahead of their expiration.
+ * <p>
+ * An entry derived while the records it uses are being changed must not be kept, as its invalidation may already have
+ * happened. Callers therefore read the generation of the cache before reading the records, and the entry is only kept
+ * if no invalidation happened since.
+ *
+ * @param <E> The type of the entries.
+ */
+abstract class DNSDependentCache<E extends DNSDependentCache.Entry> implements DNSCache.InvalidationListener {
+
+    private final DNSCache cache;
+    private final int maxEntries;
+    private final Map<DNSQuestion, E> entries = new ConcurrentHashMap<>();
+    private final Map<DNSName, Set<DNSQuestion>> dependents = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Creates an empty cache, kept consistent with the records of a DNSCache until it is closed.
+     *
+     * @param cache      The cache the entries are derived from.
+     * @param maxEntries Maximum number of entries kept. Entries are not added once the cache is full.
+     */
+    DNSDependentCache(DNSCache cache, int maxEntries) {
+        this.cache = cache;
+        this.maxEntries = maxEntries;
+        cache.addInvalidationListener(this);
+    }
+
+    /**
+     * Stops listening to the invalidations of the DNSCache, and discards all entries.
+     */
+    void close() {
+        cache.removeInvalidationListener(this);
+        invalidateAll();
+    }
+
+    /**
+     * Returns the cache the entries are derived from.
+     *
+     * @return The DNSCache given to the constructor.
+     */
+    DNSCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns a value that changes every time any entry is invalidated. Must be read before reading the records an
+     * entry is derived from, and passed to put.
+     *
+     * @return The current generation.
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Returns the entry of a question, if it is not due for a refresh. An entry due for a refresh is discarded.
+     *
+     * @param question The question of the entry.
+     * @param now      The current time, as returned by System.nanoTime().
+     * @return The entry, or null if no valid entry is kept for the question.
+     */
+    E getEntry(DNSQuestion question, long now) {
+        E entry = entries.get(question);
+        if (entry == null) return null;
+        if (isDue(entry, now)) {
+            entries.remove(question, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private static boolean isDue(Entry entry, long now) {
+        // An entry derived from no records has no refresh time, and is never kept
+        return entry.refreshNanos == Long.MAX_VALUE || entry.refreshNanos - now <= 0;
+    }
+
+    /**
+     * Returns true if no more entries are added.
+     *
+     * @return true if the cache has its maximum number of entries.
+     */
+    boolean isFull() {
+        return entries.size() >= maxEntries;
+    }
+
+    /**
+     * Keeps the entry of a question, unless the cache is full, the entry is already due for a refresh, or an
+     * invalidation happened since the records it was derived from were read.
+     *
+     * @param question   The question of the entry.
+     * @param entry      The entry.
+     * @param names      The names whose records the entry was derived from, e.g., all names of a CNAME chain.
+     * @param generation The generation returned by getGeneration before the records were read.
+     */
+    void putEntry(DNSQuestion question, E entry, Collection<DNSName> names, long generation) {
+        if (isFull() || isDue(entry, System.nanoTime())) return;
+        for (DNSName name : names)
+            dependents.computeIfAbsent(name, n -> ConcurrentHashMap.newKeySet()).add(question);
+        entries.put(question, entry);
+        // An invalidation since the records were read may have missed the entry, which is then discarded again
+        if (this.generation.get() != generation)
+            entries.remove(question, entry);
+    }
+
+    /**
+     * Returns the time when the first of some records is due for a refresh, if it is earlier than a given time.
+     *
+     * @param refreshNanos The earliest refresh time found so far, or Long.MAX_VALUE if none was found.
+     * @param records      The records an entry is derived from.
+     * @param ratio        The fraction of the TTL of the records during which they are refreshed ahead of their
+     *                     expiration.
+     * @return The earliest refresh time, or Long.MAX_VALUE if there are no records and none was found so far.
+     */
+    static long earliestRefresh(long refreshNanos, Collection<ResourceRecord> records, double ratio) {
+        for (ResourceRecord record : records) {
+            long refresh = record.getRefreshNanos(ratio);
+            if (refreshNanos == Long.MAX_VALUE || refresh - refreshNanos < 0)
+                refreshNanos = refresh;
+        }
+        return refreshNanos;
+    }
+
+    /**
+     * Returns the number of entries currently kept, including entries that are due for a refresh but were not looked
+     * up since.
+     *
+     * @return The number of entries.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void invalidate(DNSQuestion question) {
+        generation.incrementAndGet();
+        Set<DNSQuestion> questions = dependents.remove(question.getName());
+        if (questions != null)
+            for (DNSQuestion dependent : questions)
+                entries.remove(dependent);
+    }
+
+    @Override
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.clear();
+        dependents.clear();
+    }
+
+    /**
+     * The data kept for a question.
+     */
+    static class Entry {
+        private final long refreshNanos;
+
+        /**
+         * @param refreshNanos The time when the first of the records the entry is derived from is due for a refresh,
+         *                     as returned by earliestRefresh.
+         */
+        Entry(long refreshNanos) {
+            this.refreshNanos = refreshNanos;
+        }
+    }
+}
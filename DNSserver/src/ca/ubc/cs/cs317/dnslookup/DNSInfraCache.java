@@ -0,0 +1,256 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps track of how fast and how reliable each nameserver is, so that the fastest of the nameservers of a zone can be
+ * queried first. This is the "infrastructure" cache of a resolver, as opposed to the cache of records.
+ * <p>
+ * Each nameserver has a smoothed round-trip time (SRTT) and an RTT variance, updated with every response as in TCP
+ * (RFC 6298), and a count of consecutive timeouts. A timeout counts as a sample of the whole time waited, and doubles
+ * the SRTT, so servers that stop answering are quickly avoided. Selection follows the approach of BIND: the server
+ * with the lowest SRTT is chosen, and the SRTT of the other candidates is decayed a little every time they are passed
+ * over, so that slower servers are eventually tried again, and a server that became faster is noticed. Servers that
+ * were never queried get a small random SRTT, so that every server of a zone is tried early on.
+ * <p>
+ * The retransmission timeout (RTO) of a server is derived from these statistics as in TCP: SRTT + 4 * RTTVAR, bounded
+ * by MIN_RTO and MAX_RTO, and doubled with every retransmission to the same server. Servers without statistics get
+ * INITIAL_RTO.
+ * <p>
+ * Statistics of servers that have not been queried for a while are forgotten, as the network may have changed since.
+ */
+class DNSInfraCache {
+
+    private static final DNSInfraCache INSTANCE = new DNSInfraCache();
+
+    /**
+     * Bounds of the random SRTT given to servers that were never queried, in microseconds.
+     */
+    private static final int MIN_INITIAL_SRTT = 1_000;
+    private static final int MAX_INITIAL_SRTT = 32_000;
+    /**
+     * Upper bound of the SRTT, in microseconds, so that a server that timed out many times is still tried eventually.
+     */
+    private static final long MAX_SRTT = 30_000_000;
+    /**
+     * Factor applied to the SRTT of the candidates that were not chosen, as in BIND.
+     */
+    private static final double DECAY = 0.98;
+    /**
+     * Bounds of the retransmission timeout, in milliseconds. The upper bound is the fixed timeout used before
+     * timeouts were adaptive, so a query never waits longer than it used to.
+     */
+    static final int MIN_RTO = 50;
+    static final int MAX_RTO = 5000;
+    /**
+     * Retransmission timeout of servers without statistics, in milliseconds, as used by Unbound.
+     */
+    static final int INITIAL_RTO = 376;
+    private static final long EXPIRATION_NANOS = 15 * 60 * 1_000_000_000L;
+    private static final int CLEANUP_THRESHOLD = 10_000;
+
+    private final Map<InetAddress, ServerStats> servers = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the infrastructure cache shared by all lookup services.
+     *
+     * @return The shared instance.
+     */
+    static DNSInfraCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Chooses the nameserver to be queried among a list of equivalent candidates, e.g., the addresses of the
+     * nameservers of the same zone. The SRTT of the candidates that are not chosen is decayed.
+     *
+     * @param candidates The addresses of the candidates. Must not be empty.
+     * @return The candidate with the lowest SRTT.
+     */
+    InetAddress select(List<InetAddress> candidates) {
+        if (candidates.size() == 1) return candidates.get(0);
+        long now = System.nanoTime();
+        ServerStats best = null;
+        for (InetAddress candidate : candidates) {
+            ServerStats stats = getStats(candidate, now);
+            if (best == null || stats.srtt() < best.srtt())
+                best = stats;
+        }
+        for (InetAddress candidate : candidates) {
+            ServerStats stats = servers.get(candidate);
+            if (stats != null && stats != best)
+                stats.decay();
+        }
+        return best.address;
+    }
+
+    /**
+     * Records the round-trip time of a query that was answered. Only queries answered on their first transmission must
+     * be recorded, as the response to a retransmitted query may be the response to any of its transmissions (Karn's
+     * algorithm).
+     *
+     * @param server    The nameserver that answered.
+     * @param rttMicros The time between the transmission of the query and the reception of the response, in
+     *                  microseconds.
+     */
+    void recordRtt(InetAddress server, long rttMicros) {
+        getStats(server, System.nanoTime()).sample(Math.max(1, rttMicros));
+    }
+
+    /**
+     * Records a query that was not answered in time.
+     *
+     * @param server        The nameserver that did not answer.
+     * @param waitedMicros  The time waited for a response, in microseconds.
+     */
+    void recordTimeout(InetAddress server, long waitedMicros) {
+        getStats(server, System.nanoTime()).timeout(waitedMicros);
+    }
+
+    /**
+     * Returns the time to wait for the response to a query before the query is considered lost.
+     *
+     * @param server  The nameserver the query is sent to.
+     * @param retries The number of times the query was already sent to this server without a response.
+     * @return The retransmission timeout, in milliseconds, between MIN_RTO and MAX_RTO.
+     */
+    int getRetransmissionTimeout(InetAddress server, int retries) {
+        ServerStats stats = peek(server);
+        long rto = stats == null ? INITIAL_RTO : stats.rto();
+        for (int i = 0; i < retries && rto < MAX_RTO; i++)
+            rto *= 2;
+        return (int) Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+    }
+
+    /**
+     * Returns the smoothed round-trip time of a nameserver.
+     *
+     * @param server The address of the nameserver.
+     * @return The SRTT in microseconds, or -1 if the server has no statistics.
+     */
+    long getSmoothedRtt(InetAddress server) {
+        ServerStats stats = peek(server);
+        return stats == null ? -1 : stats.srtt();
+    }
+
+    /**
+     * Returns the RTT variance of a nameserver.
+     *
+     * @param server The address of the nameserver.
+     * @return The RTT variance in microseconds, or -1 if the server has no statistics.
+     */
+    long getRttVariance(InetAddress server) {
+        ServerStats stats = peek(server);
+        return stats == null ? -1 : stats.rttvar();
+    }
+
+    /**
+     * Returns the number of consecutive queries a nameserver did not answer.
+     *
+     * @param server The address of the nameserver.
+     * @return The number of timeouts since the last response from the server.
+     */
+    int getTimeoutCount(InetAddress server) {
+        ServerStats stats = peek(server);
+        return stats == null ? 0 : stats.timeouts();
+    }
+
+    /**
+     * Forgets the statistics of all nameservers.
+     */
+    void reset() {
+        servers.clear();
+    }
+
+    private ServerStats peek(InetAddress server) {
+        ServerStats stats = servers.get(server);
+        return stats == null || System.nanoTime() - stats.lastUpdated() >= EXPIRATION_NANOS ? null : stats;
+    }
+
+    private ServerStats getStats(InetAddress server, long now) {
+        ServerStats stats = servers.get(server);
+        if (stats != null && now - stats.lastUpdated() < EXPIRATION_NANOS)
+            return stats;
+        if (servers.size() >= CLEANUP_THRESHOLD)
+            servers.values().removeIf(s -> now - s.lastUpdated() >= EXPIRATION_NANOS);
+        ServerStats fresh = new ServerStats(server, now);
+        if (stats == null) {
+            stats = servers.putIfAbsent(server, fresh);
+            return stats == null ? fresh : stats;
+        }
+        // Expired statistics are replaced, unless another thread replaced them already
+        return servers.replace(server, stats, fresh) ? fresh : servers.getOrDefault(server, fresh);
+    }
+
+    /**
+     * The statistics of a single nameserver. Times are kept in microseconds.
+     */
+    private static class ServerStats {
+        private final InetAddress address;
+        private long srtt;
+        private long rttvar;
+        private int timeouts;
+        private boolean sampled;
+        private long lastUpdated;
+
+        private ServerStats(InetAddress address, long now) {
+            this.address = address;
+            this.srtt = ThreadLocalRandom.current().nextInt(MIN_INITIAL_SRTT, MAX_INITIAL_SRTT + 1);
+            this.rttvar = srtt / 2;
+            this.lastUpdated = now;
+        }
+
+        private synchronized long srtt() {
+            return srtt;
+        }
+
+        private synchronized long rttvar() {
+            return rttvar;
+        }
+
+        private synchronized int timeouts() {
+            return timeouts;
+        }
+
+        private synchronized long lastUpdated() {
+            return lastUpdated;
+        }
+
+        /**
+         * Returns the retransmission timeout in milliseconds, before bounds and backoff are applied.
+         */
+        private synchronized long rto() {
+            if (!sampled && timeouts == 0) return INITIAL_RTO;
+            return (srtt + 4 * rttvar + 999) / 1000;
+        }
+
+        private synchronized void sample(long rtt) {
+            if (!sampled) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+                sampled = true;
+            } else {
+                // RFC 6298: alpha = 1/8, beta = 1/4
+                rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+                srtt += (rtt - srtt) / 8;
+            }
+            timeouts = 0;
+            lastUpdated = System.nanoTime();
+        }
+
+        private synchronized void timeout(long waited) {
+            timeouts++;
+            srtt = Math.min(MAX_SRTT, Math.max(2 * srtt, waited));
+            rttvar = Math.min(MAX_SRTT, Math.max(rttvar, srtt / 2));
+            lastUpdated = System.nanoTime();
+        }
+
+        private synchronized void decay() {
+            srtt = Math.max(1, (long) (srtt * DECAY));
+        }
+    }
+}
@@ -1,15 +1,26 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import javax.management.JMException;
 import java.io.Console;
+import java.io.IOException;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class DNSLookupCUI implements DNSVerbosePrinter {
 
     public static final int MAX_INDIRECTION_LEVEL = 10;
+    public static final int DEFAULT_BATCH_PARALLELISM = 64;
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 300;
 
     private static boolean verboseTracing = false;
     private static DNSLookupService lookupService;
+    private static DNSCachingServer server;
     private static final DNSCache cache = DNSCache.getInstance();
 
     /**
@@ -37,6 +48,28 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
             System.exit(1);
         }
         System.out.println("Nameserver is: " + lookupService.getNameServer());
+        try {
+            lookupService.getMetrics().register("cui");
+        } catch (JMException e) {
+            System.err.println("Metrics not exported over JMX: " + e.getMessage());
+        }
+
+        // Warm start: restore the cache saved by a previous run, and keep saving it while running
+        String snapshotFile = System.getProperty("dnslookup.cache.snapshot");
+        ScheduledExecutorService snapshots = null;
+        if (snapshotFile != null) {
+            Path snapshot = Paths.get(snapshotFile);
+            if (Files.exists(snapshot))
+                loadSnapshot(snapshot);
+            long interval = Long.getLong("dnslookup.cache.snapshotInterval", DEFAULT_SNAPSHOT_INTERVAL);
+            snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshots.scheduleWithFixedDelay(() -> saveSnapshot(snapshot, false), interval, interval,
+                    TimeUnit.SECONDS);
+        }
 
         Scanner in = new Scanner(System.in);
         Console console = System.console();
@@ -115,28 +148,142 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
                     continue;
                 }
                 findAndPrintResults(commandArgs[1], type);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Resolve all names listed in a file concurrently
+                int parallelism = DEFAULT_BATCH_PARALLELISM;
+                if (commandArgs.length == 3) {
+                    try {
+                        parallelism = Integer.parseInt(commandArgs[2]);
+                    } catch (NumberFormatException ex) {
+                        parallelism = 0;
+                    }
+                }
+                if ((commandArgs.length != 2 && commandArgs.length != 3) || parallelism < 1) {
+                    System.err.println("Invalid call. Format:\n\tbatch file [parallelism]");
+                    continue;
+                }
+                resolveBatch(commandArgs[1], parallelism);
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachQuestion(DNSLookupCUI::printResults);
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print the metrics of the resolver
+                System.out.print(lookupService.getMetrics().dump());
             } else if (commandArgs[0].equalsIgnoreCase("reset")) {
                 // RESET: Remove all entries from the cache
                 cache.reset();
+            } else if (commandArgs[0].equalsIgnoreCase("save") && commandArgs.length == 2) {
+                // SAVE: Write a snapshot of the cache to a file
+                saveSnapshot(Paths.get(commandArgs[1]), true);
+            } else if (commandArgs[0].equalsIgnoreCase("load") && commandArgs.length == 2) {
+                // LOAD: Add the records of a snapshot file to the cache
+                loadSnapshot(Paths.get(commandArgs[1]));
+            } else if (commandArgs[0].equalsIgnoreCase("serve") && commandArgs.length >= 2 && commandArgs.length <= 3) {
+                // SERVE: Answer queries from other processes, or stop doing so
+                if (commandArgs[1].equalsIgnoreCase("stop"))
+                    stopServer();
+                else
+                    startServer(commandArgs);
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
+                System.err.println("\tbatch file [parallelism]");
                 System.err.println("\tverbose on|off");
                 System.err.println("\tserver IP");
                 System.err.println("\tdump");
+                System.err.println("\tstats");
                 System.err.println("\treset");
+                System.err.println("\tsave file");
+                System.err.println("\tload file");
+                System.err.println("\tserve port [receivers]");
+                System.err.println("\tserve stop");
                 System.err.println("\tquit");
             }
 
         } while (true);
 
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+            saveSnapshot(Paths.get(snapshotFile), true);
+        }
+        stopServer();
         lookupService.close();
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Writes a snapshot of the cache to a file, reporting any error on the standard error.
+     *
+     * @param file    The snapshot file.
+     * @param verbose true to print the number of records saved, false to save silently.
+     */
+    private static void saveSnapshot(Path file, boolean verbose) {
+        try {
+            int records = cache.writeSnapshot(file);
+            if (verbose)
+                System.out.println("Saved " + records + " records to " + file);
+        } catch (IOException e) {
+            System.err.println("Could not save cache snapshot to " + file + " (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Adds the records of a snapshot file to the cache, reporting the number of records restored.
+     *
+     * @param file The snapshot file.
+     */
+    private static void loadSnapshot(Path file) {
+        long start = System.nanoTime();
+        try {
+            int records = cache.loadSnapshot(file);
+            System.out.printf("Restored %d records from %s in %.1f ms\n", records, file,
+                    (System.nanoTime() - start) / 1e6);
+        } catch (IOException e) {
+            System.err.println("Could not load cache snapshot from " + file + " (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Starts a caching server answering queries on a UDP port, replacing the server already running, if any.
+     *
+     * @param commandArgs The arguments of the serve command: the port, optionally followed by the number of receiver
+     *                    threads.
+     */
+    private static void startServer(String[] commandArgs) {
+        int port;
+        int receivers = DNSCachingServer.DEFAULT_RECEIVERS;
+        try {
+            port = Integer.parseInt(commandArgs[1]);
+            if (commandArgs.length == 3)
+                receivers = Integer.parseInt(commandArgs[2]);
+        } catch (NumberFormatException ex) {
+            port = -1;
+        }
+        if (port < 0 || port > 0xffff || receivers < 1) {
+            System.err.println("Invalid call. Format:\n\tserve port [receivers]\n\tserve stop");
+            return;
+        }
+        stopServer();
+        try {
+            server = new DNSCachingServer(lookupService, new InetSocketAddress(port), receivers);
+            System.out.println("Serving queries on port " + server.getLocalAddress().getPort() + " with " +
+                    receivers + " receivers");
+        } catch (IOException e) {
+            System.err.println("Could not listen on port " + port + " (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Stops the caching server, if one is running, and prints the number of queries it answered.
+     */
+    private static void stopServer() {
+        if (server == null) return;
+        server.close();
+        System.out.printf("Server stopped after %d queries (%d answered from cache, %d errors)\n",
+                server.getQueryCount(), server.getCachedAnswerCount(), server.getErrorCount());
+        server = null;
+    }
+
     public static void setVerboseTracing(boolean onoff) {
         verboseTracing = onoff;
     }
@@ -159,6 +306,71 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
         }
     }
 
+    /**
+     * Resolves all the names listed in a file concurrently, printing the results of each name as soon as they are
+     * available, followed by the throughput and latency percentiles of the batch. Each line of the file contains a host
+     * name, optionally followed by a record type (A by default). Empty lines and anything after a comment character
+     * are ignored.
+     *
+     * @param fileName    Name of the file containing the host names.
+     * @param parallelism Maximum number of names being resolved at the same time.
+     */
+    private static void resolveBatch(String fileName, int parallelism) {
+
+        List<DNSQuestion> questions = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(fileName))) {
+                String[] fields = line.split("#", 2)[0].trim().split("\\s+");
+                if (fields[0].isEmpty()) continue;
+                try {
+                    RecordType type = fields.length > 1 ? RecordType.valueOf(fields[1].toUpperCase()) : RecordType.A;
+                    questions.add(new DNSQuestion(fields[0], type, RecordClass.IN));
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid query type for " + fields[0] + ": " + fields[1]);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read " + fileName + " (" + e.getMessage() + ").");
+            return;
+        }
+
+        long resolutions = lookupService.getResolutionCount();
+        long coalesced = lookupService.getCoalescedCount();
+        long start = System.nanoTime();
+        long[] latencies = lookupService.resolveAll(questions, parallelism, MAX_INDIRECTION_LEVEL).mapToLong(resolution -> {
+            if (resolution.getFailure() instanceof DNSLookupService.CNameIndirectionLimitException)
+                System.err.println(resolution.getQuestion() + ": maximum level of CNAME redirection reached without a result.");
+            else
+                printResults(resolution.getQuestion(), resolution.getResults());
+            return resolution.getElapsedNanos();
+        }).sorted().toArray();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Resolved %d names in %.3f s (%.1f names/s)\n", latencies.length, seconds,
+                latencies.length / seconds);
+        if (latencies.length > 0)
+            System.out.printf("Latency (ms): p50 %.1f  p90 %.1f  p99 %.1f  max %.1f\n",
+                    percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                    latencies[latencies.length - 1] / 1e6);
+        resolutions = lookupService.getResolutionCount() - resolutions;
+        coalesced = lookupService.getCoalescedCount() - coalesced;
+        if (resolutions > 0)
+            System.out.printf("Coalesced %d of %d resolutions (%.1f%%)\n", coalesced, resolutions,
+                    100.0 * coalesced / resolutions);
+    }
+
+    /**
+     * Returns a percentile of a sorted array of latencies, using the nearest-rank method.
+     *
+     * @param sortedNanos Latencies in nanoseconds, sorted in ascending order. Must not be empty.
+     * @param percentile  The percentile to be returned, between 0 and 100.
+     * @return The latency at the specified percentile, in milliseconds.
+     */
+    private static double percentile(long[] sortedNanos, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * sortedNanos.length);
+        return sortedNanos[Math.max(0, rank - 1)] / 1e6;
+    }
+
     /**
      * If verbose tracing is on, prints a specific query before it is sent to the server. If verbose tracing is off,
      * does nothing.
@@ -240,6 +452,11 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
             printResourceRecord(record, typeCode, classCode);
     }
 
+    @Override
+    public boolean isPrintingRecords() {
+        return verboseTracing;
+    }
+
     private static void printResourceRecord(ResourceRecord record, int typeCode, int classCode) {
         System.out.format("       %-30s %-10d %-5s %-5s %s\n",
                 record.getHostName().isEmpty() ? "(root)" : record.getHostName(),
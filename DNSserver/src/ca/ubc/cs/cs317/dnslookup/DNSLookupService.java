@@ -5,19 +5,60 @@ import java.net.*;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class DNSLookupService {
     public static final int DEFAULT_DNS_PORT = 53;
     private static final int MAX_INDIRECTION_LEVEL_NS = 10;
+    private static final int MAX_INDIRECTION_LEVEL_CNAME = 10;
     private static final int MAX_QUERY_ATTEMPTS = 3;
+    private static final int MAX_REFERRALS = 16;
+    private static final int NXDOMAIN = 3;
+    private static final int STALE_ANSWER_TTL = 30;
+    private static final int DEFAULT_MAX_CACHED_CHAINS = 100_000;
+    private static final double DEFAULT_PREFETCH_RATIO = 0.1;
     protected static final int SO_TIMEOUT = 5000;
 
     private final DNSCache cache = DNSCache.getInstance();
+    private final DNSInfraCache infra = DNSInfraCache.getInstance();
     private final Random random = new SecureRandom();
     private final DNSVerbosePrinter verbose;
     private final DatagramSocket socket;
-    private InetAddress nameServer;
+    private DNSQueryEngine engine;
+    private boolean closed;
+    private volatile InetAddress nameServer;
+    private volatile List<InetAddress> rootServers;
+    private volatile int port = Integer.getInteger("dnslookup.port", DEFAULT_DNS_PORT);
+    private final Map<DNSQuestion, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder resolutionCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder prefetchCount = new LongAdder();
+    private final LongAdder staleAnswerCount = new LongAdder();
+    private final LongAdder hedgeCount = new LongAdder();
+    private final LongAdder hedgeWinCount = new LongAdder();
+    private final LongAdder tcpFallbackCount = new LongAdder();
+    private final DNSMetrics metrics = new DNSMetrics(this, cache);
+    private final DNSChainCache chainCache = new DNSChainCache(cache,
+            Integer.getInteger("dnslookup.cname.maxCachedChains", DEFAULT_MAX_CACHED_CHAINS));
+    private volatile int ednsPayloadSize = Integer.getInteger("dnslookup.edns.payload",
+            DNSMessage.DEFAULT_EDNS_PAYLOAD_SIZE);
+    private volatile int hedgeServers = Integer.getInteger("dnslookup.hedge.servers", 1);
+    private volatile int hedgeDelay = Integer.getInteger("dnslookup.hedge.delay", 0);
+    private volatile int tcpIdleTimeout = Integer.getInteger("dnslookup.tcp.idleTimeout",
+            DNSQueryEngine.DEFAULT_TCP_IDLE_TIMEOUT_MILLIS);
+    private volatile double prefetchRatio = Double.parseDouble(
+            System.getProperty("dnslookup.prefetch.ratio", String.valueOf(DEFAULT_PREFETCH_RATIO)));
 
     /**
      * Creates a new lookup service. Also initializes the datagram socket object with a default timeout.
@@ -49,7 +90,8 @@ public class DNSLookupService {
      * Updates the nameserver to be used in all future queries.
      *
      * @param nameServer The nameserver to be used initially. If set to null, "root" or "random", will choose a random
-     *                   pre-determined root nameserver.
+     *                   pre-determined root nameserver. Each resolution then starts at the root nameserver with the
+     *                   lowest round-trip time, as it does at every referral (see iterativeQuery).
      * @throws UnknownHostException If the nameserver is not a valid server.
      */
     public void setNameServer(String nameServer) throws UnknownHostException {
@@ -57,34 +99,461 @@ public class DNSLookupService {
         // If none provided, choose a random root nameserver
         if (nameServer == null || nameServer.equalsIgnoreCase("random") || nameServer.equalsIgnoreCase("root")) {
             List<ResourceRecord> rootNameServers = cache.getCachedResults(DNSCache.rootQuestion, false);
-            nameServer = rootNameServers.get(0).getTextResult();
+            List<InetAddress> addresses = new ArrayList<>(rootNameServers.size());
+            for (ResourceRecord record : rootNameServers)
+                addresses.add(InetAddress.getByName(record.getTextResult()));
+            this.nameServer = addresses.get(0);
+            this.rootServers = addresses;
+        } else {
+            this.nameServer = InetAddress.getByName(nameServer);
+            this.rootServers = null;
         }
-        this.nameServer = InetAddress.getByName(nameServer);
+    }
+
+    /**
+     * Returns the nameservers where a new resolution may start: the nameserver set with setNameServer, or all root
+     * nameservers if the service was set to use the root nameservers, in which case the fastest one is queried first.
+     *
+     * @return The addresses of the nameservers that may be queried first.
+     */
+    private List<InetAddress> getStartServers() {
+        List<InetAddress> roots = rootServers;
+        return roots != null ? roots : Collections.singletonList(nameServer);
+    }
+
+    /**
+     * Returns the nameservers of the closest known zone cut of a question: the nameservers of the closest zone
+     * enclosing the question's name whose NS records are cached along with the address of at least one of its
+     * nameservers. A resolution starting there skips the referrals from the root down to that zone, so a question
+     * under a known zone usually needs a single query. Zones are found by walking up the labels of the name, which are
+     * interned along with their parents (see DNSName), with one cache probe per label. The root zone is not included,
+     * as the start servers are used for it.
+     * <p>
+     * NS records are only cached if they were received from a server of a zone they are in (see
+     * processResponse(response, zone)), so a server cannot make itself the zone cut of a zone it does not serve.
+     *
+     * @param question The question about to be resolved.
+     * @return The closest known zone cut, or null if there is none.
+     */
+    private ZoneCut getZoneCut(DNSQuestion question) {
+        for (DNSName zone = question.getName(); !zone.isRoot(); zone = zone.getParent()) {
+            List<ResourceRecord> nameservers = cache.getCachedNameServers(zone, question.getRecordClass());
+            if (nameservers.isEmpty()) continue;
+            List<InetAddress> known = knownNameServers(nameservers);
+            if (!known.isEmpty()) {
+                metrics.recordZoneCut();
+                return new ZoneCut(zone, known);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the UDP port nameservers are queried on.
+     *
+     * @return The port number, 53 unless changed.
+     */
+    public int getNameServerPort() {
+        return port;
+    }
+
+    /**
+     * Sets the UDP port nameservers are queried on, e.g., to query servers listening on another port than the standard
+     * DNS port. The initial value is taken from the system property dnslookup.port, and is 53 by default.
+     *
+     * @param port The port number.
+     */
+    public void setNameServerPort(int port) {
+        if (port <= 0 || port > 0xffff)
+            throw new IllegalArgumentException("Invalid port number: " + port);
+        this.port = port;
     }
 
     /**
      * Closes the lookup service and related sockets and resources.
      */
     public void close() {
+        metrics.unregister();
+        chainCache.close();
         socket.close();
+        DNSQueryEngine engine;
+        synchronized (this) {
+            closed = true;
+            engine = this.engine;
+        }
+        // Not closed while holding the lock, as lookups failed by the engine may ask for it again from its thread
+        if (engine != null) engine.close();
+    }
+
+    /**
+     * Returns the metrics of the lookups of this service, e.g., to print them or to export them over JMX.
+     *
+     * @return The metrics of this service.
+     */
+    public DNSMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the non-blocking engine used by asynchronous lookups, creating it the first time it is needed, or when
+     * the previous engine was closed because its channel failed.
+     *
+     * @return The query engine of this service.
+     * @throws IOException If the engine's channel cannot be opened, or the service is closed.
+     */
+    private synchronized DNSQueryEngine getEngine() throws IOException {
+        if (closed)
+            throw new IOException("Lookup service closed");
+        // A failed engine is not closed here, as its thread may be failing lookups that ask for an engine again
+        if (engine == null || !engine.isOpen()) {
+            engine = new DNSQueryEngine(SO_TIMEOUT, MAX_QUERY_ATTEMPTS);
+            engine.setTcpIdleTimeout(tcpIdleTimeout);
+        }
+        return engine;
+    }
+
+    /**
+     * Sets the fraction of the TTL of cached records during which they are refreshed ahead of their expiration. A
+     * lookup answered from the cache with a record whose remaining time is at most this fraction of its TTL starts a
+     * background resolution of the question, so popular records are renewed before they expire and lookups do not wait
+     * for a resolution at the TTL boundary. The initial value is taken from the system property
+     * dnslookup.prefetch.ratio, and is 0.1 (the last 10% of the TTL) by default.
+     *
+     * @param ratio The fraction of the TTL, between 0 and 1. Set to 0 to disable prefetching.
+     */
+    public void setPrefetchRatio(double ratio) {
+        if (!(ratio >= 0 && ratio <= 1))
+            throw new IllegalArgumentException("Prefetch ratio must be between 0 and 1");
+        this.prefetchRatio = ratio;
+    }
+
+    /**
+     * Returns the fraction of the TTL of cached records during which they are refreshed ahead of their expiration.
+     *
+     * @return The prefetch ratio, between 0 and 1.
+     */
+    public double getPrefetchRatio() {
+        return prefetchRatio;
+    }
+
+    /**
+     * Sets the UDP payload size advertised to nameservers with an EDNS0 OPT record (RFC 6891). Nameservers send
+     * responses up to this size over UDP instead of truncating them at 512 bytes, so large referrals keep their glue
+     * records. Responses that are still truncated are fetched again over TCP. The initial value is taken from the
+     * system property dnslookup.edns.payload, and is 1232 bytes by default.
+     *
+     * @param size The payload size in bytes, between 512 and DNSMessage.MAX_UDP_PAYLOAD_SIZE, or 0 to send queries
+     *             without an OPT record.
+     */
+    public void setEdnsPayloadSize(int size) {
+        if (size != 0 && (size < DNSMessage.MAX_DNS_MESSAGE_LENGTH || size > DNSMessage.MAX_UDP_PAYLOAD_SIZE))
+            throw new IllegalArgumentException("Invalid EDNS payload size: " + size);
+        this.ednsPayloadSize = size;
+    }
+
+    /**
+     * Sets the time after which a TCP connection to a nameserver is closed if no query is sent on it. Queries sent over
+     * TCP reuse the connections to the same nameserver that are still open, and are pipelined on them (RFC 7766), so
+     * nameservers that truncate many responses are not sent a new connection for each one. The initial value is
+     * taken from the system property dnslookup.tcp.idleTimeout, and is 10 seconds by default.
+     *
+     * @param idleTimeoutMillis The idle timeout, in milliseconds. Set to 0 to close each connection as soon as it has
+     *                          no outstanding query.
+     */
+    public synchronized void setTcpIdleTimeout(int idleTimeoutMillis) {
+        if (idleTimeoutMillis < 0)
+            throw new IllegalArgumentException("Invalid idle timeout: " + idleTimeoutMillis);
+        this.tcpIdleTimeout = idleTimeoutMillis;
+        if (engine != null)
+            engine.setTcpIdleTimeout(idleTimeoutMillis);
+    }
+
+    /**
+     * Returns the number of truncated UDP responses that were fetched again over TCP.
+     *
+     * @return The number of TCP fallbacks since the service was created.
+     */
+    public long getTcpFallbackCount() {
+        return tcpFallbackCount.sum();
+    }
+
+    /**
+     * Configures hedged queries. With hedging, a query is sent to several of the equivalent servers it may be sent to
+     * (e.g., the nameservers of a referral) without waiting for the first one to time out: to a number of servers at
+     * once, and then to one more server every time a delay elapses without a response, until every server was sent
+     * the query. The servers are chosen in order of smoothed round-trip time. The first valid response is used, and
+     * the other transactions are abandoned. Hedging trades more queries for a shorter tail latency.
+     * <p>
+     * The initial values are taken from the system properties dnslookup.hedge.servers and dnslookup.hedge.delay. By
+     * default, queries are sent to one server at once and not hedged.
+     *
+     * @param servers     Number of servers the query is sent to at once. 1 disables immediate hedging.
+     * @param delayMillis Time without a response after which the query is sent to one more server, in milliseconds. 0
+     *                    disables delayed hedging.
+     */
+    public void setHedging(int servers, int delayMillis) {
+        if (servers < 1) throw new IllegalArgumentException("Queries must be sent to at least one server");
+        if (delayMillis < 0) throw new IllegalArgumentException("Hedging delay must not be negative");
+        this.hedgeServers = servers;
+        this.hedgeDelay = delayMillis;
+    }
+
+    /**
+     * Returns the number of hedges sent, i.e., queries sent to another server while an earlier transmission of the
+     * same query was still waiting for a response.
+     *
+     * @return The number of hedges since the service was created.
+     */
+    public long getHedgeCount() {
+        return hedgeCount.sum();
+    }
+
+    /**
+     * Returns the number of hedges that won, i.e., queries whose response was received first from a server that was
+     * sent a hedge.
+     *
+     * @return The number of winning hedges since the service was created.
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.sum();
+    }
+
+    /**
+     * Returns the number of background resolutions started to refresh cached records before their expiration.
+     *
+     * @return The number of prefetches since the service was created.
+     */
+    public long getPrefetchCount() {
+        return prefetchCount.sum();
+    }
+
+    /**
+     * Returns the number of lookups answered with stale records because no nameserver could provide an answer.
+     *
+     * @return The number of stale answers since the service was created.
+     */
+    public long getStaleAnswerCount() {
+        return staleAnswerCount.sum();
     }
 
     /**
      * Finds all the results for a specific question. If there are valid (not expired) results in the cache, uses these
      * results, otherwise queries the nameserver for new records. If there are CNAME records associated to the question,
-     * they are included in the results as CNAME records (i.e., not queried further).
+     * they are included in the results as CNAME records (i.e., not queried further). If a negative answer is cached
+     * for the question (the name does not exist or has no records of this type), returns an empty set without
+     * querying any nameserver.
+     * <p>
+     * Results that are about to expire are returned from the cache, and refreshed in the background (see
+     * setPrefetchRatio). If no answer can be obtained from the nameservers (e.g., they all time out) and the cache keeps
+     * stale records (see DNSCache.setMaxStale), stale records for the question are returned, with a TTL of 30 seconds
+     * as recommended by RFC 8767.
+     * <p>
+     * A resolution starts at the closest zone enclosing the question whose nameservers are cached with their
+     * addresses, rather than at the nameserver set with setNameServer (see getZoneCut). If no answer is found
+     * from there, e.g., because these nameservers no longer answer, the resolution starts over from that nameserver.
      *
      * @param question Host and record type to be used for search.
      * @return A (possibly empty) set of resource records corresponding to the specific query requested.
      */
     public Collection<ResourceRecord> getResults(DNSQuestion question) {
+        return getResults(question, 0);
+    }
+
+    /**
+     * Finds all the results for a specific question, as in getResults(question), keeping track of the number of
+     * nested lookups required to find the address of nameservers.
+     *
+     * @param question Host and record type to be used for search.
+     * @param depth    Number of lookups of nameserver addresses this lookup is nested in.
+     * @return A (possibly empty) set of resource records corresponding to the specific query requested.
+     */
+    private Collection<ResourceRecord> getResults(DNSQuestion question, int depth) {
 
         Collection<ResourceRecord> results = cache.getCachedResults(question, true);
-        if (results.isEmpty()) {
-            iterativeQuery(question, nameServer);
-            results = cache.getCachedResults(question, true);
+        if (!results.isEmpty()) {
+            prefetchIfDue(question, results);
+            return results;
+        }
+        if (cache.getNegativeResult(question) != null)
+            return results;
+
+        InFlight resolution = new InFlight(depth);
+        InFlight leader = joinInFlight(question, resolution);
+        if (leader != null)
+            return new ArrayList<>(leader.future.join());
+        try {
+            ZoneCut zoneCut = getZoneCut(question);
+            if (zoneCut != null)
+                iterativeQuery(question, zoneCut.servers, zoneCut.zone, depth);
+            // A walk from the zone cut that ends without an answer is retried from the start servers
+            if (zoneCut == null || !isResolved(question))
+                iterativeQuery(question, getStartServers(), DNSName.ROOT, depth);
+            results = getResolvedResults(question);
+            resolution.future.complete(results);
+            return results;
+        } catch (RuntimeException e) {
+            resolution.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(question, resolution);
         }
-        return results;
+    }
+
+    /**
+     * Returns the results of a question once its resolution is complete. If the resolution did not provide any answer,
+     * positive or negative, stale results are used if the cache has any.
+     *
+     * @param question The question that was resolved.
+     * @return The cached results for the question, stale results, or an empty list.
+     */
+    private Collection<ResourceRecord> getResolvedResults(DNSQuestion question) {
+        List<ResourceRecord> results = cache.getCachedResults(question, true);
+        if (!results.isEmpty() || cache.getNegativeResult(question) != null)
+            return results;
+        List<ResourceRecord> stale = cache.getStaleResults(question, true);
+        if (stale.isEmpty())
+            return results;
+        // Stale records are returned with a short TTL, but are not cached again
+        staleAnswerCount.increment();
+        long expiration = System.nanoTime() + STALE_ANSWER_TTL * 1_000_000_000L;
+        List<ResourceRecord> answer = new ArrayList<>(stale.size());
+        for (ResourceRecord record : stale)
+            answer.add(record.withExpiration(expiration));
+        return answer;
+    }
+
+    /**
+     * Starts a background resolution of a question if any of its cached results is about to expire, unless a
+     * resolution of the question is already in flight.
+     *
+     * @param question The question that was answered from the cache.
+     * @param results  The cached results returned for the question.
+     */
+    private void prefetchIfDue(DNSQuestion question, Collection<ResourceRecord> results) {
+        double ratio = prefetchRatio;
+        if (ratio <= 0) return;
+        long now = System.nanoTime();
+        for (ResourceRecord record : results) {
+            if (record.isRefreshDue(now, ratio)) {
+                InFlight resolution = new InFlight(0);
+                if (inFlight.putIfAbsent(question, resolution) == null) {
+                    prefetchCount.increment();
+                    resolveAsync(question, resolution, 0);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Registers a resolution that is about to be started for a question, unless an equivalent resolution is already in
+     * flight, in which case the caller should wait for that one instead (single-flight).
+     * <p>
+     * A resolution nested at a specific depth only joins a resolution of the same or a deeper depth. Every resolution
+     * thus only waits for resolutions deeper than itself, which guarantees that two resolutions never wait for each
+     * other, even when the nameservers of two zones are named in each other's zones.
+     *
+     * @param question   The question about to be resolved.
+     * @param resolution The resolution that will be performed if no equivalent one is in flight.
+     * @return The in-flight resolution to be joined, or null if the caller must perform its own resolution.
+     */
+    private InFlight joinInFlight(DNSQuestion question, InFlight resolution) {
+        resolutionCount.increment();
+        InFlight leader = inFlight.putIfAbsent(question, resolution);
+        if (leader == null || leader.depth < resolution.depth)
+            return null;
+        coalescedCount.increment();
+        return leader;
+    }
+
+    /**
+     * Returns the number of lookups that could not be answered from the cache and required a resolution, including
+     * lookups of nameserver addresses. Lookups that joined a resolution already in flight are included.
+     *
+     * @return The number of resolutions requested since the service was created.
+     */
+    public long getResolutionCount() {
+        return resolutionCount.sum();
+    }
+
+    /**
+     * Returns the number of lookups that joined an identical resolution already in flight, instead of querying
+     * nameservers themselves.
+     *
+     * @return The number of coalesced lookups since the service was created.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    /**
+     * Returns the fraction of resolutions that were coalesced with an identical resolution already in flight.
+     *
+     * @return The coalescing ratio, between 0 and 1.
+     */
+    public double getCoalescingRatio() {
+        long resolutions = resolutionCount.sum();
+        return resolutions == 0 ? 0 : (double) coalescedCount.sum() / resolutions;
+    }
+
+    /**
+     * Finds all the results for a specific question without blocking, as in getResults(question). The iterative
+     * resolution is performed by a non-blocking engine, which keeps any number of queries in flight over a single
+     * channel, so many lookups may be started at the same time from a single thread. The future is usually completed
+     * by the engine's I/O thread, so actions attached to it must not block.
+     *
+     * @param question Host and record type to be used for search.
+     * @return A future completed with a (possibly empty) set of resource records corresponding to the specific query
+     * requested.
+     */
+    public CompletableFuture<Collection<ResourceRecord>> getResultsAsync(DNSQuestion question) {
+        return getResultsAsync(question, 0);
+    }
+
+    /**
+     * Finds all the results for a specific question without blocking, keeping track of the number of nested lookups
+     * required to find the address of nameservers.
+     *
+     * @param question Host and record type to be used for search.
+     * @param depth    Number of lookups of nameserver addresses this lookup is nested in.
+     * @return A future completed with a (possibly empty) set of resource records for the question.
+     */
+    private CompletableFuture<Collection<ResourceRecord>> getResultsAsync(DNSQuestion question, int depth) {
+
+        Collection<ResourceRecord> results = cache.getCachedResults(question, true);
+        if (!results.isEmpty())
+            prefetchIfDue(question, results);
+        if (!results.isEmpty() || cache.getNegativeResult(question) != null)
+            return CompletableFuture.completedFuture(results);
+
+        InFlight resolution = new InFlight(depth);
+        InFlight leader = joinInFlight(question, resolution);
+        if (leader != null)
+            return leader.future.thenApply(ArrayList::new);
+        resolveAsync(question, resolution, depth);
+        return resolution.future.thenApply(ArrayList::new);
+    }
+
+    /**
+     * Performs a registered resolution of a question with the non-blocking engine, and completes it with the results
+     * once it is done.
+     *
+     * @param question   The question to be resolved.
+     * @param resolution The resolution registered as in flight for the question.
+     * @param depth      Number of lookups of nameserver addresses this lookup is nested in.
+     */
+    private void resolveAsync(DNSQuestion question, InFlight resolution, int depth) {
+        ZoneCut zoneCut = getZoneCut(question);
+        CompletableFuture<Void> walk = zoneCut == null ? CompletableFuture.completedFuture(null)
+                : iterativeQueryAsync(question, zoneCut.servers, zoneCut.zone, depth, 0);
+        walk.thenCompose(v -> zoneCut != null && isResolved(question) ? CompletableFuture.<Void>completedFuture(null)
+                : iterativeQueryAsync(question, getStartServers(), DNSName.ROOT, depth, 0)).whenComplete((v, error) -> {
+            inFlight.remove(question, resolution);
+            if (error != null)
+                resolution.future.completeExceptionally(error);
+            else
+                resolution.future.complete(getResolvedResults(question));
+        });
     }
 
     /**
@@ -92,8 +561,12 @@ public class DNSLookupService {
      * results, otherwise queries the nameserver for new records. If there are CNAME records associated to the question,
      * they are retrieved recursively for new records of the same type, and the returning set will contain both the
      * CNAME record and the resulting resource records of the indicated type.
+     * <p>
+     * The results of a question that leads to a CNAME chain are kept as one unit once the chain is followed, until
+     * any of its records changes or is due for a refresh, so looking up the question again does not copy and merge the
+     * records of every name of the chain. The lookup is still recorded in the cache for every name (see DNSChainCache).
      *
-     * @param question             Host and record type to be used for search.
+     * @param question             Host name and record type to be used for search.
      * @param maxIndirectionLevels Number of CNAME indirection levels to support.
      * @return A set of resource records corresponding to the specific query requested.
      * @throws CNameIndirectionLimitException If the number CNAME redirection levels exceeds the value set in
@@ -103,21 +576,203 @@ public class DNSLookupService {
             throws CNameIndirectionLimitException {
 
         if (maxIndirectionLevels < 0) throw new CNameIndirectionLimitException();
+        List<ResourceRecord> chain = chainCache.get(question, maxIndirectionLevels);
+        if (chain != null) return chain;
 
-        Collection<ResourceRecord> directResults = getResults(question);
-        if (directResults.isEmpty() || question.getRecordType() == RecordType.CNAME)
-            return directResults;
+        long generation = chainCache.getGeneration();
+        List<ResourceRecord> results = new ArrayList<>();
+        followCNames(question, maxIndirectionLevels, results);
+        cacheChain(question, results, maxIndirectionLevels, generation);
+        return results;
+    }
 
-        List<ResourceRecord> newResults = new ArrayList<>();
+    /**
+     * Adds the results for a question to a list, each CNAME record followed by the results of its target, as in
+     * getResultsFollowingCNames.
+     */
+    private void followCNames(DNSQuestion question, int maxIndirectionLevels, List<ResourceRecord> results)
+            throws CNameIndirectionLimitException {
+
+        if (maxIndirectionLevels < 0) throw new CNameIndirectionLimitException();
+
+        Collection<ResourceRecord> directResults = getResults(question);
+        if (question.getRecordType() == RecordType.CNAME) {
+            results.addAll(directResults);
+            return;
+        }
         for (ResourceRecord record : directResults) {
-            newResults.add(record);
-            if (record.getRecordType() == RecordType.CNAME) {
-                newResults.addAll(getResultsFollowingCNames(
-                        new DNSQuestion(record.getTextResult(), question.getRecordType(), question.getRecordClass()),
-                        maxIndirectionLevels - 1));
+            results.add(record);
+            if (record.getRecordType() == RecordType.CNAME)
+                followCNames(new DNSQuestion(record.getNameResult(), question.getRecordType(),
+                        question.getRecordClass()), maxIndirectionLevels - 1, results);
+        }
+    }
+
+    /**
+     * Finds all the results for a specific question following CNAME records without blocking, as in
+     * getResultsFollowingCNames. All CNAME targets of a level are looked up at the same time.
+     *
+     * @param question             Host name and record type to be used for search.
+     * @param maxIndirectionLevels Number of CNAME indirection levels to support.
+     * @return A future completed with a set of resource records corresponding to the specific query requested, or
+     * completed exceptionally with a CNameIndirectionLimitException if the number CNAME redirection levels exceeds the
+     * value set in maxIndirectionLevels.
+     */
+    public CompletableFuture<Collection<ResourceRecord>> getResultsFollowingCNamesAsync(DNSQuestion question,
+                                                                                      int maxIndirectionLevels) {
+        if (maxIndirectionLevels >= 0) {
+            List<ResourceRecord> chain = chainCache.get(question, maxIndirectionLevels);
+            if (chain != null) return CompletableFuture.completedFuture(chain);
+        }
+        long generation = chainCache.getGeneration();
+        return followCNamesAsync(question, maxIndirectionLevels).thenApply(results -> {
+            List<ResourceRecord> list = new ArrayList<>(results);
+            cacheChain(question, list, maxIndirectionLevels, generation);
+            return list;
+        });
+    }
+
+    /**
+     * Finds the results for a question following CNAME records without blocking, as in getResultsFollowingCNamesAsync,
+     * without using the chain cache.
+     */
+    private CompletableFuture<Collection<ResourceRecord>> followCNamesAsync(DNSQuestion question,
+                                                                           int maxIndirectionLevels) {
+        CompletableFuture<Collection<ResourceRecord>> future = new CompletableFuture<>();
+        if (maxIndirectionLevels < 0) {
+            future.completeExceptionally(new CNameIndirectionLimitException());
+            return future;
+        }
+
+        return getResultsAsync(question).thenCompose(directResults -> {
+            if (directResults.isEmpty() || question.getRecordType() == RecordType.CNAME)
+                return CompletableFuture.completedFuture(directResults);
+
+            List<CompletableFuture<Collection<ResourceRecord>>> targets = new ArrayList<>();
+            for (ResourceRecord record : directResults) {
+                targets.add(CompletableFuture.completedFuture(Collections.singletonList(record)));
+                if (record.getRecordType() == RecordType.CNAME)
+                    targets.add(followCNamesAsync(
+                            new DNSQuestion(record.getNameResult(), question.getRecordType(), question.getRecordClass()),
+                            maxIndirectionLevels - 1));
             }
+            return CompletableFuture.allOf(targets.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                List<ResourceRecord> newResults = new ArrayList<>();
+                for (CompletableFuture<Collection<ResourceRecord>> target : targets)
+                    newResults.addAll(target.join());
+                return newResults;
+            });
+        });
+    }
+
+    /**
+     * Keeps the results of a question in the chain cache if they hold a CNAME chain that ends with an answer at every
+     * branch: records of the type asked for, or a cached negative answer. A chain whose end could not be resolved,
+     * e.g., because its nameservers did not answer, is not kept, so that the next lookup tries again.
+     *
+     * @param question             The question that was looked up.
+     * @param results              The results returned for the question.
+     * @param maxIndirectionLevels Number of CNAME indirection levels the lookup allowed.
+     * @param generation           The generation of the chain cache read before the lookup started.
+     */
+    private void cacheChain(DNSQuestion question, List<ResourceRecord> results, int maxIndirectionLevels,
+                            long generation) {
+        if (results.isEmpty() || question.getRecordType() == RecordType.CNAME) return;
+        Set<DNSName> names = new HashSet<>();
+        List<ResourceRecord> bounds = new ArrayList<>();
+        int levels = chainLevels(question, results, maxIndirectionLevels, names, bounds);
+        // A question without a CNAME is answered by a single probe of the cache already
+        if (levels > 0)
+            chainCache.put(question, results, bounds, names, levels, prefetchRatio, generation);
+    }
+
+    /**
+     * Returns the number of CNAME indirection levels of the chain starting at a question, as found in the results of a
+     * lookup, and collects the names of the chain and the negative answers at its end.
+     *
+     * @return The number of levels, or -1 if a name of the chain has neither results nor a negative answer, or if the
+     * chain needs more than maxIndirectionLevels levels.
+     */
+    private int chainLevels(DNSQuestion question, List<ResourceRecord> results, int maxIndirectionLevels,
+                            Set<DNSName> names, List<ResourceRecord> bounds) {
+        if (maxIndirectionLevels < 0) return -1;
+        names.add(question.getName());
+        boolean answered = false;
+        int levels = 0;
+        for (ResourceRecord record : results) {
+            if (record.getQuestion().getName() != question.getName()) continue;
+            answered = true;
+            if (record.getRecordType() != RecordType.CNAME) continue;
+            int target = chainLevels(new DNSQuestion(record.getNameResult(), question.getRecordType(),
+                    question.getRecordClass()), results, maxIndirectionLevels - 1, names, bounds);
+            if (target < 0) return -1;
+            levels = Math.max(levels, target + 1);
+        }
+        if (!answered) {
+            ResourceRecord soa = cache.getNegativeResult(question);
+            if (soa == null) return -1;
+            bounds.add(soa);
         }
-        return newResults;
+        return levels;
+    }
+
+    /**
+     * Returns the number of lookups following CNAME records that were answered by a single probe of the chain cache.
+     *
+     * @return The number of chain cache hits since the service was created.
+     */
+    public long getChainCacheHitCount() {
+        return chainCache.getHitCount();
+    }
+
+    /**
+     * Resolves a collection of questions concurrently, following CNAME records. At most parallelism questions are
+     * being resolved at any time, all of them sharing the same cache, so nameservers and their addresses learned while
+     * resolving one name are reused for the others. Resolutions are returned in the order they complete, as soon as
+     * each one is ready; the stream blocks while waiting for the next one. If the thread is interrupted while waiting,
+     * the stream ends with the resolutions returned so far, and the interrupt status of the thread is set.
+     *
+     * @param questions            Questions to be resolved.
+     * @param parallelism          Maximum number of questions being resolved at the same time.
+     * @param maxIndirectionLevels Number of CNAME indirection levels to support for each question.
+     * @return A stream with one resolution for each question, in order of completion.
+     */
+    public Stream<Resolution> resolveAll(Collection<DNSQuestion> questions, int parallelism, int maxIndirectionLevels) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+        Batch batch = new Batch(questions, parallelism, maxIndirectionLevels);
+        batch.drain();
+        BlockingQueue<Resolution> completed = batch.completed;
+
+        int count = questions.size();
+        // The count is only an estimate, as the stream ends early if the thread is interrupted
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<Resolution>(count, Spliterator.NONNULL) {
+            private int taken = 0;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super Resolution> action) {
+                if (taken >= count) return false;
+                try {
+                    action.accept(completed.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                taken++;
+                return true;
+            }
+        }, false);
+    }
+
+    /**
+     * Resolves a collection of questions concurrently, as in resolveAll(questions, parallelism,
+     * maxIndirectionLevels), following up to 10 levels of CNAME records.
+     *
+     * @param questions   Questions to be resolved.
+     * @param parallelism Maximum number of questions being resolved at the same time.
+     * @return A stream with one resolution for each question, in order of completion.
+     */
+    public Stream<Resolution> resolveAll(Collection<DNSQuestion> questions, int parallelism) {
+        return resolveAll(questions, parallelism, MAX_INDIRECTION_LEVEL_CNAME);
     }
 
     /**
@@ -131,23 +786,246 @@ public class DNSLookupService {
      * another nameserver. Note that nameservers returned by the response contain text records linking to the host names
      * of these servers. If at least one nameserver provided by the response to the first query has a known IP address
      * (either from this query or from a previous query), it must be used first, otherwise additional queries are
-     * required to obtain the IP address of the nameserver before it is queried. Only one nameserver must be contacted
-     * for the follow-up query.
+     * required to obtain the IP address of the nameserver before it is queried; the addresses of all nameservers are
+     * then looked up at the same time, and the first one found is used (see selectNameServers). Only one nameserver
+     * must be contacted for the follow-up query. Among the nameservers with a known IP address, the one with the
+     * lowest smoothed round-trip time is chosen (see DNSInfraCache).
      *
      * @param question Host name and record type/class to be used for the query.
      * @param server   Address of the server to be used for the first query.
      */
     public void iterativeQuery(DNSQuestion question, InetAddress server) {
+        iterativeQuery(question, Collections.singletonList(server), DNSName.ROOT, 0);
+    }
 
-        /* TO BE COMPLETED BY THE STUDENT */
+    /**
+     * Retrieves DNS results from a specified DNS server using the iterative mode, as in iterativeQuery(question,
+     * server). The depth limits how many lookups of nameserver addresses can be nested, so that nameservers whose
+     * addresses depend on each other cannot cause an infinite recursion.
+     * <p>
+     * The servers of a referral are only trusted with records in the zone they were referred to (see
+     * processResponse(response, zone)).
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param servers  Addresses of the equivalent servers that may be used for the first query.
+     * @param zone     The zone served by these servers, or the root zone for the start servers.
+     * @param depth    Number of lookups of nameserver addresses this query is nested in.
+     */
+    private void iterativeQuery(DNSQuestion question, List<InetAddress> servers, DNSName zone, int depth) {
+
+        int referrals = 0;
+        for (; referrals < MAX_REFERRALS && !servers.isEmpty(); referrals++) {
+            Set<ResourceRecord> nameservers = individualQueryProcess(question, servers, zone);
+            if (nameservers == null || nameservers.isEmpty() || isResolved(question)) break;
+            zone = getReferralZone(nameservers);
+            if (zone == null) break;
+            servers = selectNameServers(nameservers, depth);
+        }
+        metrics.recordReferrals(referrals);
+    }
+
+    /**
+     * Returns the zone a referral delegates, i.e., the owner name of its NS records.
+     *
+     * @param nameservers The NS records of the referral.
+     * @return The owner name of the NS records, or null if they do not all have the same owner name.
+     */
+    private static DNSName getReferralZone(Collection<ResourceRecord> nameservers) {
+        DNSName zone = null;
+        for (ResourceRecord ns : nameservers) {
+            DNSName owner = ns.getQuestion().getName();
+            if (zone == null)
+                zone = owner;
+            else if (!zone.equalsIgnoreCase(owner))
+                return null;
+        }
+        return zone;
+    }
+
+    /**
+     * Returns true if the cache has an answer to a question, i.e., a negative answer or records that are not about to
+     * expire. Records that are about to expire are not enough, so that a resolution refreshing them (see
+     * setPrefetchRatio) goes on until the records are renewed.
+     *
+     * @param question The question being resolved.
+     * @return true if the resolution of the question is complete, false otherwise.
+     */
+    private boolean isResolved(DNSQuestion question) {
+        if (cache.getNegativeResult(question) != null) return true;
+        double ratio = prefetchRatio;
+        long now = System.nanoTime();
+        for (ResourceRecord record : cache.getCachedResults(question, true))
+            if (!record.isRefreshDue(now, ratio))
+                return true;
+        return false;
+    }
+
+    /**
+     * Finds the nameservers that may be used for the follow-up query of a referral. Nameservers whose address is
+     * already known (from the glue records of the referral or from a previous query) are preferred; otherwise the
+     * addresses of all nameservers are looked up at the same time, and the first addresses found are used (see
+     * resolveNameServersAsync). The fastest of the addresses returned is queried first (see individualQueryProcess).
+     *
+     * @param nameservers The NS records of the referral.
+     * @param depth       Number of lookups of nameserver addresses the current query is nested in.
+     * @return The addresses of the nameservers to be used, or an empty list if no address could be found.
+     */
+    private List<InetAddress> selectNameServers(Set<ResourceRecord> nameservers, int depth) {
+        List<InetAddress> known = knownNameServers(nameservers);
+        if (!known.isEmpty() || depth >= MAX_INDIRECTION_LEVEL_NS) return known;
+        // The lookups are made by the non-blocking engine, which is the only way to have them all in flight at once
+        return resolveNameServersAsync(nameservers, depth).join();
+    }
+
+    /**
+     * Returns the addresses of the nameservers of a referral that are already in the cache.
+     *
+     * @param nameservers The NS records of the referral.
+     * @return The cached addresses of the nameservers, possibly empty.
+     */
+    private List<InetAddress> knownNameServers(Collection<ResourceRecord> nameservers) {
+        List<InetAddress> candidates = new ArrayList<>();
+        for (ResourceRecord ns : nameservers) {
+            for (InetAddress address : addresses(cache.getCachedResults(
+                    new DNSQuestion(ns.getNameResult(), RecordType.A, RecordClass.IN), false))) {
+                if (!candidates.contains(address))
+                    candidates.add(address);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Performs the same resolution as iterativeQuery, without blocking. Each query is sent through the non-blocking
+     * engine, and the follow-up query of a referral is only sent once the previous response has been processed.
+     *
+     * @param question  Host name and record type/class to be used for the query.
+     * @param servers   Addresses of the servers that may be used for the next query, or an empty list to stop.
+     * @param zone      The zone served by these servers, or the root zone for the start servers.
+     * @param depth     Number of lookups of nameserver addresses this query is nested in.
+     * @param referrals Number of referrals already followed.
+     * @return A future completed once the resolution is done and its results are in the cache.
+     */
+    private CompletableFuture<Void> iterativeQueryAsync(DNSQuestion question, List<InetAddress> servers,
+                                                        DNSName zone, int depth, int referrals) {
+        if (servers.isEmpty() || referrals >= MAX_REFERRALS) {
+            metrics.recordReferrals(referrals);
+            return CompletableFuture.completedFuture(null);
+        }
+        return individualQueryAsync(question, servers, zone).thenCompose(nameservers -> {
+            DNSName referralZone = nameservers == null ? null : getReferralZone(nameservers);
+            if (referralZone == null || isResolved(question)) {
+                metrics.recordReferrals(referrals);
+                return CompletableFuture.completedFuture(null);
+            }
+            return selectNameServersAsync(new ArrayList<>(nameservers), depth)
+                    .thenCompose(next -> iterativeQueryAsync(question, next, referralZone, depth, referrals + 1));
+        });
+    }
+
+    /**
+     * Finds the nameservers that may be used for the follow-up query of a referral without blocking, as in
+     * selectNameServers.
+     *
+     * @param nameservers The NS records of the referral.
+     * @param depth       Number of lookups of nameserver addresses the current query is nested in.
+     * @return A future completed with the addresses of the nameservers to be used, possibly empty.
+     */
+    private CompletableFuture<List<InetAddress>> selectNameServersAsync(List<ResourceRecord> nameservers, int depth) {
+        List<InetAddress> known = knownNameServers(nameservers);
+        if (!known.isEmpty() || depth >= MAX_INDIRECTION_LEVEL_NS)
+            return CompletableFuture.completedFuture(known);
+        return resolveNameServersAsync(nameservers, depth);
+    }
+
+    /**
+     * Looks up the addresses of all the nameservers of a referral at the same time, as referrals without glue records
+     * usually name nameservers in other zones, e.g., those of a DNS hosting provider, and any of them may be slow or
+     * broken. The future is completed as soon as the addresses of one nameserver are found, so the referral is followed
+     * without waiting for the slowest lookups. The other lookups go on, and their addresses are cached, so that they
+     * are known the next time the zone is referred to, or when the first nameserver stops answering.
+     *
+     * @param nameservers The NS records of the referral.
+     * @param depth       Number of lookups of nameserver addresses the current query is nested in.
+     * @return A future completed with the first addresses found, or with an empty list if no lookup found any.
+     */
+    private CompletableFuture<List<InetAddress>> resolveNameServersAsync(Collection<ResourceRecord> nameservers,
+                                                                         int depth) {
+        CompletableFuture<List<InetAddress>> first = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(nameservers.size());
+        if (nameservers.isEmpty())
+            first.complete(Collections.emptyList());
+        for (ResourceRecord ns : nameservers) {
+            DNSQuestion question = new DNSQuestion(ns.getNameResult(), RecordType.A, RecordClass.IN);
+            getResultsAsync(question, depth + 1).whenComplete((results, error) -> {
+                List<InetAddress> addresses = error == null ? addresses(results) : Collections.emptyList();
+                if (!addresses.isEmpty())
+                    first.complete(addresses);
+                else if (remaining.decrementAndGet() == 0)
+                    first.complete(Collections.emptyList());
+            });
+        }
+        return first;
+    }
+
+    /**
+     * Sends an individual query through the non-blocking engine and processes its response, as in
+     * individualQueryProcess, including hedges (see setHedging). Each transmission is a separate query of the engine,
+     * sent once with the retransmission timeout of its server, so that the next attempt can go to another server.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param servers  Addresses of the equivalent servers that may be used for the query.
+     * @param zone     The zone served by these servers.
+     * @return A future completed with the NS records of the response, or with null if no response was received.
+     */
+    private CompletableFuture<Set<ResourceRecord>> individualQueryAsync(DNSQuestion question,
+                                                                        List<InetAddress> servers, DNSName zone) {
+        AsyncExchange exchange = new AsyncExchange(question, servers, zone);
+        metrics.queryStarted();
+        exchange.result.whenComplete((nameservers, error) -> metrics.queryCompleted());
+        exchange.start();
+        return exchange.result;
+    }
+
+    /**
+     * Chooses the server a query is sent to next: the fastest of the servers that were not tried yet, or the fastest
+     * of all servers once all of them were tried. A retransmission to a server that did not answer is thus only made
+     * if no other server is available.
+     *
+     * @param servers Addresses of the equivalent servers that may be used for the query.
+     * @param tried   Addresses of the servers the query was already sent to.
+     * @return The address of the server to be used for the next attempt.
+     */
+    private InetAddress nextServer(List<InetAddress> servers, Set<InetAddress> tried) {
+        if (servers.size() == 1) return servers.get(0);
+        List<InetAddress> untried = new ArrayList<>(servers.size());
+        for (InetAddress server : servers)
+            if (!tried.contains(server))
+                untried.add(server);
+        return infra.select(untried.isEmpty() ? servers : untried);
+    }
+
+    /**
+     * Returns the addresses of the A records in a collection of records.
+     *
+     * @param records A collection of records, possibly including other types of records.
+     * @return The addresses of the A records, in the order of the collection.
+     */
+    private static List<InetAddress> addresses(Collection<ResourceRecord> records) {
+        List<InetAddress> addresses = new ArrayList<>(records.size());
+        for (ResourceRecord record : records)
+            if (record.getRecordType() == RecordType.A && record.getInetResult() != null)
+                addresses.add(record.getInetResult());
+        return addresses;
     }
 
     /**
      * Handles the process of sending an individual DNS query with a single question. Builds and sends the query (request)
      * message, then receives and parses the response. Received responses that do not match the requested transaction ID
-     * are ignored. If no response is received after SO_TIMEOUT milliseconds, the request is sent again, with the same
-     * transaction ID. The query should be sent at most MAX_QUERY_ATTEMPTS times, after which the function should return
-     * without changing any values. If a response is received, all of its records are added to the cache.
+     * are ignored. If no response is received within the retransmission timeout of the server (see DNSInfraCache),
+     * the request is sent again, with the same transaction ID, and twice the timeout. The query should be sent at most
+     * MAX_QUERY_ATTEMPTS times, after which the function should return without changing any values. If a response is
+     * received, all of its records are added to the cache.
      * <p>
      * The method verbose.printQueryToSend() must be called every time a new query message is about to be sent.
      *
@@ -159,10 +1037,209 @@ public class DNSLookupService {
      * set.
      */
     protected Set<ResourceRecord> individualQueryProcess(DNSQuestion question, InetAddress server) {
-        /* TO BE COMPLETED BY THE STUDENT */
+        return individualQueryProcess(question, Collections.singletonList(server));
+    }
+
+    /**
+     * Sends an individual DNS query to one of several equivalent servers, e.g., the nameservers of the same zone, as
+     * in individualQueryProcess(question, server). The query is sent first to the server with the lowest smoothed
+     * round-trip time. If it does not answer within its retransmission timeout, the next attempt goes to the fastest
+     * server that was not tried yet, rather than to the same server again; a server is only queried again once all
+     * servers were tried. A late response from any server already tried is accepted. If hedging is enabled (see
+     * setHedging), the query is also sent to more servers without waiting for the first one to time out.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param servers  Addresses of the equivalent servers that may be used for the query. Must not be empty.
+     * @return The NS records of the response, as in individualQueryProcess(question, server), or null if no response
+     * is received.
+     */
+    protected Set<ResourceRecord> individualQueryProcess(DNSQuestion question, List<InetAddress> servers) {
+        return individualQueryProcess(question, servers, DNSName.ROOT);
+    }
+
+    /**
+     * Sends an individual DNS query to one of several equivalent servers of a zone, as in
+     * individualQueryProcess(question, servers). Only the records of the response that are in the zone are cached
+     * (see processResponse(response, zone)).
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param servers  Addresses of the equivalent servers that may be used for the query. Must not be empty.
+     * @param zone     The zone served by these servers, or the root zone if they may answer for any name.
+     * @return The NS records of the response that are in the zone, or null if no response is received.
+     */
+    protected Set<ResourceRecord> individualQueryProcess(DNSQuestion question, List<InetAddress> servers,
+                                                         DNSName zone) {
+        DNSMessage query = buildUdpQuery(question);
+        int id = query.getID();
+        byte[] data = query.getUsed();
+        query.release();
+        byte[] buffer = new byte[DNSMessage.MAX_UDP_PAYLOAD_SIZE];
+        DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+        DNSMessage response;
+        metrics.queryStarted();
+        try {
+            // The socket is shared by all synchronous lookups of this service, and each exchange must see its own
+            // responses
+            synchronized (socket) {
+                response = exchange(question, servers, id, data, reply);
+            }
+            if (response == null) return null;
+            if (response.getTC()) {
+                // The records that fit in a truncated response are only used if the response cannot be fetched over
+                // TCP
+                tcpFallbackCount.increment();
+                DNSMessage full = queryTcp(question, reply.getAddress());
+                if (full != null) response = full;
+            }
+        } finally {
+            metrics.queryCompleted();
+        }
+        return processResponse(response, zone);
+    }
+
+    /**
+     * Creates a query to be sent over UDP, with an OPT record advertising the EDNS0 payload size unless it is
+     * disabled (see setEdnsPayloadSize).
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @return The DNSMessage containing the query.
+     */
+    private DNSMessage buildUdpQuery(DNSQuestion question) {
+        DNSMessage query = buildQuery(question);
+        int payloadSize = ednsPayloadSize;
+        if (payloadSize > 0)
+            query.addOPT(payloadSize);
+        return query;
+    }
+
+    /**
+     * Sends a query over TCP and waits for its response. The query is sent by the non-blocking engine, on a connection
+     * to the server that is reused by other queries (see setTcpIdleTimeout).
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param server   Address of the server to be used for the query.
+     * @return The response, or null if no valid response was received.
+     */
+    private DNSMessage queryTcp(DNSQuestion question, InetAddress server) {
+        DNSMessage query = buildQuery(question);
+        verbose.printQueryToSend(question, server, query.getID());
+        CompletableFuture<DNSMessage> response;
+        try {
+            response = getEngine().queryTcp(query, new InetSocketAddress(server, port), SO_TIMEOUT);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            query.release();
+        }
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Sends a query over the blocking socket until a matching response is received or the maximum number of attempts
+     * is reached, and records the round-trip time or the timeouts of the servers. Must be called while holding the
+     * socket's lock. The response is not processed; the address of the server that sent it is left in the reply
+     * packet.
+     *
+     * @return The response, using the buffer of the reply packet, or null if no response was received.
+     */
+    private DNSMessage exchange(DNSQuestion question, List<InetAddress> servers, int id, byte[] data,
+                                         DatagramPacket reply) {
+        byte[] buffer = reply.getData();
+        // Number of transmissions to each server, time of the last one, and whether the last one was a hedge
+        Map<InetAddress, long[]> sent = new HashMap<>();
+        int immediate = hedgeServers;
+        int delay = hedgeDelay;
+        try {
+            for (int attempt = 0; attempt < MAX_QUERY_ATTEMPTS; attempt++) {
+                InetAddress server = nextServer(servers, sent.keySet());
+                long[] previous = sent.get(server);
+                int timeout = infra.getRetransmissionTimeout(server, previous == null ? 0 : (int) previous[0]);
+                transmit(question, server, id, data, sent, false);
+                for (int hedges = 1; attempt == 0 && hedges < immediate; hedges++)
+                    if (!hedge(question, servers, id, data, sent)) break;
+
+                long start = System.nanoTime();
+                long deadline = start + timeout * 1_000_000L;
+                boolean hedging = delay > 0 && sent.size() < servers.size();
+                long nextHedge = start + delay * 1_000_000L;
+                while (true) {
+                    long now = System.nanoTime();
+                    if (now - deadline >= 0) {
+                        infra.recordTimeout(server, timeout * 1000L);
+                        metrics.recordTimeout();
+                        break;
+                    }
+                    if (hedging && now - nextHedge >= 0) {
+                        hedging = hedge(question, servers, id, data, sent) && sent.size() < servers.size();
+                        nextHedge += delay * 1_000_000L;
+                        continue;
+                    }
+                    long until = hedging && nextHedge - deadline < 0 ? nextHedge : deadline;
+                    socket.setSoTimeout((int) Math.max(1, (until - now) / 1_000_000));
+                    try {
+                        reply.setLength(buffer.length);
+                        socket.receive(reply);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    DNSMessage response = new DNSMessage(buffer, reply.getLength());
+                    long[] answered = sent.get(reply.getAddress());
+                    if (response.getID() == id && response.getQR() && answered != null) {
+                        // Karn's algorithm: the response to a retransmitted query may answer any of its transmissions
+                        if (answered[0] == 1) {
+                            long rtt = (System.nanoTime() - answered[1]) / 1000;
+                            infra.recordRtt(reply.getAddress(), rtt);
+                            metrics.recordRtt(reply.getAddress(), rtt);
+                        }
+                        if (answered[2] != 0)
+                            hedgeWinCount.increment();
+                        // Responses of the other servers are ignored by later exchanges, which use other IDs
+                        return response;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Treated like a lack of response
+        }
         return null;
     }
 
+    /**
+     * Sends a query over the blocking socket, and records the transmission.
+     */
+    private void transmit(DNSQuestion question, InetAddress server, int id, byte[] data, Map<InetAddress, long[]> sent,
+                          boolean hedge) throws IOException {
+        // Every attempt after the first transmission is a retry, whichever server it goes to
+        boolean retry = !hedge && !sent.isEmpty();
+        long[] transmissions = sent.computeIfAbsent(server, s -> new long[3]);
+        verbose.printQueryToSend(question, server, id);
+        socket.send(new DatagramPacket(data, data.length, server, port));
+        metrics.recordQuery(retry);
+        transmissions[0]++;
+        transmissions[1] = System.nanoTime();
+        transmissions[2] = hedge ? 1 : 0;
+    }
+
+    /**
+     * Sends a query over the blocking socket to the fastest server that was not sent the query yet, if any.
+     *
+     * @return true if a hedge was sent, false if every server was already sent the query.
+     */
+    private boolean hedge(DNSQuestion question, List<InetAddress> servers, int id, byte[] data,
+                          Map<InetAddress, long[]> sent) throws IOException {
+        if (sent.size() >= servers.size()) return false;
+        transmit(question, nextServer(servers, sent.keySet()), id, data, sent, true);
+        hedgeCount.increment();
+        return true;
+    }
+
     /**
      * Creates a DNSMessage containing a DNS query.
      * A random transaction ID must be generated and filled in the corresponding part of the query. The query
@@ -177,8 +1254,7 @@ public class DNSLookupService {
         /* TO BE COMPLETED BY THE STUDENT */
 //        Using the secure random number generator to generate a new int
 //        Properly initialize the DNSMessage and header info
-        short randomID = (short) random.nextInt();
-        DNSMessage query = new DNSMessage(randomID);
+        DNSMessage query = DNSMessage.allocate(random.nextInt(0x10000));
         query.setQDCount(0);
         query.setANCount(0);
         query.setNSCount(0);
@@ -190,16 +1266,21 @@ public class DNSLookupService {
         query.setRA(false);
         query.setRcode(0);
         query.addQuestion(question);
-        verbose.printQueryToSend(question, nameServer, randomID);
         return query;
     }
 
     /**
-     * Parses and processes a response received by a nameserver. Adds all resource records found in the response message
-     * to the cache. Calls methods in the verbose object at appropriate points of the processing sequence. Must be able
-     * to properly parse records of the types: A, AAAA, NS, CNAME and MX (the priority field for MX may be ignored). Any
-     * other unsupported record type must create a record object with the data represented as a hex string (see method
-     * byteArrayToHexString).
+     * Parses and processes a response received by a nameserver. Adds the resource records found in the answer and
+     * nameserver sections of the response message to the cache, and those of the additional section that give the
+     * address of a host named in the other sections (e.g., the glue of a referral). Calls methods in the verbose
+     * object at appropriate points of the processing sequence. Must be able to properly parse records of the types: A,
+     * AAAA, NS, CNAME and MX (the priority field for MX may be ignored). Any other unsupported record type must create
+     * a record object with the data represented as a hex string (see method byteArrayToHexString). If the response is
+     * a negative answer (NXDOMAIN or NODATA) with an SOA record in its authority section, the negative answer is also
+     * cached for the question.
+     * <p>
+     * Records are decoded lazily: the message is scanned once to find its records, and the additional records that
+     * are not cached are only decoded if the verbose object prints them.
      *
      * @param response The DNSMessage received from the server.
      * @return A set of resource records for all nameservers received in the response. Only records found in the
@@ -207,28 +1288,140 @@ public class DNSLookupService {
      * nameservers, returns an empty set.
      */
     protected Set<ResourceRecord> processResponse(DNSMessage response) {
-        /* TO BE COMPLETED BY THE STUDENT */
-        Set<ResourceRecord> NSset = new HashSet<>();
-        int receivedTransID = response.getID();
-        int curRcode = response.getRcode();
-        boolean isAuthoritative = response.getAA();
-        verbose.printResponseHeaderInfo(receivedTransID,isAuthoritative,curRcode);
-//        Process the question section
+        return processResponse(response, DNSName.ROOT);
+    }
+
+    /**
+     * Processes a response received from a nameserver of a zone, as in processResponse(response), except that only
+     * the records in the zone are used. A nameserver is only trusted with the names of the zone it serves, so that,
+     * e.g., a nameserver of example.com cannot insert NS records for com in its referrals, or addresses for the
+     * nameservers of another zone in their glue (cache poisoning). Records outside the zone are printed, but neither
+     * cached nor returned.
+     *
+     * @param response The DNSMessage received from the server.
+     * @param zone     The zone served by the server, or the root zone if it may answer for any name.
+     * @return The NS records of the nameserver section of the response that are in the zone, possibly empty.
+     */
+    protected Set<ResourceRecord> processResponse(DNSMessage response, DNSName zone) {
+        Set<ResourceRecord> nameservers = new HashSet<>();
+        verbose.printResponseHeaderInfo(response.getID(), response.getAA(), response.getRcode());
+
+        DNSQuestion question = null;
         for (int i = 0; i < response.getQDCount(); i++) {
-            response.getQuestion();
+            DNSQuestion q = response.getQuestion();
+            if (question == null) question = q;
         }
-//        Process the Answer section
-        verbose.printAnswersHeader(response.getANCount());
-        for (int i = 0; i < response.getANCount(); i++) {
-            ResourceRecord curRR = response.getRR();
-            if (curRR.getQuestion().getRecordType() == RecordType.NS) {
-                NSset.add(curRR);
+
+        // Host names whose addresses are used from the additional section
+        List<DNSName> targets = new ArrayList<>();
+        int answerCount = response.getANCount();
+        List<ResourceRecord> answers = new ArrayList<>(answerCount);
+        verbose.printAnswersHeader(answerCount);
+        for (int i = 0; i < answerCount; i++) {
+            ResourceRecord record = processRecord(response, i, zone);
+            if (record == null) continue;
+            answers.add(record);
+            RecordType type = record.getRecordType();
+            if (type == RecordType.NS || type == RecordType.CNAME || type == RecordType.MX)
+                targets.add(record.getNameResult());
+        }
+
+        ResourceRecord soa = null;
+        int authorityEnd = answerCount + response.getNSCount();
+        verbose.printNameserversHeader(response.getNSCount());
+        for (int i = answerCount; i < authorityEnd; i++) {
+            ResourceRecord record = processRecord(response, i, zone);
+            if (record == null) continue;
+            if (record.getRecordType() == RecordType.NS) {
+                nameservers.add(record);
+                targets.add(record.getNameResult());
+            } else if (record.getRecordType() == RecordType.SOA && soa == null)
+                soa = record;
+        }
+
+        verbose.printAdditionalInfoHeader(response.getARCount());
+        boolean printing = verbose.isPrintingRecords();
+        for (int i = authorityEnd; i < response.getRecordCount(); i++) {
+            if (isTargetAddress(response, i, targets))
+                processRecord(response, i, zone);
+            else if (printing)
+                verbose.printIndividualResourceRecord(response.getRR(i), response.getRecordTypeCode(i),
+                        response.getRecordClassCode(i));
+        }
+
+        if (question != null && soa != null)
+            cacheNegativeAnswer(question, response.getRcode(), answers, nameservers, soa);
+        return nameservers;
+    }
+
+    /**
+     * Decodes a record received from a nameserver, adds it to the cache if it is in the zone of the nameserver, and
+     * prints it if verbose tracing is on. OPT pseudo-records only apply to the message they are in, and are not cached.
+     *
+     * @param response The response received from the nameserver.
+     * @param index    The number of the record in the response, as defined by DNSMessage.getRecordCount.
+     * @param zone     The zone served by the nameserver.
+     * @return The decoded record, or null if it is not in the zone.
+     */
+    private ResourceRecord processRecord(DNSMessage response, int index, DNSName zone) {
+        ResourceRecord record = response.getRR(index);
+        boolean inZone = record.getQuestion().getName().isInZone(zone);
+        if (inZone && record.getRecordType() != RecordType.OPT)
+            cache.addResult(record);
+        verbose.printIndividualResourceRecord(record, response.getRecordTypeCode(index),
+                response.getRecordClassCode(index));
+        return inZone ? record : null;
+    }
+
+    /**
+     * Returns true if a record of a response is an A or AAAA record for one of a list of host names. The record is not
+     * decoded: its type is read and its owner name is compared in place.
+     */
+    private static boolean isTargetAddress(DNSMessage response, int index, List<DNSName> targets) {
+        int type = response.getRecordTypeCode(index);
+        if (type != RecordType.A.getCode() && type != RecordType.AAAA.getCode()) return false;
+        for (DNSName target : targets)
+            if (response.isRecordName(index, target)) return true;
+        return false;
+    }
+
+    /**
+     * Caches a negative answer following RFC 2308, if the response is one. A response is a negative answer if its error
+     * code is NXDOMAIN (the name does not exist), or if it has no error but also no answer and no referral (NODATA, the
+     * name exists but has no records of the requested type). If the answer section contains a CNAME chain for the
+     * question, the negative answer applies to the end of the chain. The negative TTL is the smaller of the SOA
+     * record's TTL and its MINIMUM field.
+     *
+     * @param question    The question of the response.
+     * @param rcode       The error code of the response.
+     * @param answers     The records in the answer section of the response.
+     * @param nameservers The NS records in the authority section of the response.
+     * @param soa         The SOA record in the authority section of the response.
+     */
+    private void cacheNegativeAnswer(DNSQuestion question, int rcode, List<ResourceRecord> answers,
+                                     Set<ResourceRecord> nameservers, ResourceRecord soa) {
+        if (rcode != 0 && rcode != NXDOMAIN) return;
+
+        String name = question.getHostName();
+        for (int hops = 0; hops <= answers.size(); hops++) {
+            String current = name;
+            for (ResourceRecord record : answers) {
+                if (!record.getHostName().equalsIgnoreCase(current)) continue;
+                if (record.getRecordType() == question.getRecordType()) return; // Not a negative answer
+                if (record.getRecordType() == RecordType.CNAME) name = record.getTextResult();
             }
-            cache.addResult(curRR);
-            verbose.printIndividualResourceRecord(curRR, curRR.getRecordType().getCode(), curRR.getRecordClass().getCode());
+            if (name.equals(current)) break;
         }
-        return null;
+        if (rcode == 0 && !nameservers.isEmpty()) return; // A referral, not a NODATA answer
+
+        String[] fields = soa.getTextResult().split(" ");
+        long ttl = soa.getRemainingTTL();
+        if (fields.length == 7)
+            ttl = Math.min(ttl, Long.parseLong(fields[6]));
+        cache.addNegativeResult(new DNSQuestion(name, question.getRecordType(), question.getRecordClass()), soa, ttl,
+                rcode == NXDOMAIN);
     }
+
     /**
      * Helper function that converts a hex string representation of a byte array. May be used to represent the result of
      * records that are returned by the nameserver but not supported by the application (e.g., SOA records).
@@ -242,4 +1435,290 @@ public class DNSLookupService {
 
     public static class CNameIndirectionLimitException extends Exception {
     }
+
+    /**
+     * An individual query performed by the non-blocking engine, possibly sent to several servers. All methods are
+     * called with the lock of the exchange held, as responses and timeouts are handled by the engine's I/O thread.
+     * Queries are sent with an EDNS0 OPT record, and a truncated response is fetched again over TCP.
+     */
+    private final class AsyncExchange {
+        private final DNSQuestion question;
+        private final List<InetAddress> servers;
+        private final DNSName zone;
+        private final int hedgeServers = DNSLookupService.this.hedgeServers;
+        private final int hedgeDelay = DNSLookupService.this.hedgeDelay;
+        private final Map<InetAddress, Integer> sent = new HashMap<>();
+        private final List<CompletableFuture<DNSMessage>> outstanding = new ArrayList<>();
+        private final CompletableFuture<Set<ResourceRecord>> result = new CompletableFuture<>();
+        private int attempts;
+        private boolean exhausted;
+        private boolean answered;
+
+        private AsyncExchange(DNSQuestion question, List<InetAddress> servers, DNSName zone) {
+            this.question = question;
+            this.servers = servers;
+            this.zone = zone;
+        }
+
+        private synchronized void start() {
+            if (!send(false)) return;
+            for (int hedges = 1; hedges < hedgeServers; hedges++)
+                if (!hedge()) break;
+            if (hedgeDelay > 0)
+                scheduleHedge();
+        }
+
+        private void scheduleHedge() {
+            if (answered || sent.size() >= servers.size()) return;
+            try {
+                getEngine().delay(hedgeDelay).thenRun(() -> {
+                    synchronized (this) {
+                        if (hedge()) scheduleHedge();
+                    }
+                });
+            } catch (IOException e) {
+                // No hedge, the transmissions already sent are still outstanding
+            }
+        }
+
+        /**
+         * Sends the query to the fastest server that was not sent the query yet, if any.
+         */
+        private boolean hedge() {
+            if (answered || sent.size() >= servers.size()) return false;
+            if (!send(true)) return false;
+            hedgeCount.increment();
+            return true;
+        }
+
+        /**
+         * Sends the query to the next server (see nextServer).
+         *
+         * @param hedge true if the transmission is a hedge, false if it is an attempt.
+         * @return true if the query was sent, false if the engine could not be used.
+         */
+        private boolean send(boolean hedge) {
+            InetAddress server = nextServer(servers, sent.keySet());
+            int transmissions = sent.merge(server, 1, Integer::sum);
+            int timeout = infra.getRetransmissionTimeout(server, transmissions - 1);
+            if (!hedge) attempts++;
+            DNSMessage query = buildUdpQuery(question);
+            long[] sentNanos = new long[1];
+            CompletableFuture<DNSMessage> response;
+            try {
+                response = getEngine().query(query, new InetSocketAddress(server, port), timeout, 1, () -> {
+                    sentNanos[0] = System.nanoTime();
+                    verbose.printQueryToSend(question, server, query.getID());
+                });
+            } catch (IOException e) {
+                query.release();
+                exhausted = true;
+                if (outstanding.isEmpty()) result.complete(null);
+                return false;
+            }
+            metrics.recordQuery(!hedge && attempts > 1);
+            outstanding.add(response);
+            response.whenComplete((message, error) -> {
+                query.release();
+                synchronized (this) {
+                    received(server, hedge, transmissions == 1 ? sentNanos[0] : 0, timeout, response, message, error);
+                }
+            });
+            return true;
+        }
+
+        /**
+         * Handles the completion of a transmission: uses its response if it is the first one, or sends the next
+         * attempt if it was an attempt that timed out.
+         *
+         * @param sentNanos Time of the transmission, or 0 if the server was sent the query more than once.
+         */
+        private void received(InetAddress server, boolean hedge, long sentNanos, int timeout,
+                              CompletableFuture<DNSMessage> response, DNSMessage message, Throwable error) {
+            outstanding.remove(response);
+            if (error == null) {
+                if (answered) {
+                    message.release();
+                    return;
+                }
+                answered = true;
+                // Karn's algorithm: the response to a retransmitted query may answer any of its transmissions
+                if (sentNanos != 0) {
+                    long rtt = (System.nanoTime() - sentNanos) / 1000;
+                    infra.recordRtt(server, rtt);
+                    metrics.recordRtt(server, rtt);
+                }
+                if (hedge)
+                    hedgeWinCount.increment();
+                for (CompletableFuture<DNSMessage> other : new ArrayList<>(outstanding))
+                    other.cancel(false);
+                if (message.getTC())
+                    completeOverTcp(server, message);
+                else
+                    complete(message, null);
+                return;
+            }
+            if (!hedge && error instanceof SocketTimeoutException) {
+                infra.recordTimeout(server, timeout * 1000L);
+                metrics.recordTimeout();
+                if (!answered && attempts < MAX_QUERY_ATTEMPTS && send(false))
+                    return;
+            }
+            if (!hedge)
+                exhausted = true;
+            if (exhausted && outstanding.isEmpty() && !answered)
+                result.complete(null);
+        }
+
+        /**
+         * Fetches the response to the query again over TCP, as the response received over UDP was truncated. The
+         * truncated response is used if the query fails over TCP.
+         */
+        private void completeOverTcp(InetAddress server, DNSMessage truncated) {
+            tcpFallbackCount.increment();
+            DNSMessage query = buildQuery(question);
+            verbose.printQueryToSend(question, server, query.getID());
+            CompletableFuture<DNSMessage> response;
+            try {
+                response = getEngine().queryTcp(query, new InetSocketAddress(server, port), SO_TIMEOUT);
+            } catch (IOException e) {
+                response = new CompletableFuture<>();
+                response.completeExceptionally(e);
+            }
+            query.release();
+            response.whenComplete((full, error) -> {
+                if (error == null)
+                    complete(full, truncated);
+                else
+                    complete(truncated, null);
+            });
+        }
+
+        /**
+         * Processes the response that answers the query, and completes the exchange.
+         *
+         * @param response The response to be processed.
+         * @param other    Another message to be released once the response is processed, or null.
+         */
+        private void complete(DNSMessage response, DNSMessage other) {
+            try {
+                result.complete(processResponse(response, zone));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            } finally {
+                response.release();
+                if (other != null) other.release();
+            }
+        }
+    }
+
+    /**
+     * A resolution in progress, which identical lookups may join instead of querying nameservers themselves.
+     */
+    private static class InFlight {
+        private final int depth;
+        private final CompletableFuture<Collection<ResourceRecord>> future = new CompletableFuture<>();
+
+        private InFlight(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * A zone whose nameservers are cached with their addresses, where a resolution may start.
+     */
+    private static class ZoneCut {
+        private final DNSName zone;
+        private final List<InetAddress> servers;
+
+        private ZoneCut(DNSName zone, List<InetAddress> servers) {
+            this.zone = zone;
+            this.servers = servers;
+        }
+    }
+
+    /**
+     * The state of a resolveAll call. New resolutions are started by a drain loop, entered by at most one thread at a
+     * time, so that resolutions completing immediately (e.g., from the cache) start the next ones iteratively instead
+     * of recursively.
+     */
+    private class Batch {
+        private final Iterator<DNSQuestion> remaining;
+        private final int parallelism;
+        private final int maxIndirectionLevels;
+        private final BlockingQueue<Resolution> completed = new LinkedBlockingQueue<>();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger work = new AtomicInteger();
+
+        private Batch(Collection<DNSQuestion> questions, int parallelism, int maxIndirectionLevels) {
+            this.remaining = new ArrayList<>(questions).iterator();
+            this.parallelism = parallelism;
+            this.maxIndirectionLevels = maxIndirectionLevels;
+        }
+
+        private void drain() {
+            if (work.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                while (active.get() < parallelism && remaining.hasNext()) {
+                    active.incrementAndGet();
+                    start(remaining.next());
+                }
+                missed = work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void start(DNSQuestion question) {
+            long start = System.nanoTime();
+            getResultsFollowingCNamesAsync(question, maxIndirectionLevels).whenComplete((results, error) -> {
+                completed.add(new Resolution(question, error == null ? results : Collections.emptyList(),
+                        System.nanoTime() - start, error instanceof CompletionException ? error.getCause() : error));
+                active.decrementAndGet();
+                drain();
+            });
+        }
+    }
+
+    /**
+     * The outcome of resolving one question of a batch.
+     */
+    public static class Resolution {
+        private final DNSQuestion question;
+        private final Collection<ResourceRecord> results;
+        private final long elapsedNanos;
+        private final Throwable failure;
+
+        private Resolution(DNSQuestion question, Collection<ResourceRecord> results, long elapsedNanos,
+                           Throwable failure) {
+            this.question = question;
+            this.results = results;
+            this.elapsedNanos = elapsedNanos;
+            this.failure = failure;
+        }
+
+        public DNSQuestion getQuestion() {
+            return question;
+        }
+
+        /**
+         * The results of the question, including CNAME records followed. Empty if the resolution failed.
+         */
+        public Collection<ResourceRecord> getResults() {
+            return results;
+        }
+
+        /**
+         * The time between the start of the resolution and its completion, in nanoseconds.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * The reason the resolution failed (e.g., a CNameIndirectionLimitException), or null if it did not fail.
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+    }
 }
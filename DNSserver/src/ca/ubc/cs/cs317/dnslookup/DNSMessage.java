@@ -1,28 +1,55 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.stream.IntStream;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
 
 public class DNSMessage {
     public static final int MAX_DNS_MESSAGE_LENGTH = 512;
+    /**
+     * Largest UDP payload accepted by the application with EDNS0 (RFC 6891). Buffers used to receive messages over UDP
+     * are this size.
+     */
+    public static final int MAX_UDP_PAYLOAD_SIZE = 4096;
+    /**
+     * UDP payload size advertised by default, which avoids IP fragmentation on virtually every path (DNS Flag Day
+     * 2020).
+     */
+    public static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
     public static final int QUERY = 0;
     /**
      * TODO:  You will add additional constants and fields
      */
-    private final Map<String, Integer> nameToPosition = new HashMap<>();
-    private final Map<Integer, String> positionToName = new HashMap<>();
     private final ByteBuffer buffer;
+    private boolean pooled;
+    /**
+     * Names and name suffixes added to the message, which later names can point to, and their positions.
+     */
+    private DNSName[] names;
+    private int[] namePositions;
+    private int nameCount;
+    private StringBuilder nameBuilder;
+    /**
+     * Positions of the resource records of a received message, built by indexRecords: for each record, the position
+     * of its owner name followed by the position of its type field.
+     */
+    private int[] recordIndex;
     private static final int RA_QR_MASK = 0x80;
     private static final int OPCODE_MASK = 0x78;
     private static final int AA_MASK = 0b100;
     private static final int TC_MASK = 0b10;
     private static final int RD_MASK = 0b1;
     private static final int RCODE_MASK = 0xf;
+    private static final int POINTER_MASK = 0xc0;
+    private static final int MAX_POINTER_OFFSET = 0x3fff;
+    /**
+     * A name is at most 255 bytes long, so a valid name cannot follow more compression pointers than this.
+     */
+    private static final int MAX_POINTERS = 127;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
 
     /**
@@ -31,7 +58,18 @@ public class DNSMessage {
      * @param id The id of the message.
      */
     public DNSMessage(short id) {
-        this.buffer = ByteBuffer.allocate(MAX_DNS_MESSAGE_LENGTH);
+        this(id, MAX_DNS_MESSAGE_LENGTH);
+    }
+
+    /**
+     * Initializes an empty DNSMessage with the given id, with room for a message of a specific length, e.g., a
+     * response sent over TCP or with EDNS0.
+     *
+     * @param id       The id of the message.
+     * @param capacity The maximum length of the message, in bytes.
+     */
+    public DNSMessage(short id, int capacity) {
+        this.buffer = ByteBuffer.allocate(capacity);
         this.setID(id);
         buffer.position(12);
     }
@@ -48,6 +86,97 @@ public class DNSMessage {
         buffer.position(12);
     }
 
+    private DNSMessage(ByteBuffer buffer, boolean pooled) {
+        this.buffer = buffer;
+        this.pooled = pooled;
+    }
+
+    /**
+     * Initializes an empty DNSMessage with the given id, encoded in a direct buffer taken from the shared buffer pool.
+     * The buffer is returned to the pool by release().
+     *
+     * @param id The id of the message.
+     * @return The new message.
+     */
+    static DNSMessage allocate(int id) {
+        ByteBuffer buffer = DNSBufferPool.getInstance().acquire();
+        for (int i = 0; i < 12; i += 4)
+            buffer.putInt(i, 0);
+        DNSMessage message = new DNSMessage(buffer, true);
+        message.setID(id);
+        buffer.position(12);
+        return message;
+    }
+
+    /**
+     * Initializes a DNSMessage with the content of a received packet, without copying it. The message takes ownership
+     * of the buffer; if the buffer was taken from the shared buffer pool, it is returned to the pool by release().
+     *
+     * @param packet A buffer containing the packet between position 0 and its limit.
+     * @param pooled True if the buffer was taken from the shared buffer pool.
+     * @return The received message.
+     */
+    static DNSMessage wrap(ByteBuffer packet, boolean pooled) {
+        DNSMessage message = new DNSMessage(packet, pooled);
+        packet.position(12);
+        return message;
+    }
+
+    /**
+     * Initializes a DNSMessage with a copy of an encoded message, in a direct buffer taken from the shared buffer pool.
+     * The position is at the end of the message, so records may be added to it, although their names are not
+     * compressed against the names of the copied message. The buffer is returned to the pool by release().
+     *
+     * @param data The encoded message, at most MAX_UDP_PAYLOAD_SIZE bytes long.
+     * @return The new message.
+     */
+    static DNSMessage copyOf(byte[] data) {
+        ByteBuffer buffer = DNSBufferPool.getInstance().acquire();
+        buffer.put(data);
+        return new DNSMessage(buffer, true);
+    }
+
+    /**
+     * Returns the buffer of this message to the shared buffer pool, if it was taken from it. The message must not be
+     * used afterwards. Has no effect on messages using their own buffer.
+     */
+    void release() {
+        if (pooled) {
+            pooled = false;
+            DNSBufferPool.getInstance().release(buffer);
+        }
+    }
+
+    /**
+     * Sends the data comprising this message (up to the current position in the buffer) to a datagram channel, straight
+     * from the message's buffer. The position of the buffer is unchanged.
+     *
+     * @param channel The channel used to send the message.
+     * @param target  The address the message is sent to.
+     * @return The number of bytes sent, as returned by DatagramChannel.send.
+     * @throws IOException If the message cannot be sent.
+     */
+    int send(DatagramChannel channel, SocketAddress target) throws IOException {
+        int end = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(end).position(0);
+        try {
+            return channel.send(buffer, target);
+        } finally {
+            buffer.limit(limit).position(end);
+        }
+    }
+
+    /**
+     * Returns the length of the data comprising this message, i.e., the current position in the buffer, without
+     * copying it as getUsed() does.
+     *
+     * @return The length of the message, in bytes.
+     */
+    int length() {
+        return buffer.position();
+    }
+
     /**
      * Getters and setters for the various fixed size and fixed location fields of a DNSMessage
      * TODO:  They are all to be completed
@@ -63,99 +192,71 @@ public class DNSMessage {
     }
 
     public boolean getQR() {
-        char secondLineHead =  buffer.getChar(2);
-        boolean QR = (secondLineHead & RA_QR_MASK)>>7 == 1;
-        return QR;
+        return (buffer.get(2) & RA_QR_MASK) != 0;
     }
 
     public void setQR(boolean qr) {
-        char secondLineHead =  buffer.getChar(2);
-        if (qr) {
-            buffer.putChar(2, (char) (secondLineHead | RA_QR_MASK));
-        } else {
-            buffer.putChar(2, (char) (secondLineHead & 0x7f));
-        }
+        setFlag(2, RA_QR_MASK, qr);
     }
 
     public boolean getAA() {
-        char secondLineHead =  buffer.getChar(2);
-        boolean AA =  (secondLineHead & AA_MASK)>>2 == 1;
-        return AA;
+        return (buffer.get(2) & AA_MASK) != 0;
     }
 
     public void setAA(boolean aa) {
-        char secondLineHead =  buffer.getChar(2);
-        if (aa) {
-            buffer.putChar(2, (char) (secondLineHead | AA_MASK));
-        } else {
-            buffer.putChar(2, (char) (secondLineHead & 0xfb));
-        }
+        setFlag(2, AA_MASK, aa);
     }
 
     public int getOpcode() {
-        char secondLineHead = buffer.getChar(2);
-        int Opcode = (secondLineHead & OPCODE_MASK) >> 3;
-        return Opcode;
+        return (buffer.get(2) & OPCODE_MASK) >> 3;
     }
 
     public void setOpcode(int opcode) {
-        char secondLineHead = buffer.getChar(2);
-        buffer.putChar(2, (char) (secondLineHead & 0x87 | ((opcode & 0xf)<<3)));
+        buffer.put(2, (byte) ((buffer.get(2) & ~OPCODE_MASK) | ((opcode << 3) & OPCODE_MASK)));
     }
 
     public boolean getTC() {
-        char secondLineHead = buffer.getChar(2);
-        boolean TC = (secondLineHead & TC_MASK)>>1 == 1;
-        return TC;
+        return (buffer.get(2) & TC_MASK) != 0;
     }
 
     public void setTC(boolean tc) {
-        char secondLineHead =  buffer.getChar(2);
-        if (tc) {
-            buffer.putChar(2, (char) (secondLineHead | TC_MASK));
-        } else {
-            buffer.putChar(2, (char) (secondLineHead & 0xfd));
-        }
+        setFlag(2, TC_MASK, tc);
     }
 
     public boolean getRD() {
-        char secondLineHead = buffer.getChar(2);
-        boolean RD = (secondLineHead & RD_MASK) == 1;
-        return RD;
+        return (buffer.get(2) & RD_MASK) != 0;
     }
 
     public void setRD(boolean rd) {
-        char secondLineHead =  buffer.getChar(2);
-        if (rd) {
-            buffer.putChar(2, (char) (secondLineHead | RD_MASK));
-        } else {
-            buffer.putChar(2, (char) (secondLineHead & 0xfe));
-        }
+        setFlag(2, RD_MASK, rd);
     }
 
     public boolean getRA() {
-        char secondLineTail = buffer.getChar(3);
-        boolean RA = (secondLineTail & RA_QR_MASK)>>7 == 1;
-        return RA;
+        return (buffer.get(3) & RA_QR_MASK) != 0;
     }
 
     public void setRA(boolean ra) {
-        char secondLineTail =  buffer.getChar(3);
-        if (ra) {
-            buffer.putChar(2, (char) (secondLineTail | RA_QR_MASK));
-        } else {
-            buffer.putChar(2, (char) (secondLineTail | 0x7f));
-        }
+        setFlag(3, RA_QR_MASK, ra);
     }
 
     public int getRcode() {
-        int Rcode = buffer.getChar(3) & RCODE_MASK;
-        return Rcode;
+        return buffer.get(3) & RCODE_MASK;
     }
 
     public void setRcode(int rcode) {
-        char temp = (char) ((buffer.getChar(3) & 0xf0) | ((rcode) & RCODE_MASK));
-        buffer.putChar(3, temp);
+        buffer.put(3, (byte) ((buffer.get(3) & ~RCODE_MASK) | (rcode & RCODE_MASK)));
+    }
+
+    /**
+     * Sets or clears the bits of a mask in one of the two flag bytes of the header (bytes 2 and 3).
+     *
+     * @param index The position of the flag byte in the message.
+     * @param mask  The bits to be changed.
+     * @param value true to set the bits, false to clear them.
+     */
+    private void setFlag(int index, int mask, boolean value) {
+        byte flags = buffer.get(index);
+        buffer.put(index, (byte) (value ? flags | mask : flags & ~mask));
     }
 
     public int getQDCount() {
@@ -164,6 +265,7 @@ public class DNSMessage {
     }
 
     public void setQDCount(int count) {
+        recordIndex = null; // Records are being added, so the index no longer matches the message
         this.buffer.putShort(4, (short)(count & 0xffff));
     }
 
@@ -173,6 +275,7 @@ public class DNSMessage {
     }
 
     public void setANCount(int count) {
+        recordIndex = null;
         this.buffer.putShort(6, (short) (count & 0xffff));
     }
 
@@ -181,6 +284,7 @@ public class DNSMessage {
         return NScount;
     }
     public void setNSCount(int count) {
+        recordIndex = null;
         this.buffer.putShort(8, (short) (count & 0xffff));
     }
 
@@ -190,38 +294,304 @@ public class DNSMessage {
     }
 
     public void setARCount(int count) {
+        recordIndex = null;
         this.buffer.putShort(10, (short)(count & 0xffff));
     }
 
     /**
-     * Return the name at the current position() of the buffer.  This method is provided for you,
-     * but you should ensure that you understand what it does and how it does it.
-     *
-     * The trick is to keep track of all the positions in the message that contain names, since
-     * they can be the target of a pointer.  We do this by storing the mapping of position to
-     * name in the positionToName map.
+     * Return the name at the current position() of the buffer, and moves the position past the name.
+     * The name is interned, so the returned string is shared with every other use of the same name.
      *
      * @return The decoded name
+     * @throws IllegalArgumentException If the compression pointers of the name form a loop.
      */
     public String getName() {
-        // Remember the starting position for updating the name cache
-        int start = buffer.position();
-        int len = buffer.get() & 0xff;
-        if (len == 0) return "";
-        if ((len & 0xc0) == 0xc0) {  // This is a pointer
-            int pointer = ((len & 0x3f) << 8) | (buffer.get() & 0xff);
-            String suffix = positionToName.get(pointer);
-            assert suffix != null;
-            positionToName.put(start, suffix);
-            return suffix;
+        return getDNSName().toString();
+    }
+
+    /**
+     * Return the interned name at the current position() of the buffer, and moves the position past the name.
+     *
+     * The labels are read in place, following compression pointers to wherever the rest of the name is in the packet.
+     * Labels are decoded as ISO-8859-1, which maps every byte to the character of the same value, the same way names
+     * are encoded by addName.
+     *
+     * @return The decoded name
+     * @throws IllegalArgumentException If the compression pointers of the name form a loop.
+     */
+    DNSName getDNSName() {
+        StringBuilder name = nameBuilder == null ? nameBuilder = new StringBuilder(64) : nameBuilder;
+        name.setLength(0);
+        int position = buffer.position();
+        int end = -1;
+        for (int pointers = 0; ; ) {
+            int len = buffer.get(position) & 0xff;
+            if ((len & POINTER_MASK) == POINTER_MASK) {
+                if (end < 0) end = position + 2;
+                if (++pointers > MAX_POINTERS)
+                    throw new IllegalArgumentException("Compression loop in name at " + buffer.position());
+                position = ((len & ~POINTER_MASK) << 8) | (buffer.get(position + 1) & 0xff);
+                continue;
+            }
+            position++;
+            if (len == 0) break;
+            if (name.length() > 0) name.append('.');
+            for (int i = 0; i < len; i++)
+                name.append((char) (buffer.get(position + i) & 0xff));
+            position += len;
+        }
+        buffer.position(end < 0 ? position : end);
+        return name.length() == 0 ? DNSName.ROOT : DNSName.of(name.toString());
+    }
+
+    /**
+     * Compares the name at a position of the buffer with an interned name, ignoring case, without decoding it. The
+     * labels are compared in place, following compression pointers, so no string is created and nothing is interned.
+     */
+    private boolean nameEqualsIgnoreCase(int position, DNSName name) {
+        for (int pointers = 0; ; ) {
+            int len = buffer.get(position) & 0xff;
+            if ((len & POINTER_MASK) == POINTER_MASK) {
+                if (++pointers > MAX_POINTERS)
+                    throw new IllegalArgumentException("Compression loop in name at " + position);
+                position = ((len & ~POINTER_MASK) << 8) | (buffer.get(position + 1) & 0xff);
+                continue;
+            }
+            if (len != name.getLabelLength()) return false;
+            if (len == 0) return true;
+            String text = name.toString();
+            for (int i = 0; i < len; i++)
+                if (DNSName.toLowerCase((char) (buffer.get(position + 1 + i) & 0xff)) !=
+                        DNSName.toLowerCase(text.charAt(i)))
+                    return false;
+            position += len + 1;
+            name = name.getParent();
+        }
+    }
+
+    /**
+     * Moves the position of the buffer past the name at the current position, without decoding it.
+     */
+    void skipName() {
+        int position = buffer.position();
+        while (true) {
+            int len = buffer.get(position) & 0xff;
+            if ((len & POINTER_MASK) == POINTER_MASK) {
+                position += 2;
+                break;
+            }
+            position += len + 1;
+            if (len == 0) break;
         }
-        byte[] bytes = new byte[len];
-        buffer.get(bytes, 0, len);
-        String label = new String(bytes, StandardCharsets.UTF_8);
-        String suffix = getName();
-        String answer = suffix.isEmpty() ? label : label + "." + suffix;
-        positionToName.put(start, answer);
-        return answer;
+        buffer.position(position);
+    }
+
+    /**
+     * Skips a resource record, without decoding it.
+     */
+    private void skipRR() {
+        skipName();
+        buffer.position(buffer.position() + 8);
+        int length = buffer.getShort() & 0xffff;
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * Returns the number of resource records in the answer, nameserver and additional sections of the message.
+     * Records are numbered in the order of the sections, so the records of the nameserver section start at
+     * getANCount(), and those of the additional section at getANCount() + getNSCount().
+     *
+     * @return The total number of resource records.
+     */
+    int getRecordCount() {
+        return getANCount() + getNSCount() + getARCount();
+    }
+
+    /**
+     * Returns the type code of a resource record, without decoding the record. The first use of this method,
+     * getRecordName or getRR(int) scans the message once to find where its records are; records are only decoded when
+     * they are requested.
+     *
+     * @param index The number of the record, as defined by getRecordCount.
+     * @return The type code of the record, including codes not supported by the application.
+     */
+    int getRecordTypeCode(int index) {
+        return buffer.getShort(indexRecords()[2 * index + 1]) & 0xffff;
+    }
+
+    /**
+     * Returns the class code of a resource record, without decoding the record.
+     *
+     * @param index The number of the record, as defined by getRecordCount.
+     * @return The class code of the record, including codes not supported by the application.
+     */
+    int getRecordClassCode(int index) {
+        return buffer.getShort(indexRecords()[2 * index + 1] + 2) & 0xffff;
+    }
+
+    /**
+     * Returns the owner name of a resource record, decoding only the name. The current position in the buffer is not
+     * changed.
+     *
+     * @param index The number of the record, as defined by getRecordCount.
+     * @return The interned owner name of the record.
+     */
+    DNSName getRecordName(int index) {
+        int position = buffer.position();
+        try {
+            buffer.position(indexRecords()[2 * index]);
+            return getDNSName();
+        } finally {
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * Returns true if the owner name of a resource record is a given name, ignoring case. The owner name is compared
+     * where it is in the packet, so a record whose name is only checked, e.g., an additional record that is neither
+     * cached nor printed, never has its name decoded or interned.
+     *
+     * @param index The number of the record, as defined by getRecordCount.
+     * @param name  The name to compare the owner name with.
+     * @return true if the owner name of the record is the name, except for case, false otherwise.
+     */
+    boolean isRecordName(int index, DNSName name) {
+        return nameEqualsIgnoreCase(indexRecords()[2 * index], name);
+    }
+
+    /**
+     * Decodes and returns a specific resource record, wherever the current position in the buffer is. The current
+     * position is not changed, so records may be decoded in any order, and records that are not needed are never
+     * decoded.
+     *
+     * @param index The number of the record, as defined by getRecordCount.
+     * @return The decoded resource record.
+     */
+    ResourceRecord getRR(int index) {
+        int position = buffer.position();
+        try {
+            buffer.position(indexRecords()[2 * index]);
+            return getRR();
+        } finally {
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * Returns the positions of the resource records of the message, finding them the first time it is called. Names
+     * are skipped rather than decoded, so finding the records only reads their length fields.
+     *
+     * @return The index of the records, as kept in recordIndex.
+     * @throws BufferUnderflowException If the message ends before its last record, as getRR() would.
+     */
+    private int[] indexRecords() {
+        if (recordIndex != null) return recordIndex;
+        int position = buffer.position();
+        try {
+            buffer.position(12);
+            for (int i = getQDCount(); i > 0; i--) {
+                skipName();
+                buffer.position(buffer.position() + 4);
+            }
+            int[] index = new int[2 * getRecordCount()];
+            for (int i = 0; i < index.length; i += 2) {
+                index[i] = buffer.position();
+                skipName();
+                index[i + 1] = buffer.position();
+                buffer.position(buffer.position() + 8);
+                int length = buffer.getShort() & 0xffff;
+                if (length > buffer.remaining())
+                    throw new BufferUnderflowException();
+                buffer.position(buffer.position() + length);
+            }
+            return recordIndex = index;
+        } finally {
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * Add an EDNS0 OPT pseudo-record (RFC 6891) to the additional section of the message, at the current position,
+     * advertising the largest UDP payload the sender can receive. The extended error code, version and flags are 0.
+     *
+     * @param udpPayloadSize The UDP payload size, in bytes.
+     */
+    public void addOPT(int udpPayloadSize) {
+        this.setARCount(this.getARCount() + 1);
+        buffer.put((byte) 0); // Root name
+        addQType(RecordType.OPT);
+        buffer.putShort((short) udpPayloadSize); // The class field holds the payload size
+        buffer.putInt(0);
+        buffer.putShort((short) 0);
+    }
+
+    /**
+     * Returns the largest UDP payload the sender of this message can receive, as advertised by an OPT pseudo-record
+     * in the additional section. The current position in the buffer is not changed.
+     *
+     * @return The UDP payload size, or 512 if the message has no OPT record. Sizes below 512 are treated as 512.
+     */
+    public int getUDPPayloadSize() {
+        int position = buffer.position();
+        try {
+            buffer.position(12);
+            for (int i = 0; i < getQDCount(); i++) {
+                skipName();
+                buffer.position(buffer.position() + 4);
+            }
+            for (int i = getANCount() + getNSCount(); i > 0; i--)
+                skipRR();
+            for (int i = 0; i < getARCount(); i++) {
+                int start = buffer.position();
+                skipName();
+                if ((buffer.getShort() & 0xffff) == RecordType.OPT.getCode())
+                    return Math.max(MAX_DNS_MESSAGE_LENGTH, buffer.getShort() & 0xffff);
+                buffer.position(start);
+                skipRR();
+            }
+            return MAX_DNS_MESSAGE_LENGTH;
+        } finally {
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * Returns the positions of the TTL fields of all resource records in the message, e.g., to update them in a copy
+     * of the message. The current position in the buffer is not changed.
+     *
+     * @return The offsets of the TTL fields from the beginning of the message, in the order of the records.
+     */
+    int[] getTTLPositions() {
+        int position = buffer.position();
+        try {
+            buffer.position(12);
+            for (int i = 0; i < getQDCount(); i++) {
+                skipName();
+                buffer.position(buffer.position() + 4);
+            }
+            int[] positions = new int[getANCount() + getNSCount() + getARCount()];
+            for (int i = 0; i < positions.length; i++) {
+                skipName();
+                positions[i] = buffer.position() + 4;
+                buffer.position(positions[i] + 4);
+                int length = buffer.getShort() & 0xffff;
+                buffer.position(buffer.position() + length);
+            }
+            return positions;
+        } finally {
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * Decrements the TTL fields at specific positions, without going below 0.
+     *
+     * @param positions The positions of the TTL fields, as returned by getTTLPositions.
+     * @param seconds   The number of seconds subtracted from each TTL.
+     */
+    void decrementTTLs(int[] positions, int seconds) {
+        for (int position : positions)
+            buffer.putInt(position, Math.max(0, buffer.getInt(position) - seconds));
     }
 
     /**
@@ -301,7 +671,7 @@ public class DNSMessage {
      */
     public DNSQuestion getQuestion() {
         // TODO: Complete this method
-        String hostname = this.getName();
+        DNSName hostname = this.getDNSName();
         int RecordTypeCode = buffer.getShort();
         int RecordClassCode = buffer.getShort();
         return new DNSQuestion(hostname, RecordType.getByCode(RecordTypeCode), RecordClass.getByCode(RecordClassCode));
@@ -314,39 +684,54 @@ public class DNSMessage {
      * @return The decoded resource record
      */
     public ResourceRecord getRR() {
-        // TODO: Complete this method
-        ResourceRecord outputRR = null;
-//        Get the name and type of ResourceRecords
-        DNSQuestion FQDNInfo = this.getQuestion();
-        int TTL = buffer.getInt();
-        short len = buffer.getShort();
-        if (FQDNInfo.getRecordType() == RecordType.A) {
-            byte[] bytes = new byte[4];
-            buffer.get(bytes, 0, 4);
-            try {
-                outputRR = new ResourceRecord(FQDNInfo, TTL, InetAddress.getByAddress(bytes));
-            } catch (UnknownHostException e) {
-                e.printStackTrace();
-            }
-        } else if (FQDNInfo.getRecordType() == RecordType.AAAA) {
-            byte[] bytes = new byte[16];
-            buffer.get(bytes, 0, 16);
-            try {
-                outputRR = new ResourceRecord(FQDNInfo, TTL, InetAddress.getByAddress(bytes));
-            } catch (UnknownHostException e) {
-                e.printStackTrace();
-            }
-        } else if (FQDNInfo.getRecordType() == RecordType.MX) {
-            short priority = buffer.getShort();
-            String value = this.getName();
-            outputRR = new ResourceRecord(FQDNInfo, TTL, value);
-        } else {
-            String result = this.getName();
-            outputRR = new ResourceRecord(FQDNInfo, TTL, result);
+        DNSQuestion question = this.getQuestion();
+        int ttl = buffer.getInt();
+        int length = buffer.getShort() & 0xffff;
+        int end = buffer.position() + length;
+        ResourceRecord record;
+        switch (question.getRecordType()) {
+            case A:
+            case AAAA:
+                if (length == 4)
+                    record = new ResourceRecord(question, ttl, 0, buffer.getInt(), false);
+                else if (length == 16)
+                    record = new ResourceRecord(question, ttl, buffer.getLong(), buffer.getLong(), true);
+                else
+                    record = new ResourceRecord(question, ttl, getData(length)); // Invalid address, kept as is
+                break;
+            case MX:
+                int preference = buffer.getShort() & 0xffff;
+                record = new ResourceRecord(question, ttl, preference, this.getDNSName());
+                break;
+            case NS:
+            case CNAME:
+                record = new ResourceRecord(question, ttl, this.getDNSName());
+                break;
+            case SOA:
+                String primary = this.getName();
+                String mailbox = this.getName();
+                StringBuilder sb = new StringBuilder(primary).append(' ').append(mailbox);
+                for (int i = 0; i < 5; i++)
+                    sb.append(' ').append(buffer.getInt() & 0xffffffffL);
+                record = new ResourceRecord(question, ttl, sb.toString());
+                break;
+            default:
+                record = new ResourceRecord(question, ttl, getData(length));
         }
+        buffer.position(end);
+        return record;
+    }
 
-
-        return outputRR;
+    /**
+     * Returns a copy of the data at the current position of the buffer, and moves the position past it.
+     *
+     * @param length The number of bytes of data.
+     * @return The data.
+     */
+    private byte[] getData(int length) {
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
     }
 
     /**
@@ -357,7 +742,12 @@ public class DNSMessage {
      * @return A string containing the hex value of every byte in the data.
      */
     public static String byteArrayToHexString(byte[] data) {
-        return IntStream.range(0, data.length).mapToObj(i -> String.format("%02x", data[i])).reduce("", String::concat);
+        char[] hex = new char[2 * data.length];
+        for (int i = 0; i < data.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(data[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[data[i] & 0xf];
+        }
+        return new String(hex);
     }
 
     /**
@@ -368,28 +758,59 @@ public class DNSMessage {
      * @param name The name to be added
      */
     public void addName(String name) {
-        String label;
-        while (name.length() > 0) {
-            Integer offset = nameToPosition.get(name);
-            if (offset != null) {
-                int pointer = offset;
-                pointer |= 0xc000;
-                buffer.putShort((short)pointer);
+        addName(DNSName.of(name));
+    }
+
+    /**
+     * Add an encoded name to the message, as in addName(String). Since names are interned, a suffix of the name can
+     * be matched with the names already added by identity, walking up the parents of the name.
+     *
+     * @param name The name to be added
+     */
+    void addName(DNSName name) {
+        for (; !name.isRoot(); name = name.getParent()) {
+            int offset = findName(name);
+            if (offset >= 0) {
+                buffer.putShort((short) (offset | 0xc000));
                 return;
-            } else {
-                nameToPosition.put(name, buffer.position());
-                int dot = name.indexOf('.');
-                label = (dot > 0) ? name.substring(0, dot) : name;
-                buffer.put((byte)label.length());
-                for (int j = 0; j < label.length(); j++) {
-                    buffer.put((byte)label.charAt(j));
-                }
-                name = (dot > 0) ? name.substring(dot + 1) : "";
+            }
+            rememberName(name, buffer.position());
+            String text = name.toString();
+            int length = name.getLabelLength();
+            buffer.put((byte) length);
+            for (int j = 0; j < length; j++) {
+                buffer.put((byte) text.charAt(j));
             }
         }
         buffer.put((byte)0);
     }
 
+    /**
+     * Returns the position of a name already added to the message, or -1 if it was not added.
+     */
+    private int findName(DNSName name) {
+        for (int i = 0; i < nameCount; i++)
+            if (names[i] == name)
+                return namePositions[i];
+        return -1;
+    }
+
+    /**
+     * Records the position of a name added to the message, if it can be the target of a compression pointer.
+     */
+    private void rememberName(DNSName name, int position) {
+        if (position > MAX_POINTER_OFFSET) return;
+        if (names == null) {
+            names = new DNSName[8];
+            namePositions = new int[8];
+        } else if (nameCount == names.length) {
+            names = Arrays.copyOf(names, nameCount * 2);
+            namePositions = Arrays.copyOf(namePositions, nameCount * 2);
+        }
+        names[nameCount] = name;
+        namePositions[nameCount++] = position;
+    }
+
     /**
      * Add an encoded question to the message at the current position.
      * @param question The question to be added
@@ -398,7 +819,7 @@ public class DNSMessage {
         // TODO: Complete this method
         int curQDcount = this.getQDCount();
         this.setQDCount(++curQDcount);
-        this.addName(question.getHostName());
+        this.addName(question.getName());
         this.addQType(question.getRecordType());
         this.addQClass(question.getRecordClass());
     }
@@ -421,27 +842,56 @@ public class DNSMessage {
             this.setARCount(++curARcount);
         }
 
-        this.addName(rr.getHostName());
+        this.addName(rr.getQuestion().getName());
         this.addQType(rr.getRecordType());
         this.addQClass(rr.getRecordClass());
-        buffer.putInt((int) rr.getRemainingTTL());
-        if (rr.getRecordType() == RecordType.A) {
-            buffer.putShort((short) 4);
-            byte[] bytes = rr.getInetResult().getAddress();
-            buffer.put(bytes);
-        } else if (rr.getRecordType() == RecordType.AAAA) {
-            buffer.putShort((short) 16);
-            byte[] bytes = rr.getInetResult().getAddress();
-            buffer.put(bytes);
-        } else if (rr.getRecordType() == RecordType.MX) {
-            buffer.putShort((short) rr.getTextResult().length());
-            short priority = 0;
-            buffer.putShort(priority);
-            this.addName(rr.getTextResult());
-        } else {
-            buffer.putShort((short) rr.getTextResult().length());
-            this.addName(rr.getTextResult());
+        buffer.putInt((int) Math.max(0, rr.getRemainingTTL()));
+        // The data length is only known once the data is encoded, possibly with compressed names
+        int lengthPosition = buffer.position();
+        buffer.putShort((short) 0);
+        switch (rr.getRecordType()) {
+            case A:
+            case AAAA:
+                if (rr.getAddressLength() > 0)
+                    rr.putAddress(buffer);
+                else
+                    addData(rr); // An address of invalid length, kept as its raw data
+                break;
+            case MX:
+                buffer.putShort((short) rr.getPreference());
+                this.addName(rr.getNameResult());
+                break;
+            case NS:
+            case CNAME:
+                this.addName(rr.getNameResult());
+                break;
+            case SOA:
+                String[] fields = rr.getTextResult().split(" ");
+                this.addName(fields[0]);
+                this.addName(fields[1]);
+                for (int i = 2; i < 7; i++)
+                    buffer.putInt((int) Long.parseLong(fields[i]));
+                break;
+            default:
+                addData(rr);
+        }
+        buffer.putShort(lengthPosition, (short) (buffer.position() - lengthPosition - 2));
+    }
+
+    /**
+     * Add the data of a record whose type is not supported by the application to the message at the current position.
+     * The data is kept as is by records decoded from a message; records created with a hexadecimal string are
+     * converted.
+     * @param rr The record whose data is added
+     */
+    private void addData(ResourceRecord rr) {
+        if (rr.getDataLength() >= 0) {
+            rr.putData(buffer);
+            return;
         }
+        String hex = rr.getTextResult();
+        for (int i = 0; i + 1 < hex.length(); i += 2)
+            buffer.put((byte) Integer.parseInt(hex.substring(i, i + 2), 16));
     }
 
     /**
@@ -0,0 +1,327 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a lookup service, beyond the events reported to its DNSVerbosePrinter: cache hits and misses per
+ * record type, round-trip times of each nameserver, retries and timeouts of queries, referrals followed by each
+ * resolution, and the number of queries in flight. Metrics can be read with the getters, printed as text with dump, or
+ * exported over JMX with register.
+ * <p>
+ * Metrics are recorded on the paths of every lookup, so recording is lock-free and never allocates once a nameserver
+ * has been seen: counters are LongAdders and distributions are LogHistograms. Nothing is computed until metrics are
+ * read, so the cost of metrics that are never read is that of the counters alone. Counters already kept by the cache
+ * and the lookup service (e.g., hits, resolutions, hedges) are read from them rather than counted again.
+ * <p>
+ * Round-trip times are kept for at most MAX_SERVERS nameservers; samples of other nameservers are only included in the
+ * distribution of all nameservers.
+ */
+public class DNSMetrics implements DNSMetricsMXBean {
+
+    static final int MAX_SERVERS = Integer.getInteger("dnslookup.metrics.maxServers", 1000);
+    private static final String DOMAIN = "ca.ubc.cs.cs317.dnslookup";
+
+    private final DNSLookupService service;
+    private final DNSCache cache;
+    private final LongAdder queryCount = new LongAdder();
+    private final LongAdder retryCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder inFlightQueries = new LongAdder();
+    private final LongAdder zoneCutCount = new LongAdder();
+    private final LogHistogram referralDepth = new LogHistogram();
+    private final LogHistogram rtt = new LogHistogram();
+    private final Map<InetAddress, LogHistogram> serverRtt = new ConcurrentHashMap<>();
+    private ObjectName objectName;
+
+    /**
+     * Creates the metrics of a lookup service.
+     *
+     * @param service The lookup service whose queries are recorded.
+     * @param cache   The cache used by the lookup service.
+     */
+    DNSMetrics(DNSLookupService service, DNSCache cache) {
+        this.service = service;
+        this.cache = cache;
+    }
+
+    /**
+     * Exports the metrics over JMX, with the platform MBean server, as ca.ubc.cs.cs317.dnslookup:type=Resolver,name=
+     * followed by a name. Metrics that are already exported are exported again under the new name.
+     *
+     * @param name The name distinguishing these metrics from those of other lookup services.
+     * @return The name of the MBean.
+     * @throws JMException If the name is not valid or is already used.
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=Resolver,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Stops exporting the metrics over JMX, if they are exported.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // Already unregistered
+        }
+        objectName = null;
+    }
+
+    /**
+     * Records a query sent to a nameserver.
+     *
+     * @param retry true if the query is a retransmission after a timeout, false if it is the first attempt or a hedge.
+     */
+    void recordQuery(boolean retry) {
+        queryCount.increment();
+        if (retry) retryCount.increment();
+    }
+
+    /**
+     * Records a query that was not answered before its retransmission timeout.
+     */
+    void recordTimeout() {
+        timeoutCount.increment();
+    }
+
+    /**
+     * Records the round-trip time of a query answered by a nameserver.
+     *
+     * @param server    The address of the nameserver.
+     * @param rttMicros The round-trip time, in microseconds.
+     */
+    void recordRtt(InetAddress server, long rttMicros) {
+        rtt.record(rttMicros);
+        LogHistogram histogram = serverRtt.get(server);
+        if (histogram == null) {
+            if (serverRtt.size() >= MAX_SERVERS) return;
+            histogram = serverRtt.computeIfAbsent(server, s -> new LogHistogram());
+        }
+        histogram.record(rttMicros);
+    }
+
+    /**
+     * Records the end of a resolution.
+     *
+     * @param referrals The number of referrals followed by the resolution.
+     */
+    void recordReferrals(int referrals) {
+        referralDepth.record(referrals);
+    }
+
+    /**
+     * Records a resolution started at the nameservers of a cached zone cut instead of the start servers.
+     */
+    void recordZoneCut() {
+        zoneCutCount.increment();
+    }
+
+    /**
+     * Records the start of an individual query, i.e., an exchange with the nameservers of a zone that ends when a
+     * response is received or all attempts timed out. Must be followed by a call to queryCompleted.
+     */
+    void queryStarted() {
+        inFlightQueries.increment();
+    }
+
+    /**
+     * Records the end of an individual query started with queryStarted.
+     */
+    void queryCompleted() {
+        inFlightQueries.decrement();
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return cache.getHitCount();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return cache.getMissCount();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        return ratio(cache.getHitCount(), cache.getMissCount());
+    }
+
+    @Override
+    public Map<String, Long> getCacheLookupCountByType() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (RecordType type : RecordType.values()) {
+            long lookups = cache.getHitCount(type) + cache.getMissCount(type);
+            if (lookups > 0) counts.put(type.name(), lookups);
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getCacheHitRatioByType() {
+        Map<String, Double> ratios = new TreeMap<>();
+        for (RecordType type : RecordType.values()) {
+            long hits = cache.getHitCount(type);
+            long misses = cache.getMissCount(type);
+            if (hits + misses > 0) ratios.put(type.name(), ratio(hits, misses));
+        }
+        return ratios;
+    }
+
+    @Override
+    public long getCacheRecordCount() {
+        return cache.getRecordCount();
+    }
+
+    @Override
+    public long getCacheEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    @Override
+    public long getResolutionCount() {
+        return service.getResolutionCount();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return service.getCoalescedCount();
+    }
+
+    @Override
+    public long getZoneCutCount() {
+        return zoneCutCount.sum();
+    }
+
+    @Override
+    public double getMeanReferralDepth() {
+        return referralDepth.getMean();
+    }
+
+    @Override
+    public long getMaxReferralDepth() {
+        return referralDepth.getMax();
+    }
+
+    @Override
+    public long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    @Override
+    public long getInFlightQueryCount() {
+        return inFlightQueries.sum();
+    }
+
+    @Override
+    public long getHedgeCount() {
+        return service.getHedgeCount();
+    }
+
+    @Override
+    public long getTcpFallbackCount() {
+        return service.getTcpFallbackCount();
+    }
+
+    @Override
+    public double getMedianRttMillis() {
+        return rtt.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getP99RttMillis() {
+        return rtt.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public Map<String, Double> getMedianRttMillisByServer() {
+        return serverPercentiles(50);
+    }
+
+    @Override
+    public Map<String, Double> getP99RttMillisByServer() {
+        return serverPercentiles(99);
+    }
+
+    /**
+     * Returns the distribution of the round-trip times of a nameserver.
+     *
+     * @param server The address of the nameserver.
+     * @return The histogram of its round-trip times in microseconds, or null if none was recorded.
+     */
+    LogHistogram getRttHistogram(InetAddress server) {
+        return serverRtt.get(server);
+    }
+
+    private Map<String, Double> serverPercentiles(double percentile) {
+        Map<String, Double> percentiles = new TreeMap<>();
+        for (Map.Entry<InetAddress, LogHistogram> entry : serverRtt.entrySet())
+            percentiles.put(entry.getKey().getHostAddress(), entry.getValue().getValueAtPercentile(percentile) / 1000.0);
+        return percentiles;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        out.append(String.format("Cache: %d records, %d evictions, %d hits, %d misses (%.1f%% hits)\n",
+                cache.getRecordCount(), cache.getEvictionCount(), hits, misses, 100 * ratio(hits, misses)));
+        for (RecordType type : RecordType.values()) {
+            long typeHits = cache.getHitCount(type);
+            long typeMisses = cache.getMissCount(type);
+            if (typeHits + typeMisses > 0)
+                out.append(String.format("  %-6s %10d hits %10d misses (%.1f%% hits)\n", type, typeHits, typeMisses,
+                        100 * ratio(typeHits, typeMisses)));
+        }
+        out.append(String.format("Resolutions: %d (%d coalesced, %d from a zone cut), referrals mean %.1f p99 %d "
+                        + "max %d\n", service.getResolutionCount(), service.getCoalescedCount(), zoneCutCount.sum(),
+                referralDepth.getMean(), referralDepth.getValueAtPercentile(99), referralDepth.getMax()));
+        out.append(String.format("Queries: %d sent, %d retries, %d timeouts, %d hedges, %d TCP fallbacks, %d in flight\n",
+                queryCount.sum(), retryCount.sum(), timeoutCount.sum(), service.getHedgeCount(),
+                service.getTcpFallbackCount(), inFlightQueries.sum()));
+        out.append(String.format("RTT (ms) %-30s %8s %8s %8s %8s %8s\n", "", "count", "p50", "p90", "p99", "max"));
+        appendRtt(out, "all", rtt);
+        List<Map.Entry<InetAddress, LogHistogram>> servers = new ArrayList<>(serverRtt.entrySet());
+        servers.sort((a, b) -> Long.compare(b.getValue().getCount(), a.getValue().getCount()));
+        for (Map.Entry<InetAddress, LogHistogram> entry : servers)
+            appendRtt(out, entry.getKey().getHostAddress(), entry.getValue());
+        return out.toString();
+    }
+
+    private static void appendRtt(StringBuilder out, String server, LogHistogram histogram) {
+        out.append(String.format("  %-37s %8d %8.1f %8.1f %8.1f %8.1f\n", server, histogram.getCount(),
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0, histogram.getMax() / 1000.0));
+    }
+
+    private static double ratio(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+}
@@ -0,0 +1,61 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Map;
+
+/**
+ * The management interface of DNSMetrics, exported over JMX. Every attribute is computed from the counters of the
+ * resolver when it is read. Maps are keyed by record type or by nameserver address, and are exported as tabular data.
+ */
+public interface DNSMetricsMXBean {
+
+    long getCacheHitCount();
+
+    long getCacheMissCount();
+
+    double getCacheHitRatio();
+
+    Map<String, Long> getCacheLookupCountByType();
+
+    Map<String, Double> getCacheHitRatioByType();
+
+    long getCacheRecordCount();
+
+    long getCacheEvictionCount();
+
+    long getResolutionCount();
+
+    long getCoalescedCount();
+
+    long getZoneCutCount();
+
+    double getMeanReferralDepth();
+
+    long getMaxReferralDepth();
+
+    long getQueryCount();
+
+    long getRetryCount();
+
+    long getTimeoutCount();
+
+    long getInFlightQueryCount();
+
+    long getHedgeCount();
+
+    long getTcpFallbackCount();
+
+    double getMedianRttMillis();
+
+    double getP99RttMillis();
+
+    Map<String, Double> getMedianRttMillisByServer();
+
+    Map<String, Double> getP99RttMillisByServer();
+
+    /**
+     * Returns all metrics as text, as printed by the "stats" command of DNSLookupCUI.
+     *
+     * @return A multi-line report.
+     */
+    String dump();
+}
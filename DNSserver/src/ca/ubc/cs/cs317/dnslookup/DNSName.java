@@ -0,0 +1,209 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A domain name, interned in a table shared by the whole application. There is never more than one DNSName object
+ * for the same name, so names can be compared by identity, and the text of a name is kept only once no matter how many
+ * questions, records and messages refer to it. Each name links to its parent (the name without its first label), so
+ * the suffixes of a name are interned too, and walking up to the root does not create any object.
+ * <p>
+ * Names are interned as they are written: two names that only differ by case are distinct objects, as they were
+ * distinct strings before. The hash code of a name is computed ignoring case, though, so names that only differ by
+ * case have the same hash code, and can be compared with equalsIgnoreCase without looking at their text when their
+ * hash codes differ.
+ * <p>
+ * The table only keeps weak references to its names, so names that are no longer used anywhere else are removed
+ * from it by the garbage collector.
+ */
+final class DNSName implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The root name, which is the only name without a parent.
+     */
+    static final DNSName ROOT = new DNSName("", null, 0);
+
+    private static final ConcurrentHashMap<String, NameReference> TABLE = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<DNSName> COLLECTED = new ReferenceQueue<>();
+
+    private final String name;
+    private final transient DNSName parent;
+    private final transient int labelLength;
+    private final transient int hash;
+
+    private DNSName(String name, DNSName parent, int labelLength) {
+        this.name = name;
+        this.parent = parent;
+        this.labelLength = labelLength;
+        int h = parent == null ? 0 : parent.hash;
+        for (int i = labelLength - 1; i >= 0; i--)
+            h = 31 * h + toLowerCase(name.charAt(i));
+        this.hash = h;
+    }
+
+    /**
+     * Returns the interned name for a string, interning it (and its suffixes) if it is not already in the table.
+     *
+     * @param name The text of the name, without a trailing dot. An empty string is the root name.
+     * @return The only DNSName object with this text.
+     */
+    static DNSName of(String name) {
+        if (name.isEmpty()) return ROOT;
+        NameReference reference = TABLE.get(name);
+        DNSName interned = reference == null ? null : reference.get();
+        if (interned != null) return interned;
+
+        expungeCollected();
+        int dot = name.indexOf('.');
+        // Same label boundaries as DNSMessage.addName: a label cannot be empty
+        int labelLength = dot > 0 ? dot : name.length();
+        DNSName parent = labelLength < name.length() ? of(name.substring(labelLength + 1)) : ROOT;
+        DNSName created = new DNSName(name, parent, labelLength);
+        NameReference createdReference = new NameReference(created);
+        while (true) {
+            reference = TABLE.putIfAbsent(name, createdReference);
+            if (reference == null) return created;
+            // Another thread interned the name first, unless its entry is only waiting to be expunged
+            interned = reference.get();
+            if (interned != null) return interned;
+            if (TABLE.replace(name, reference, createdReference)) return created;
+        }
+    }
+
+    /**
+     * Makes room in the intern table for a number of new names, so that interning many names at once, e.g., the names
+     * of a cache snapshot, does not grow the table one step at a time.
+     *
+     * @param count The number of names about to be interned.
+     */
+    static void reserve(int count) {
+        int size = TABLE.size() + count;
+        // putAll sizes the table for the size of the map before adding its entries, and this map has none
+        TABLE.putAll(new AbstractMap<String, NameReference>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Set<Entry<String, NameReference>> entrySet() {
+                return Collections.emptySet();
+            }
+        });
+    }
+
+    /**
+     * Returns the number of names currently in the table, including names whose removal is still pending.
+     *
+     * @return The size of the intern table.
+     */
+    static int getInternedCount() {
+        expungeCollected();
+        return TABLE.size();
+    }
+
+    private static void expungeCollected() {
+        NameReference reference;
+        while ((reference = (NameReference) COLLECTED.poll()) != null)
+            TABLE.remove(reference.key, reference);
+    }
+
+    static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Returns the parent of this name, i.e., the name of the zone one level up.
+     *
+     * @return The name without its first label, or null if this name is the root.
+     */
+    DNSName getParent() {
+        return parent;
+    }
+
+    /**
+     * Returns the length of the first label of this name.
+     *
+     * @return The number of characters in the first label, or 0 if this name is the root.
+     */
+    int getLabelLength() {
+        return labelLength;
+    }
+
+    /**
+     * Returns true if this name is the root name.
+     *
+     * @return true if this name has no labels, false otherwise.
+     */
+    boolean isRoot() {
+        return parent == null;
+    }
+
+    /**
+     * Returns true if this name is in a zone, i.e., if it is the name of the zone or one of its subdomains, ignoring
+     * case. Every name is in the root zone.
+     *
+     * @param zone The name of the zone.
+     * @return true if this name or one of its parents is the name of the zone, false otherwise.
+     */
+    boolean isInZone(DNSName zone) {
+        for (DNSName name = this; name != null; name = name.parent)
+            if (name.equalsIgnoreCase(zone)) return true;
+        return false;
+    }
+
+    /**
+     * Compares this name with another name, ignoring case.
+     *
+     * @param other The name to be compared.
+     * @return true if both names are the same except for case, false otherwise.
+     */
+    boolean equalsIgnoreCase(DNSName other) {
+        return this == other || (hash == other.hash && name.equalsIgnoreCase(other.name));
+    }
+
+    /**
+     * Returns the hash code of this name, computed ignoring case.
+     *
+     * @return The hash code of the name.
+     */
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Returns the text of this name. The same string object is returned every time.
+     *
+     * @return The name, with its labels separated by dots, or an empty string for the root.
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+        return of(name);
+    }
+
+    /**
+     * An entry of the intern table, which does not prevent its name from being garbage collected.
+     */
+    private static class NameReference extends WeakReference<DNSName> {
+        private final String key;
+
+        private NameReference(DNSName name) {
+            super(name, COLLECTED);
+            this.key = name.name;
+        }
+    }
+}
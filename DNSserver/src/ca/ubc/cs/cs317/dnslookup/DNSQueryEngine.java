@@ -0,0 +1,661 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A non-blocking engine that sends DNS queries over UDP and matches their responses. All queries share a single
+ * DatagramChannel, served by one I/O thread that waits on a Selector, so any number of queries may be outstanding at
+ * the same time. Responses are matched to queries by transaction ID and source address, and queries that are not
+ * answered in time are retransmitted with the same transaction ID.
+ * <p>
+ * Futures returned by this engine are completed by its I/O thread. Actions attached to them must therefore not block;
+ * in particular they must not wait for the result of another query.
+ * <p>
+ * Queries are sent straight from the buffer of their message, and responses are received into direct buffers taken
+ * from the shared DNSBufferPool and wrapped without being copied. Callers may release both messages once the query
+ * is complete.
+ * <p>
+ * Queries may also be sent over TCP (RFC 7766), e.g., when a UDP response was truncated. TCP connections are kept open
+ * and reused by later queries to the same server, so only the first query pays for the handshake, and several queries
+ * are pipelined on each connection: they are sent without waiting for the previous responses, which the server may
+ * send in any order, and responses are matched to queries by transaction ID. A new connection is opened when every
+ * connection to the server has MAX_PIPELINED_QUERIES outstanding queries, and connections left idle for the idle
+ * timeout (see setTcpIdleTimeout) are closed. TCP connections are served by the same I/O thread and selector as the
+ * UDP channel.
+ */
+class DNSQueryEngine implements AutoCloseable {
+
+    static final int DEFAULT_TCP_IDLE_TIMEOUT_MILLIS = 10_000;
+    static final int MAX_PIPELINED_QUERIES = 64;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final int timeoutMillis;
+    private final int maxAttempts;
+    private final Random random = new SecureRandom();
+    private final Map<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+    private final Queue<PendingQuery> submissions = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<PendingQuery> timers = new PriorityQueue<>(
+            (a, b) -> Long.compare(a.deadline - b.deadline, 0));
+    private final Queue<Delay> delaySubmissions = new ConcurrentLinkedQueue<>();
+    private final Queue<TcpQuery> tcpSubmissions = new ConcurrentLinkedQueue<>();
+    private final Set<TcpQuery> tcpQueries = new HashSet<>();
+    private final Map<InetSocketAddress, List<TcpConnection>> tcpConnections = new HashMap<>();
+    private final PriorityQueue<Delay> delays = new PriorityQueue<>(
+            (a, b) -> Long.compare(a.deadline - b.deadline, 0));
+    private volatile int tcpIdleTimeoutMillis = DEFAULT_TCP_IDLE_TIMEOUT_MILLIS;
+    private volatile boolean open = true;
+
+    /**
+     * Creates a new engine and starts its I/O thread.
+     *
+     * @param timeoutMillis Time to wait for a response before a query is sent again, in milliseconds.
+     * @param maxAttempts   Maximum number of times a query is sent before it fails.
+     * @throws IOException If the channel or the selector cannot be opened.
+     */
+    DNSQueryEngine(int timeoutMillis, int maxAttempts) throws IOException {
+        this.timeoutMillis = timeoutMillis;
+        this.maxAttempts = maxAttempts;
+        this.channel = DatagramChannel.open();
+        this.selector = Selector.open();
+        channel.bind(null);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        this.ioThread = new Thread(this::run, "dns-query-engine");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Sends a query to a nameserver. If the transaction ID of the query is already used by another outstanding query, a
+     * new random transaction ID is assigned to it before it is sent.
+     *
+     * @param query  The query message to be sent.
+     * @param server Address and port of the nameserver.
+     * @param onSend Action performed every time the query is about to be sent (or sent again).
+     * @return A future completed with the response, or completed exceptionally with a SocketTimeoutException if no
+     * response is received after the maximum number of attempts. Cancelling the future stops any retransmission.
+     */
+    CompletableFuture<DNSMessage> query(DNSMessage query, InetSocketAddress server, Runnable onSend) {
+        return query(query, server, timeoutMillis, maxAttempts, onSend);
+    }
+
+    /**
+     * Sends a query to a nameserver, as in query(query, server, onSend), with a specific timeout and number of
+     * attempts instead of the defaults of the engine.
+     *
+     * @param query         The query message to be sent.
+     * @param server        Address and port of the nameserver.
+     * @param timeoutMillis Time to wait for a response before the query is sent again, in milliseconds.
+     * @param maxAttempts   Maximum number of times the query is sent before it fails.
+     * @param onSend        Action performed every time the query is about to be sent (or sent again).
+     * @return A future completed with the response, or completed exceptionally with a SocketTimeoutException if no
+     * response is received after the maximum number of attempts.
+     */
+    CompletableFuture<DNSMessage> query(DNSMessage query, InetSocketAddress server, int timeoutMillis,
+                                        int maxAttempts, Runnable onSend) {
+        PendingQuery request = new PendingQuery(server, timeoutMillis, maxAttempts, onSend);
+        if (!open) {
+            request.future.completeExceptionally(new ClosedChannelException());
+            return request.future;
+        }
+        int id = query.getID();
+        while (pending.putIfAbsent(id, request) != null)
+            id = random.nextInt(0x10000);
+        query.setID(id);
+        request.id = id;
+        request.query = query;
+        submissions.add(request);
+        selector.wakeup();
+        if (!open) // Closed while submitting, the I/O thread may not see the request
+            request.future.completeExceptionally(new ClosedChannelException());
+        return request.future;
+    }
+
+    /**
+     * Sets the time after which a TCP connection that has no outstanding query is closed. Connections that are already
+     * idle keep the previous timeout.
+     *
+     * @param idleTimeoutMillis The idle timeout, in milliseconds. Set to 0 to close connections as soon as they have
+     *                          no outstanding query.
+     */
+    void setTcpIdleTimeout(int idleTimeoutMillis) {
+        if (idleTimeoutMillis < 0)
+            throw new IllegalArgumentException("Invalid idle timeout: " + idleTimeoutMillis);
+        this.tcpIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Sends a query to a nameserver over TCP, on a connection to the server that is already open if one can take
+     * another query. If the transaction ID of the query is already used by another query outstanding on the same
+     * connection, the query is sent with another transaction ID, and the ID of the response is set back to the ID of
+     * the query. The content of the query is copied before this method returns, so the caller may release the query
+     * message right away.
+     *
+     * @param query         The query message to be sent.
+     * @param server        Address and port of the nameserver.
+     * @param timeoutMillis Time allowed for the connection, the query and the response, in milliseconds.
+     * @return A future completed with the response, or completed exceptionally with a SocketTimeoutException if no
+     * response is received in time, or another IOException if the connection fails.
+     */
+    CompletableFuture<DNSMessage> queryTcp(DNSMessage query, InetSocketAddress server, int timeoutMillis) {
+        TcpQuery request = new TcpQuery(server, query.getID(), query.getUsed(), timeoutMillis);
+        if (!open) {
+            request.future.completeExceptionally(new ClosedChannelException());
+            return request.future;
+        }
+        tcpSubmissions.add(request);
+        selector.wakeup();
+        if (!open)
+            request.future.completeExceptionally(new ClosedChannelException());
+        return request.future;
+    }
+
+    /**
+     * Returns a future completed by the I/O thread after a delay, e.g., to send another query if a query is not
+     * answered soon enough. Actions attached to the future must not block, as for the futures of queries.
+     *
+     * @param delayMillis The delay, in milliseconds.
+     * @return A future completed once the delay has elapsed, or completed exceptionally with a ClosedChannelException
+     * if the engine is closed before.
+     */
+    CompletableFuture<Void> delay(long delayMillis) {
+        Delay delay = new Delay(System.nanoTime() + delayMillis * 1_000_000L);
+        if (!open) {
+            delay.future.completeExceptionally(new ClosedChannelException());
+            return delay.future;
+        }
+        delaySubmissions.add(delay);
+        selector.wakeup();
+        if (!open)
+            delay.future.completeExceptionally(new ClosedChannelException());
+        return delay.future;
+    }
+
+    /**
+     * Returns true until the engine is closed, or its channel fails.
+     *
+     * @return true if the engine can still send queries, false otherwise.
+     */
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Returns the number of queries currently waiting for a response.
+     *
+     * @return The number of outstanding queries.
+     */
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops the I/O thread and closes the channel. Outstanding queries fail with a ClosedChannelException.
+     */
+    @Override
+    public void close() {
+        open = false;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        ByteBuffer buffer = DNSBufferPool.getInstance().acquire();
+        try {
+            while (open) {
+                Delay delay;
+                while ((delay = delaySubmissions.poll()) != null)
+                    delays.add(delay);
+                PendingQuery next = timers.peek();
+                Delay nextDelay = delays.peek();
+                long now = System.nanoTime();
+                // A wait of 0 means no timer is pending
+                long wait = next == null ? 0 : Math.max(1, (next.deadline - now) / 1_000_000);
+                if (nextDelay != null) {
+                    long delayWait = Math.max(1, (nextDelay.deadline - now) / 1_000_000);
+                    wait = wait == 0 ? delayWait : Math.min(wait, delayWait);
+                }
+                selector.select(wait);
+                for (SelectionKey key : selector.selectedKeys())
+                    if (key.attachment() instanceof TcpConnection)
+                        ((TcpConnection) key.attachment()).ready(key);
+                selector.selectedKeys().clear();
+
+                PendingQuery request;
+                while ((request = submissions.poll()) != null)
+                    transmit(request, System.nanoTime());
+                TcpQuery tcpQuery;
+                while ((tcpQuery = tcpSubmissions.poll()) != null)
+                    tcpQuery.start();
+                buffer = receive(buffer);
+                expire(System.nanoTime());
+                now = System.nanoTime();
+                while ((delay = delays.peek()) != null && delay.deadline - now <= 0)
+                    delays.poll().future.complete(null);
+            }
+        } catch (IOException e) {
+            // The channel is unusable, fail everything below
+        } finally {
+            open = false;
+            DNSBufferPool.getInstance().release(buffer);
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                // Nothing else can be done
+            }
+            ClosedChannelException closed = new ClosedChannelException();
+            for (PendingQuery request : pending.values())
+                request.future.completeExceptionally(closed);
+            for (PendingQuery request : submissions)
+                request.future.completeExceptionally(closed);
+            pending.clear();
+            for (Delay delay : delays)
+                delay.future.completeExceptionally(closed);
+            for (Delay delay : delaySubmissions)
+                delay.future.completeExceptionally(closed);
+            for (TcpQuery tcpQuery : new ArrayList<>(tcpQueries))
+                tcpQuery.fail(closed);
+            for (TcpQuery tcpQuery : tcpSubmissions)
+                tcpQuery.future.completeExceptionally(closed);
+            for (List<TcpConnection> connections : tcpConnections.values())
+                for (TcpConnection connection : connections)
+                    connection.closeChannel();
+            tcpConnections.clear();
+        }
+    }
+
+    /**
+     * Sends (or resends) a query and schedules its retransmission timer. A query that cannot be sent, e.g., to a
+     * broadcast address, fails with the error of the channel, and the other queries of the engine are not affected.
+     */
+    private void transmit(PendingQuery request, long now) {
+        if (request.future.isDone()) {
+            pending.remove(request.id, request);
+            return;
+        }
+        request.attempts++;
+        request.onSend.run();
+        try {
+            request.query.send(channel, request.server);
+        } catch (IOException e) {
+            pending.remove(request.id, request);
+            request.future.completeExceptionally(e);
+            return;
+        }
+        request.deadline = now + request.timeoutMillis * 1_000_000L;
+        timers.add(request);
+    }
+
+    /**
+     * Reads every datagram available on the channel, and completes the queries they answer. A buffer holding a response
+     * is handed over to the response message, and replaced by another buffer from the pool.
+     *
+     * @param buffer The buffer used to receive the first datagram.
+     * @return The buffer to be used to receive the next datagram.
+     */
+    private ByteBuffer receive(ByteBuffer buffer) throws IOException {
+        while (true) {
+            buffer.clear();
+            SocketAddress from = channel.receive(buffer);
+            if (from == null) return buffer;
+            buffer.flip();
+            if (buffer.remaining() < 12) continue;
+
+            PendingQuery request = pending.get(buffer.getShort(0) & 0xffff);
+            if (request == null || !request.server.equals(from) || (buffer.get(2) & 0x80) == 0) continue;
+            // The retransmission timer is discarded when it expires
+            pending.remove(request.id, request);
+
+            request.future.complete(DNSMessage.wrap(buffer, true));
+            buffer = DNSBufferPool.getInstance().acquire();
+        }
+    }
+
+    /**
+     * Retransmits every query whose timer has expired, or fails it if it was sent the maximum number of times.
+     */
+    private void expire(long now) {
+        PendingQuery request;
+        while ((request = timers.peek()) != null && request.deadline - now <= 0) {
+            timers.poll();
+            if (request.future.isDone()) {
+                pending.remove(request.id, request);
+            } else if (request.attempts < request.maxAttempts) {
+                transmit(request, now);
+            } else {
+                pending.remove(request.id, request);
+                request.future.completeExceptionally(new SocketTimeoutException(
+                        "No response from " + request.server + " after " + request.attempts + " attempts"));
+            }
+        }
+    }
+
+    /**
+     * Returns a connection to a server that can take another query, opening a new connection if every connection to
+     * the server is retired or has the maximum number of outstanding queries. Must be called by the I/O thread.
+     */
+    private TcpConnection connectionTo(InetSocketAddress server) throws IOException {
+        List<TcpConnection> connections = tcpConnections.computeIfAbsent(server, s -> new ArrayList<>(1));
+        for (TcpConnection connection : connections)
+            if (!connection.retired && connection.queries.size() < MAX_PIPELINED_QUERIES)
+                return connection;
+        TcpConnection connection = new TcpConnection(server);
+        connections.add(connection);
+        connection.open();
+        return connection;
+    }
+
+    /**
+     * A query sent over TCP. Its methods are only called by the I/O thread.
+     */
+    private class TcpQuery {
+        private final InetSocketAddress server;
+        private final int id;
+        private final byte[] data;
+        private final int timeoutMillis;
+        private final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        private TcpConnection connection;
+        private boolean retried;
+
+        private TcpQuery(InetSocketAddress server, int id, byte[] data, int timeoutMillis) {
+            this.server = server;
+            this.id = id;
+            this.data = data;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * Starts the timer of the query, and sends it over a connection to the server.
+         */
+        private void start() {
+            if (future.isDone()) return;
+            tcpQueries.add(this);
+            Delay timer = new Delay(System.nanoTime() + timeoutMillis * 1_000_000L);
+            delays.add(timer);
+            timer.future.thenRun(this::expire);
+            send();
+        }
+
+        private void send() {
+            try {
+                connectionTo(server).send(this);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Fails the query if it is still outstanding once its timer has expired. The connection it was sent on is no
+         * longer given new queries, as the server may have stopped answering.
+         */
+        private void expire() {
+            if (future.isDone()) return;
+            fail(new SocketTimeoutException("No response from " + server + " over TCP"));
+            if (connection != null)
+                connection.retire();
+        }
+
+        private void complete(DNSMessage response) {
+            tcpQueries.remove(this);
+            future.complete(response);
+        }
+
+        private void fail(IOException e) {
+            tcpQueries.remove(this);
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * A TCP connection to a server, on which any number of queries are outstanding at the same time. Queries are framed
+     * by a two-byte length, written in the order they are sent, and responses are read as they arrive, in any order.
+     * The transaction ID of a query that timed out stays in use until its response arrives or the connection is
+     * closed, so that a late response is not mistaken for the response to another query. Its methods are only called
+     * by the I/O thread.
+     */
+    private class TcpConnection {
+        private final InetSocketAddress server;
+        private final Map<Integer, TcpQuery> queries = new HashMap<>();
+        private final Queue<ByteBuffer> writes = new ArrayDeque<>();
+        private final ByteBuffer length = ByteBuffer.allocate(2);
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in;
+        private boolean connected;
+        private boolean retired;
+        private boolean closed;
+        private int answered;
+        private long lastUsed = System.nanoTime();
+        private Delay idleTimer;
+
+        private TcpConnection(InetSocketAddress server) {
+            this.server = server;
+        }
+
+        private void open() throws IOException {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                connected = channel.connect(server);
+                key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        }
+
+        /**
+         * Queues a query to be written on the connection, with a transaction ID that is not used by another query of
+         * the connection, and writes it right away if the connection is established.
+         */
+        private void send(TcpQuery query) {
+            int id = query.id;
+            while (queries.containsKey(id))
+                id = random.nextInt(0x10000);
+            queries.put(id, query);
+            query.connection = this;
+            lastUsed = System.nanoTime();
+            ByteBuffer frame = ByteBuffer.allocate(2 + query.data.length);
+            frame.putShort((short) query.data.length).put(query.data).putShort(2, (short) id).flip();
+            writes.add(frame);
+            if (connected && writes.size() == 1) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close(e);
+                }
+            }
+        }
+
+        /**
+         * Makes progress with the connection, the queries or the responses, as allowed by the selected key.
+         */
+        private void ready(SelectionKey key) {
+            if (!key.isValid()) return;
+            try {
+                if (key.isConnectable()) {
+                    if (!channel.finishConnect()) return;
+                    connected = true;
+                    flush();
+                } else if (key.isWritable())
+                    flush();
+                if (key.isReadable())
+                    read();
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void flush() throws IOException {
+            ByteBuffer frame;
+            while ((frame = writes.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining()) break;
+                writes.poll();
+            }
+            key.interestOps(writes.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Reads every response available on the connection, and completes the queries they answer.
+         */
+        private void read() throws IOException {
+            while (!closed) {
+                if (in == null) {
+                    if (channel.read(length) < 0) throw new IOException("Connection closed by " + server);
+                    if (length.hasRemaining()) return;
+                    int size = length.getShort(0) & 0xffff;
+                    if (size < 12) throw new IOException("Invalid response length from " + server);
+                    in = ByteBuffer.allocate(size);
+                }
+                if (channel.read(in) < 0) throw new IOException("Connection closed by " + server);
+                if (in.hasRemaining()) return;
+                in.flip();
+                ByteBuffer message = in;
+                in = null;
+                length.clear();
+                receive(message);
+            }
+        }
+
+        private void receive(ByteBuffer message) {
+            int id = message.getShort(0) & 0xffff;
+            if ((message.get(2) & 0x80) == 0) return;
+            TcpQuery query = queries.remove(id);
+            // A response to no query of the connection is ignored, as the server may answer queries in any order
+            if (query == null) return;
+            answered++;
+            lastUsed = System.nanoTime();
+            DNSMessage response = DNSMessage.wrap(message, false);
+            response.setID(query.id);
+            query.complete(response);
+            if (retired)
+                retire();
+            else if (queries.isEmpty())
+                scheduleIdleCheck(tcpIdleTimeoutMillis * 1_000_000L);
+        }
+
+        /**
+         * Stops giving new queries to the connection, and closes it once none of its queries is outstanding.
+         */
+        private void retire() {
+            retired = true;
+            for (TcpQuery query : queries.values())
+                if (!query.future.isDone()) return;
+            close(null);
+        }
+
+        private void scheduleIdleCheck(long delayNanos) {
+            if (idleTimer != null) return;
+            idleTimer = new Delay(System.nanoTime() + delayNanos);
+            delays.add(idleTimer);
+            idleTimer.future.thenRun(this::checkIdle);
+        }
+
+        /**
+         * Closes the connection if it had no outstanding query for the idle timeout, or checks it again later.
+         */
+        private void checkIdle() {
+            idleTimer = null;
+            if (closed || !queries.isEmpty()) return;
+            long timeout = tcpIdleTimeoutMillis * 1_000_000L;
+            long idle = System.nanoTime() - lastUsed;
+            if (idle >= timeout)
+                close(null);
+            else
+                scheduleIdleCheck(timeout - idle);
+        }
+
+        /**
+         * Closes the connection. Its outstanding queries are sent again on another connection if the server closed a
+         * connection it had already answered on, which servers may do at any time (RFC 7766, section 6.2.4), and fail
+         * otherwise.
+         *
+         * @param cause The reason the connection is closed, or null if it is closed by the client.
+         */
+        private void close(IOException cause) {
+            if (closed) return;
+            closed = true;
+            List<TcpConnection> connections = tcpConnections.get(server);
+            if (connections != null) {
+                connections.remove(this);
+                if (connections.isEmpty())
+                    tcpConnections.remove(server);
+            }
+            closeChannel();
+            for (TcpQuery query : queries.values()) {
+                if (query.future.isDone()) continue;
+                if (answered > 0 && !query.retried) {
+                    query.retried = true;
+                    query.send();
+                } else
+                    query.fail(cause != null ? cause : new IOException("Connection to " + server + " closed"));
+            }
+            queries.clear();
+        }
+
+        private void closeChannel() {
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing else can be done
+            }
+        }
+    }
+
+    /**
+     * A delay waiting to elapse.
+     */
+    private static class Delay {
+        private final long deadline;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Delay(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * The state of a query waiting for a response.
+     */
+    private static class PendingQuery {
+        private final InetSocketAddress server;
+        private final int timeoutMillis;
+        private final int maxAttempts;
+        private final Runnable onSend;
+        private final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        private int id;
+        private DNSMessage query;
+        private int attempts;
+        private long deadline;
+
+        private PendingQuery(InetSocketAddress server, int timeoutMillis, int maxAttempts, Runnable onSend) {
+            this.server = server;
+            this.timeoutMillis = timeoutMillis;
+            this.maxAttempts = maxAttempts;
+            this.onSend = onSend;
+        }
+    }
+}
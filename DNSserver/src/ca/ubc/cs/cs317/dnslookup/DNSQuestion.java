@@ -1,26 +1,34 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
-import java.util.Objects;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * type. Two nodes with the same host name and type are considered equal. Host names are kept
+ * as interned DNSName objects, so comparing them does not require comparing their text.
  */
 public class DNSQuestion implements Comparable<DNSQuestion>, Serializable {
 
-    private final String hostName;
+    private final DNSName name;
     private final RecordType type;
     private final RecordClass recordClass;
 
     public DNSQuestion(String hostName, RecordType type, RecordClass recordClass) {
-        this.hostName = hostName;
+        this(DNSName.of(hostName), type, recordClass);
+    }
+
+    DNSQuestion(DNSName name, RecordType type, RecordClass recordClass) {
+        this.name = name;
         this.type = type;
         this.recordClass = recordClass;
     }
 
     public String getHostName() {
-        return hostName;
+        return name.toString();
+    }
+
+    DNSName getName() {
+        return name;
     }
 
     public RecordType getRecordType() {
@@ -33,15 +41,17 @@ public class DNSQuestion implements Comparable<DNSQuestion>, Serializable {
 
     @Override
     public String toString() {
-        return (hostName.isEmpty() ? "<root>" : hostName) + " (" + type + ")";
+        return (name.isRoot() ? "<root>" : name.toString()) + " (" + type + ")";
     }
 
     @Override
     public int compareTo(DNSQuestion o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
-        if (!hostName.equals(o.hostName))
-            return hostName.compareTo(o.hostName);
+        if (name != o.name) {
+            String hostName = name.toString();
+            if (!name.equalsIgnoreCase(o.name))
+                return hostName.compareToIgnoreCase(o.getHostName());
+            return hostName.compareTo(o.getHostName());
+        }
         if (!recordClass.equals(o.recordClass))
             return recordClass.compareTo(o.recordClass);
         return type.compareTo(o.type);
@@ -52,11 +62,12 @@ public class DNSQuestion implements Comparable<DNSQuestion>, Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         DNSQuestion that = (DNSQuestion) o;
-        return hostName.equals(that.hostName) && type == that.type && recordClass == that.recordClass;
+        return name == that.name && type == that.type && recordClass == that.recordClass;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(hostName, type, recordClass);
+        // Same value as Objects.hash(name, type, recordClass), without allocating the varargs array
+        return (31 * (31 * (31 + name.hashCode()) + type.hashCode())) + recordClass.hashCode();
     }
 }
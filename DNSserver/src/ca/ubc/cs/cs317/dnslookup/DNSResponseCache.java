@@ -0,0 +1,110 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of encoded responses used by DNSCachingServer, so that a question answered from the cache does not have to
+ * be encoded again, with its names compressed, for every client asking it. Each entry holds the complete response to a
+ * question and the positions of the TTL fields of its records. A hit copies the response, writes the transaction ID
+ * and the RD bit of the query, and decrements the TTL fields by the number of seconds elapsed since the response was
+ * encoded. Responses are discarded when the records they were encoded from change or are due for a refresh, as
+ * described in DNSDependentCache.
+ */
+class DNSResponseCache extends DNSDependentCache<DNSResponseCache.Entry> {
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * Creates an empty response cache, kept consistent with the records of a DNSCache until it is closed.
+     *
+     * @param cache      The cache the responses are encoded from.
+     * @param maxEntries Maximum number of responses kept. Responses are not added once the cache is full.
+     */
+    DNSResponseCache(DNSCache cache, int maxEntries) {
+        super(cache, maxEntries);
+    }
+
+    /**
+     * Returns a copy of the cached response to a question, if there is one, with the transaction ID and RD bit of a
+     * query, and with TTLs decremented by the time elapsed since it was encoded.
+     *
+     * @param question  The question of the query.
+     * @param id        The transaction ID of the query.
+     * @param rd        The RD bit of the query.
+     * @param maxLength The largest response the client can receive.
+     * @return The response, in a pooled buffer to be released by the caller, or null if no valid response for the
+     * question fits in maxLength bytes.
+     */
+    DNSMessage get(DNSQuestion question, int id, boolean rd, int maxLength) {
+        long now = System.nanoTime();
+        Entry entry = getEntry(question, now);
+        if (entry == null || entry.wire.length > maxLength) {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        DNSMessage response = DNSMessage.copyOf(entry.wire);
+        response.setID(id);
+        response.setRD(rd);
+        int elapsed = (int) ((now - entry.encodedNanos) / 1_000_000_000L);
+        if (elapsed > 0)
+            response.decrementTTLs(entry.ttlPositions, elapsed);
+        return response;
+    }
+
+    /**
+     * Keeps the encoded response to a question, unless an invalidation happened since the records in the response
+     * were read.
+     *
+     * @param question   The question of the response.
+     * @param response   The response, with no OPT record. Its transaction ID and RD bit are ignored.
+     * @param records    The records in the response.
+     * @param names      The names whose records the response was derived from, e.g., all names of a CNAME chain.
+     * @param ratio      The fraction of the TTL of the records during which they are refreshed ahead of their
+     *                   expiration.
+     * @param generation The generation returned by getGeneration before the records were read.
+     */
+    void put(DNSQuestion question, DNSMessage response, Collection<ResourceRecord> records,
+             Collection<DNSName> names, double ratio, long generation) {
+        if (isFull()) return;
+        long refreshNanos = earliestRefresh(Long.MAX_VALUE, records, ratio);
+        putEntry(question, new Entry(response.getUsed(), response.getTTLPositions(), System.nanoTime(), refreshNanos),
+                names, generation);
+    }
+
+    /**
+     * Returns the number of responses returned by get.
+     *
+     * @return The number of hits since the response cache was created.
+     */
+    long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * Returns the number of calls to get that did not find a valid response.
+     *
+     * @return The number of misses since the response cache was created.
+     */
+    long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * An encoded response.
+     */
+    static class Entry extends DNSDependentCache.Entry {
+        private final byte[] wire;
+        private final int[] ttlPositions;
+        private final long encodedNanos;
+
+        private Entry(byte[] wire, int[] ttlPositions, long encodedNanos, long refreshNanos) {
+            super(refreshNanos);
+            this.wire = wire;
+            this.ttlPositions = ttlPositions;
+            this.encodedNanos = encodedNanos;
+        }
+    }
+}
@@ -13,4 +13,14 @@ public interface DNSVerbosePrinter {
     void printAdditionalInfoHeader(int num_additional);
 
     void printIndividualResourceRecord(ResourceRecord record, int typeCode, int classCode);
+
+    /**
+     * Returns true if printIndividualResourceRecord prints records. Records that are not otherwise used by a lookup
+     * are only decoded to be printed, so they are not decoded if it returns false.
+     *
+     * @return true if records are printed, false if printIndividualResourceRecord does nothing.
+     */
+    default boolean isPrintingRecords() {
+        return true;
+    }
 }
@@ -0,0 +1,100 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch estimating how often each key was accessed recently, used as the TinyLFU admission filter of the
+ * DNS cache. Each key is mapped to four 4-bit counters, packed sixteen to a long, and its frequency is the smallest of
+ * them. Once the number of increments reaches ten times the table size, all counters are halved, so old popularity
+ * fades away.
+ * <p>
+ * Counters are updated with compare-and-set, so the sketch may be incremented concurrently by readers. Estimates
+ * are approximate by design; an increment that races with the periodic halving may be halved too early.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    /**
+     * Creates a sketch sized for a specific number of keys.
+     *
+     * @param maximumSize Expected maximum number of distinct keys being tracked.
+     */
+    FrequencySketch(long maximumSize) {
+        int size = (int) Math.min(1 << 20, Math.max(16, Long.highestOneBit(Math.max(1, maximumSize - 1)) << 1));
+        this.table = new AtomicLongArray(size);
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    /**
+     * Returns the estimated number of recent accesses of a key, between 0 and 15.
+     *
+     * @param hash Hash code of the key.
+     * @return The estimated access frequency of the key.
+     */
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long spread = spread(hash, i);
+            int index = indexOf(spread);
+            int shift = offsetOf(spread);
+            frequency = Math.min(frequency, (int) ((table.get(index) >>> shift) & 0xf));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access to a key, incrementing its counters if they are not saturated.
+     *
+     * @param hash Hash code of the key.
+     */
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long spread = spread(hash, i);
+            int index = indexOf(spread);
+            int shift = offsetOf(spread);
+            long value;
+            do {
+                value = table.get(index);
+                if (((value >>> shift) & 0xf) == MAX_COUNT) break;
+            } while (!table.compareAndSet(index, value, value + (1L << shift)));
+            added |= ((value >>> shift) & 0xf) != MAX_COUNT;
+        }
+        // Only the thread reaching the sample size exactly performs the reset
+        if (added && additions.incrementAndGet() == sampleSize)
+            reset();
+    }
+
+    /**
+     * Halves every counter, so accesses lose weight as they age.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length(); i++)
+            table.getAndUpdate(i, value -> (value >>> 1) & RESET_MASK);
+        additions.addAndGet(-sampleSize / 2);
+    }
+
+    private long spread(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        return h ^ (h >>> 32);
+    }
+
+    private int indexOf(long spread) {
+        return (int) (spread >>> 8) & tableMask;
+    }
+
+    private static int offsetOf(long spread) {
+        return (int) (spread & 0xf) << 2;
+    }
+}
@@ -0,0 +1,135 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A lock-free histogram of non-negative values, e.g., round-trip times in microseconds, in the style of HdrHistogram.
+ * Buckets are log-linear: every power of two is split into SUB_BUCKETS buckets of equal width, so a value is known
+ * within 1/SUB_BUCKETS (12.5%) of itself whatever its magnitude, and values below SUB_BUCKETS are exact. Values of
+ * 2^MAX_EXPONENT and above are counted in the last bucket.
+ * <p>
+ * Recording a value is a single atomic increment of its bucket, plus the update of the maximum when it is exceeded, so
+ * threads recording values never block each other. Percentiles are computed from the buckets when they are read, and
+ * are approximate if values are recorded at the same time.
+ */
+class LogHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Returns the bucket of a value: the value itself below SUB_BUCKETS, otherwise the sub-bucket of its power of two,
+     * given by the bits that follow its most significant bit.
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) Math.max(0, value);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) return BUCKETS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Returns the smallest value counted in a bucket.
+     */
+    static long lowestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * Returns the largest value counted in a bucket.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket == BUCKETS - 1) return Long.MAX_VALUE;
+        return lowestValueOf(bucket + 1) - 1;
+    }
+
+    /**
+     * Counts a value. Negative values are counted as 0.
+     *
+     * @param value The value to be counted.
+     */
+    void record(long value) {
+        counts.incrementAndGet(bucketOf(value));
+        // Reading the maximum first avoids contended updates once it is reached, which is the common case
+        if (value > max.get())
+            max.accumulate(value);
+    }
+
+    /**
+     * Returns the number of values counted.
+     *
+     * @return The total count of all buckets.
+     */
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    /**
+     * Returns the largest value counted.
+     *
+     * @return The exact maximum, or 0 if no value was counted.
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of the values counted, computed from the middle of their buckets.
+     *
+     * @return The approximate mean, or 0 if no value was counted.
+     */
+    double getMean() {
+        long count = 0;
+        double total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = counts.get(i);
+            if (n == 0) continue;
+            count += n;
+            total += n * middleOf(i);
+        }
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * Returns the value below or at which a percentage of the values counted fall. The value returned is the middle of
+     * the bucket of that value, bounded by the maximum.
+     *
+     * @param percentile The percentage, between 0 and 100.
+     * @return The approximate percentile, or 0 if no value was counted.
+     */
+    long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count));
+        long seen = 0;
+        int bucket = 0;
+        for (; bucket < BUCKETS - 1; bucket++) {
+            seen += snapshot[bucket];
+            if (seen >= rank) break;
+        }
+        return Math.min(middleOf(bucket), max.get());
+    }
+
+    private static long middleOf(int bucket) {
+        long lowest = lowestValueOf(bucket);
+        if (bucket == BUCKETS - 1) return lowest;
+        return lowest + (highestValueOf(bucket) - lowest) / 2;
+    }
+}
@@ -1,12 +1,12 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.util.Arrays;
-
 /** Record classes supported by the application.
  */
 public enum RecordClass {
     IN (1), OTHER(0);
 
+    private static final RecordClass[] VALUES = values();
+
     private final int code;
 
     RecordClass(int code) {
@@ -24,6 +24,9 @@ public enum RecordClass {
      * @return A record type that uses the specified code, or OTHER if no record type uses the code.
      */
     public static RecordClass getByCode(int code) {
-        return Arrays.stream(values()).filter(v -> v.code == code).findFirst().orElse(OTHER);
+        // Called for every question and record decoded, so it must not allocate as values() and streams do
+        for (RecordClass value : VALUES)
+            if (value.code == code) return value;
+        return OTHER;
     }
 }
@@ -0,0 +1,159 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of resource records, e.g., the records cached for a question. Records are kept in an open-addressed hash
+ * table, probed linearly from the hash code of each record, so finding the record equal to a new one takes constant
+ * time however many records the set has, and the set uses a single array instead of an entry object per record.
+ * <p>
+ * Removed records leave a marker in their slot, so that the records that were probed past it can still be found, and
+ * so that records can be removed while the set is iterated. Markers are discarded when the table is resized. The table
+ * holds at most three records for every four slots, and starts with two slots, which hold a single record.
+ * <p>
+ * This class is not thread-safe; callers must provide their own synchronization.
+ */
+class RecordTable implements Iterable<ResourceRecord> {
+
+    private static final Object REMOVED = new Object();
+    private static final Object[] EMPTY = new Object[0];
+
+    private Object[] slots = EMPTY;
+    private int size;
+    private int removed;
+
+    /**
+     * Returns the number of records in the set.
+     *
+     * @return The number of records added and not removed since.
+     */
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the record of the set that is equal to a record.
+     *
+     * @param record The record to be found.
+     * @return The record of the set, which may be a different object than the record to be found, or null if the set
+     * does not contain an equal record.
+     */
+    ResourceRecord get(ResourceRecord record) {
+        if (size == 0) return null;
+        int mask = slots.length - 1;
+        for (int i = indexOf(record, mask); ; i = (i + 1) & mask) {
+            Object slot = slots[i];
+            if (slot == null) return null;
+            if (slot != REMOVED && slot.equals(record)) return (ResourceRecord) slot;
+        }
+    }
+
+    /**
+     * Adds a record to the set, unless the set already contains an equal record.
+     *
+     * @param record The record to be added.
+     * @return The record of the set that is equal to the record, or null if the record was added.
+     */
+    ResourceRecord add(ResourceRecord record) {
+        ResourceRecord existing = get(record);
+        if (existing != null) return existing;
+        if ((size + removed + 1) * 4 > slots.length * 3)
+            resize();
+        int mask = slots.length - 1;
+        int i = indexOf(record, mask);
+        while (slots[i] != null && slots[i] != REMOVED)
+            i = (i + 1) & mask;
+        if (slots[i] == REMOVED) removed--;
+        slots[i] = record;
+        size++;
+        return null;
+    }
+
+    /**
+     * Returns an iterator over the records of the set, in no particular order. The iterator supports removing records.
+     * Records added while the set is iterated may or may not be visited.
+     *
+     * @return An iterator over the records.
+     */
+    @Override
+    public Iterator<ResourceRecord> iterator() {
+        return new Iterator<ResourceRecord>() {
+            private final Object[] table = slots;
+            private int next = advance(0);
+            private int last = -1;
+
+            private int advance(int i) {
+                while (i < table.length && (table[i] == null || table[i] == REMOVED))
+                    i++;
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < table.length;
+            }
+
+            @Override
+            public ResourceRecord next() {
+                if (next >= table.length) throw new NoSuchElementException();
+                last = next;
+                next = advance(next + 1);
+                return (ResourceRecord) table[last];
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0 || table[last] == REMOVED) throw new IllegalStateException();
+                // The set may have been resized since the iterator was created, so the record is looked up again
+                if (table == slots) {
+                    slots[last] = REMOVED;
+                    size--;
+                    removed++;
+                } else
+                    RecordTable.this.remove((ResourceRecord) table[last]);
+            }
+        };
+    }
+
+    private void remove(ResourceRecord record) {
+        if (size == 0) return;
+        int mask = slots.length - 1;
+        for (int i = indexOf(record, mask); slots[i] != null; i = (i + 1) & mask)
+            if (slots[i] != REMOVED && slots[i].equals(record)) {
+                slots[i] = REMOVED;
+                size--;
+                removed++;
+                return;
+            }
+    }
+
+    /**
+     * Replaces the table with one whose size fits the records in the set, discarding the markers of removed records.
+     */
+    private void resize() {
+        int capacity = 2;
+        while ((size + 1) * 4 > capacity * 3)
+            capacity <<= 1;
+        Object[] old = slots;
+        slots = new Object[capacity];
+        removed = 0;
+        int mask = capacity - 1;
+        for (Object slot : old)
+            if (slot != null && slot != REMOVED) {
+                int i = indexOf(slot, mask);
+                while (slots[i] != null)
+                    i = (i + 1) & mask;
+                slots[i] = slot;
+            }
+    }
+
+    private static int indexOf(Object record, int mask) {
+        int h = record.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -1,13 +1,15 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.util.Arrays;
-
 /**
  * Record types supported by the application. Includes a few common record types that are not
  * fully supported by this application, but that are sometimes returned by nameservers for regular DNS queries.
+ * OPT is the EDNS0 pseudo-record type; it comes last so that the ordinals of the other types, used by
+ * DNSCacheSnapshot, do not change.
  */
 public enum RecordType {
-    A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OTHER(0);
+    A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OTHER(0), OPT(41);
+
+    private static final RecordType[] VALUES = values();
 
     private final int code;
 
@@ -27,6 +29,9 @@ public enum RecordType {
      * @return A record type that uses the specified code, or OTHER if no record type uses the code.
      */
     public static RecordType getByCode(int code) {
-        return Arrays.stream(values()).filter(v -> v.code == code).findFirst().orElse(OTHER);
+        // Called for every question and record decoded, so it must not allocate as values() and streams do
+        for (RecordType value : VALUES)
+            if (value.code == code) return value;
+        return OTHER;
     }
 }
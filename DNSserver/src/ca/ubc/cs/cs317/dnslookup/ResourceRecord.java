@@ -1,24 +1,44 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.nio.charset.StandardCharsets;
-import java.util.Date;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Objects;
-import java.util.stream.IntStream;
 
 /**
  * A resource record corresponds to each individual result returned by a DNS response. It links a DNS question (host
  * name, type and class) to either an IP address (e.g., for A or AAAA records) or a textual response (e.g., for CNAME or
  * NS records). An expiration time is also specified, and computed based on the TTL provided when the record is
- * created.
+ * created. The expiration time is kept as a System.nanoTime() value, so it is not affected by changes to the wall
+ * clock, and checking it does not allocate any objects.
+ * <p>
+ * Records are kept compact, since a cache may hold millions of them: an address is stored as primitive fields rather
+ * than as an InetAddress and its text, the name that results from a CNAME, NS or MX record is an interned DNSName
+ * shared with the questions and other records that use it, and the data of a type not supported by the application is
+ * kept as bytes rather than as their hexadecimal value. The InetAddress and the text of a record are created when they
+ * are requested.
  */
 public class ResourceRecord implements Serializable {
 
-    private final DNSQuestion question;
-    private Date expirationTime;
-    private final String textResult;
-    private InetAddress inetResult;
+    private static final byte TEXT = 0;
+    private static final byte IPV4 = 4;
+    private static final byte IPV6 = 16;
+
+    private DNSQuestion question;
+    private transient volatile long expirationNanos;
+    private volatile long ttlNanos;
+    // The address of an A or AAAA record: an IPv4 address is in the low 32 bits of addressLow. The preference of an MX
+    // record is in addressLow
+    private final long addressHigh;
+    private final long addressLow;
+    // The text of the result, as a DNSName if it is a host name, or null if the result is an address
+    private final Object result;
+    private final byte kind;
 
     /**
      * Creates a new resource record based on a string result, without an InetAddress.
@@ -29,23 +49,186 @@ public class ResourceRecord implements Serializable {
      *                 for CNAME, NS and MX it represents the FQDN of the host associated to this record.
      */
     public ResourceRecord(DNSQuestion question, int ttl, String result) {
-        this.question = question;
-        this.expirationTime = new Date(System.currentTimeMillis() + ((long) ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
+        this(question, ttl, textResult(question, result), TEXT, 0, 0);
     }
 
     /**
      * Creates a new resource record based on an InetAddress result (typically an A or AAAA record). The string
-     * representation is also saved based on the getHostAddress method of InetAddress.
+     * representation is computed from the address, with the getHostAddress method of InetAddress, when it is requested.
      *
      * @param question Question object containing the host name (FQDN), type and class associated to this record.
      * @param ttl      Number of seconds to keep this record in cache.
      * @param result   The InetAddress object associated to the record's result.
      */
     public ResourceRecord(DNSQuestion question, int ttl, InetAddress result) {
-        this(question, ttl, result.getHostAddress());
-        this.inetResult = result;
+        this(question, null, result, System.nanoTime() + ttl * 1_000_000_000L);
+        this.ttlNanos = ttl * 1_000_000_000L;
+    }
+
+    /**
+     * Creates a new resource record whose result is a host name, e.g., a CNAME, NS or MX record.
+     *
+     * @param question Question object containing the host name (FQDN), type and class associated to this record.
+     * @param ttl      Number of seconds to keep this record in cache.
+     * @param result   The interned host name associated to this record.
+     */
+    ResourceRecord(DNSQuestion question, int ttl, DNSName result) {
+        this(question, ttl, result, TEXT, 0, 0);
+    }
+
+    /**
+     * Creates a new MX record.
+     *
+     * @param question   Question object containing the host name (FQDN), type and class associated to this record.
+     * @param ttl        Number of seconds to keep this record in cache.
+     * @param preference The preference of the mail exchange, lower values being preferred.
+     * @param result     The interned host name of the mail exchange.
+     */
+    ResourceRecord(DNSQuestion question, int ttl, int preference, DNSName result) {
+        this(question, ttl, result, TEXT, 0, preference & 0xffff);
+    }
+
+    /**
+     * Creates a new resource record whose result is data not supported by the application, kept as is. Its string
+     * representation is the hexadecimal value of the data, computed when it is requested.
+     *
+     * @param question Question object containing the host name (FQDN), type and class associated to this record.
+     * @param ttl      Number of seconds to keep this record in cache.
+     * @param data     The data of the record, which must not be modified afterwards.
+     */
+    ResourceRecord(DNSQuestion question, int ttl, byte[] data) {
+        this(question, ttl, data, TEXT, 0, 0);
+    }
+
+    /**
+     * Creates a new resource record whose result is an address, given as primitive values, e.g., as read from a
+     * message.
+     *
+     * @param question    Question object containing the host name (FQDN), type and class associated to this record.
+     * @param ttl         Number of seconds to keep this record in cache.
+     * @param addressHigh The first eight bytes of an IPv6 address, or 0 for an IPv4 address.
+     * @param addressLow  The last eight bytes of an IPv6 address, or an IPv4 address in its low 32 bits.
+     * @param ipv6        true for an IPv6 address, false for an IPv4 address.
+     */
+    ResourceRecord(DNSQuestion question, int ttl, long addressHigh, long addressLow, boolean ipv6) {
+        this(question, ttl, null, ipv6 ? IPV6 : IPV4, addressHigh, ipv6 ? addressLow : addressLow & 0xffffffffL);
+    }
+
+    /**
+     * Creates a new resource record with a specific expiration time, e.g., a record restored from a snapshot.
+     *
+     * @param question        Question object containing the host name (FQDN), type and class associated to this
+     *                        record.
+     * @param textResult      The string representation associated to the record's result. Ignored if inetResult is
+     *                        not null.
+     * @param inetResult      The InetAddress object associated to the record's result, or null if there is none.
+     * @param expirationNanos The time when this record expires, as a System.nanoTime() value.
+     */
+    ResourceRecord(DNSQuestion question, String textResult, InetAddress inetResult, long expirationNanos) {
+        this.question = question;
+        this.expirationNanos = expirationNanos;
+        this.ttlNanos = Math.max(0, expirationNanos - System.nanoTime());
+        if (inetResult == null) {
+            this.result = textResult(question, textResult);
+            this.kind = TEXT;
+            this.addressHigh = this.addressLow = 0;
+        } else {
+            byte[] bytes = inetResult.getAddress();
+            this.result = null;
+            this.kind = (byte) bytes.length;
+            this.addressHigh = bytes.length == IPV6 ? getLong(bytes, 0) : 0;
+            this.addressLow = bytes.length == IPV6 ? getLong(bytes, 8) : getLong(bytes, 0) >>> 32;
+        }
+    }
+
+    /**
+     * Creates a new resource record whose result is an address, given as primitive values, with a specific
+     * expiration time, e.g., a record restored from a snapshot.
+     *
+     * @param question        Question object containing the host name (FQDN), type and class associated to this
+     *                        record.
+     * @param addressHigh     The first eight bytes of an IPv6 address, or 0 for an IPv4 address.
+     * @param addressLow      The last eight bytes of an IPv6 address, or an IPv4 address in its low 32 bits.
+     * @param ipv6            true for an IPv6 address, false for an IPv4 address.
+     * @param expirationNanos The time when this record expires, as a System.nanoTime() value.
+     * @param ttlNanos        The TTL of the record, i.e., its remaining time when it was created, in nanoseconds.
+     */
+    ResourceRecord(DNSQuestion question, long addressHigh, long addressLow, boolean ipv6, long expirationNanos,
+                   long ttlNanos) {
+        this.question = question;
+        this.expirationNanos = expirationNanos;
+        this.ttlNanos = ttlNanos;
+        this.result = null;
+        this.kind = ipv6 ? IPV6 : IPV4;
+        this.addressHigh = addressHigh;
+        this.addressLow = ipv6 ? addressLow : addressLow & 0xffffffffL;
+    }
+
+    private ResourceRecord(ResourceRecord record, long expirationNanos) {
+        this.question = record.question;
+        this.expirationNanos = expirationNanos;
+        this.ttlNanos = Math.max(0, expirationNanos - System.nanoTime());
+        this.result = record.result;
+        this.kind = record.kind;
+        this.addressHigh = record.addressHigh;
+        this.addressLow = record.addressLow;
+    }
+
+    private ResourceRecord(DNSQuestion question, int ttl, Object result, byte kind, long addressHigh,
+                           long addressLow) {
+        this.question = question;
+        this.ttlNanos = ttl * 1_000_000_000L;
+        this.expirationNanos = System.nanoTime() + ttlNanos;
+        this.result = result;
+        this.kind = kind;
+        this.addressHigh = addressHigh;
+        this.addressLow = addressLow;
+    }
+
+    /**
+     * Returns the representation of a textual result: an interned name for the types whose result is a host name, the
+     * text itself for SOA records, and the data for other records whose text is the hexadecimal value of their data,
+     * as produced by DNSMessage.byteArrayToHexString.
+     */
+    private static Object textResult(DNSQuestion question, String result) {
+        switch (question.getRecordType()) {
+            case NS:
+            case CNAME:
+            case MX:
+                return DNSName.of(result);
+            case SOA:
+                return result;
+            default:
+                byte[] data = hexToBytes(result);
+                return data != null ? data : result;
+        }
+    }
+
+    /**
+     * Returns the bytes whose value is a string of lowercase hexadecimal digits, two per byte.
+     *
+     * @return The bytes, or null if the string is not such a value.
+     */
+    private static byte[] hexToBytes(String hex) {
+        if (hex == null || hex.length() % 2 != 0) return null;
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            int digit = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+            if (digit < 0) return null;
+            data[i / 2] |= digit << (i % 2 == 0 ? 4 : 0);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the big-endian value of up to eight bytes of an array, left-aligned if fewer bytes are available.
+     */
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = value << 8 | (offset + i < bytes.length ? bytes[offset + i] & 0xff : 0);
+        return value;
     }
 
     public DNSQuestion getQuestion() {
@@ -72,7 +255,7 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getRemainingTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationNanos - System.nanoTime() + 999_999_999L) / 1_000_000_000L;
     }
 
     /**
@@ -82,26 +265,175 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has expired, and false otherwise.
      */
     public boolean isExpired() {
-        return !expirationTime.after(new Date());
+        return isExpired(System.nanoTime());
+    }
+
+    /**
+     * Returns true if this record has expired at a specific time, and false otherwise.
+     *
+     * @param now The time to be compared with the expiration time, as returned by System.nanoTime().
+     * @return true if this record has expired at the specified time, and false otherwise.
+     */
+    boolean isExpired(long now) {
+        return expirationNanos - now <= 0;
+    }
+
+    /**
+     * Returns true if this record is about to expire, i.e., if it is unexpired but the time left before it expires is
+     * at most a specific fraction of its TTL. A record read at that point may be refreshed ahead of its expiration.
+     *
+     * @param now   The current time, as returned by System.nanoTime().
+     * @param ratio The fraction of the TTL, between 0 and 1.
+     * @return true if the record is in the last part of its lifetime, false otherwise.
+     */
+    boolean isRefreshDue(long now, double ratio) {
+        long remaining = expirationNanos - now;
+        return remaining > 0 && remaining <= ttlNanos * ratio;
+    }
+
+    /**
+     * Returns the time when this record starts being due for a refresh, as defined by isRefreshDue.
+     *
+     * @param ratio The fraction of the TTL, between 0 and 1.
+     * @return The refresh time, as a System.nanoTime() value.
+     */
+    long getRefreshNanos(double ratio) {
+        return expirationNanos - (long) (ttlNanos * ratio);
+    }
+
+    /**
+     * Returns the time when this record expires.
+     *
+     * @return The expiration time, as a System.nanoTime() value.
+     */
+    long getExpirationNanos() {
+        return expirationNanos;
     }
 
     /**
-     * Updates the current record with updated information from a new record. This will update the expiration time if
-     * the new record contains a longer expiration time.
+     * Updates the current record with updated information from a new record. This will update the expiration time (and
+     * the TTL it was computed from) if the new record contains a longer expiration time.
      *
      * @param record Another resource record with potentially new information.
      */
     public void update(ResourceRecord record) {
-        if (this.expirationTime.before(record.expirationTime))
-            this.expirationTime = record.expirationTime;
+        if (this.expirationNanos - record.expirationNanos < 0) {
+            this.ttlNanos = record.ttlNanos;
+            this.expirationNanos = record.expirationNanos;
+        }
     }
 
     public String getTextResult() {
-        return textResult;
+        if (kind != TEXT) return getInetResult().getHostAddress();
+        return result instanceof byte[] ? DNSMessage.byteArrayToHexString((byte[]) result) : result.toString();
     }
 
     public InetAddress getInetResult() {
-        return inetResult;
+        if (kind == TEXT) return null;
+        byte[] bytes = new byte[kind];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (kind == IPV6)
+            buffer.putLong(addressHigh).putLong(addressLow);
+        else
+            buffer.putInt((int) addressLow);
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // The length is always valid
+        }
+    }
+
+    /**
+     * Returns the preference of an MX record, which orders the mail exchanges of a domain, lower values being
+     * preferred.
+     *
+     * @return The preference, or 0 for records of other types.
+     */
+    public int getPreference() {
+        return kind == TEXT ? (int) addressLow : 0;
+    }
+
+    /**
+     * Returns a copy of this record with another expiration time, e.g., to return a stale record with a new TTL.
+     *
+     * @param expirationNanos The time when the copy expires, as a System.nanoTime() value.
+     * @return The copy, whose TTL is the time left until it expires.
+     */
+    ResourceRecord withExpiration(long expirationNanos) {
+        return new ResourceRecord(this, expirationNanos);
+    }
+
+    /**
+     * Returns the host name that results from this record, e.g., the canonical name of a CNAME record or the
+     * nameserver of an NS record. The name is kept by CNAME, NS and MX records, so it is returned without creating any
+     * object; for other records, the text of the result is interned.
+     *
+     * @return The interned name of the result.
+     */
+    DNSName getNameResult() {
+        return result instanceof DNSName ? (DNSName) result : DNSName.of(getTextResult());
+    }
+
+    /**
+     * Returns the length of the address of this record.
+     *
+     * @return 4 for an IPv4 address, 16 for an IPv6 address, or 0 if the result of this record is not an address.
+     */
+    int getAddressLength() {
+        return kind;
+    }
+
+    /**
+     * Writes the address of this record to a buffer, in network byte order, without creating any object.
+     *
+     * @param buffer The buffer, with at least getAddressLength() bytes remaining.
+     */
+    void putAddress(ByteBuffer buffer) {
+        if (kind == IPV6)
+            buffer.putLong(addressHigh).putLong(addressLow);
+        else if (kind == IPV4)
+            buffer.putInt((int) addressLow);
+    }
+
+    /**
+     * Returns the length of the data of this record, if it is kept as is.
+     *
+     * @return The number of bytes of data, or -1 if the result of this record is an address, a name or text.
+     */
+    int getDataLength() {
+        return result instanceof byte[] ? ((byte[]) result).length : -1;
+    }
+
+    /**
+     * Writes the data of this record, if it is kept as is, to a buffer.
+     *
+     * @param buffer The buffer, with at least getDataLength() bytes remaining.
+     */
+    void putData(ByteBuffer buffer) {
+        if (result instanceof byte[])
+            buffer.put((byte[]) result);
+    }
+
+    /**
+     * Replaces the question of this record with an equal question, so that the records cached for a question share a
+     * single question object.
+     *
+     * @param question A question equal to the question of this record.
+     */
+    void shareQuestion(DNSQuestion question) {
+        if (this.question.equals(question))
+            this.question = question;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // A nanoTime value is meaningless in another JVM, so the remaining time is stored instead
+        out.defaultWriteObject();
+        out.writeLong(expirationNanos - System.nanoTime());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        expirationNanos = System.nanoTime() + in.readLong();
     }
 
     @Override
@@ -109,18 +441,20 @@ public class ResourceRecord implements Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ResourceRecord that = (ResourceRecord) o;
-        return question.equals(that.question) &&
-                textResult.equals(that.textResult) &&
-                Objects.equals(inetResult, that.inetResult);
+        return kind == that.kind && addressHigh == that.addressHigh && addressLow == that.addressLow &&
+                question.equals(that.question) && Objects.deepEquals(result, that.result);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(question, textResult, inetResult);
+        int h = 31 * question.hashCode() + kind;
+        if (kind == TEXT)
+            return 31 * h + (result instanceof byte[] ? Arrays.hashCode((byte[]) result) : Objects.hashCode(result));
+        return 31 * (31 * h + Long.hashCode(addressHigh)) + Long.hashCode(addressLow);
     }
 
     @Override
     public String toString() {
-        return "[" + question + " -> " + textResult + "]";
+        return "[" + question + " -> " + getTextResult() + "]";
     }
 }
@@ -0,0 +1,168 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel used to expire cached entries. Each node is kept in a doubly-linked bucket based on its
+ * deadline, so scheduling, rescheduling and removing a node take constant time. Advancing the wheel only visits the
+ * buckets whose time span has elapsed, instead of scanning every entry.
+ * <p>
+ * The wheel has four levels of 64 buckets. A bucket in the first level spans about one second (2^30 ns), and each
+ * level is 64 times coarser than the previous one, so the top level covers about 208 days. Nodes with a later deadline
+ * are kept in the top level and rescheduled every time their bucket is visited. All times are values of
+ * System.nanoTime(), and are only compared by subtraction.
+ * <p>
+ * This class is not thread-safe; callers must provide their own synchronization.
+ *
+ * @param <T> Type of the nodes kept in the wheel.
+ */
+class TimerWheel<T extends TimerWheel.Node> {
+
+    private static final int BUCKETS = 64;
+    private static final int[] SHIFT = {30, 36, 42, 48};
+    private static final long[] SPANS = {1L << 30, 1L << 36, 1L << 42, 1L << 48, 1L << 54};
+
+    private final Node[][] wheel = new Node[SHIFT.length][BUCKETS];
+    private long nanos;
+
+    /**
+     * Creates an empty timer wheel.
+     *
+     * @param nanos The current time, as returned by System.nanoTime().
+     */
+    TimerWheel(long nanos) {
+        this.nanos = nanos;
+        for (Node[] level : wheel)
+            for (int i = 0; i < BUCKETS; i++) {
+                Node sentinel = new Node();
+                sentinel.prev = sentinel.next = sentinel;
+                level[i] = sentinel;
+            }
+    }
+
+    /**
+     * Returns the time of the last advance, or of the creation of the wheel if it was never advanced.
+     *
+     * @return A value of System.nanoTime().
+     */
+    long getTime() {
+        return nanos;
+    }
+
+    /**
+     * Returns true if at least one bucket would be visited by advancing the wheel to the specified time.
+     *
+     * @param now The current time, as returned by System.nanoTime().
+     * @return true if advancing the wheel would have any effect, false otherwise.
+     */
+    boolean isDue(long now) {
+        return (now >> SHIFT[0]) != (nanos >> SHIFT[0]);
+    }
+
+    /**
+     * Adds a node to the wheel, or moves it to the bucket matching its current deadline if it is already scheduled.
+     *
+     * @param node The node to be scheduled.
+     */
+    void schedule(T node) {
+        if (node.isScheduled())
+            unlink(node);
+        Node sentinel = findBucket(node.deadline);
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    /**
+     * Removes a node from the wheel. Has no effect if the node is not scheduled.
+     *
+     * @param node The node to be removed.
+     */
+    void deschedule(T node) {
+        if (node.isScheduled())
+            unlink(node);
+    }
+
+    /**
+     * Removes all nodes from the wheel.
+     */
+    void clear() {
+        for (Node[] level : wheel)
+            for (Node sentinel : level) {
+                Node node = sentinel.next;
+                while (node != sentinel) {
+                    Node next = node.next;
+                    node.prev = node.next = null;
+                    node = next;
+                }
+                sentinel.prev = sentinel.next = sentinel;
+            }
+    }
+
+    /**
+     * Advances the wheel to the current time. Every node whose deadline has passed is removed from the wheel and given
+     * to the expiration action; nodes found in visited buckets that are not due yet are moved to a finer bucket.
+     *
+     * @param now     The current time, as returned by System.nanoTime().
+     * @param expired Action performed for each expired node. The action may schedule the node again.
+     */
+    @SuppressWarnings("unchecked")
+    void advance(long now, Consumer<T> expired) {
+        long previous = nanos;
+        nanos = now;
+        for (int level = 0; level < SHIFT.length; level++) {
+            long previousTicks = previous >> SHIFT[level];
+            long delta = (now >> SHIFT[level]) - previousTicks;
+            if (delta <= 0) break;
+
+            int steps = (int) Math.min(delta + 1, BUCKETS);
+            for (int i = 0; i < steps; i++) {
+                Node sentinel = wheel[level][(int) ((previousTicks + i) & (BUCKETS - 1))];
+                Node node = sentinel.next;
+                sentinel.prev = sentinel.next = sentinel;
+                while (node != sentinel) {
+                    Node next = node.next;
+                    node.prev = node.next = null;
+                    if (node.deadline - now <= 0)
+                        expired.accept((T) node);
+                    else
+                        schedule((T) node);
+                    node = next;
+                }
+            }
+        }
+    }
+
+    private Node findBucket(long deadline) {
+        long duration = deadline - nanos;
+        int top = SHIFT.length - 1;
+        for (int level = 0; level < top; level++) {
+            if (duration < SPANS[level + 1])
+                return wheel[level][(int) ((deadline >> SHIFT[level]) & (BUCKETS - 1))];
+        }
+        // Deadlines beyond the range of the wheel are parked in the farthest bucket and rescheduled when it is visited
+        if (duration >= SPANS[top + 1])
+            deadline = nanos + SPANS[top + 1] - SPANS[top];
+        return wheel[top][(int) ((deadline >> SHIFT[top]) & (BUCKETS - 1))];
+    }
+
+    private static void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+    }
+
+    /**
+     * An entry that can be kept in a timer wheel. A node is scheduled if and only if its links are set.
+     */
+    static class Node {
+        Node prev;
+        Node next;
+        long deadline;
+
+        boolean isScheduled() {
+            return next != null;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+public class DNSCacheTest {
+
+    private static final int HOSTS = 10000;
+    private static final long STRESS_DURATION_MS = 500;
+
+    private DNSCache cache;
+    private DNSQuestion[] questions;
+
+    @BeforeEach
+    public void createCache() {
+        this.cache = new DNSCache();
+        this.questions = new DNSQuestion[HOSTS];
+        for (int i = 0; i < HOSTS; i++) {
+            questions[i] = new DNSQuestion("host" + i + ".example.com", RecordType.A, RecordClass.IN);
+            cache.addResult(new ResourceRecord(questions[i], 3600, "10.0." + (i >> 8 & 0xff) + "." + (i & 0xff)));
+        }
+    }
+
+    @Test
+    public void testRootNameServersAfterReset() {
+        cache.reset();
+        Assertions.assertEquals(13, cache.getCachedResults(DNSCache.rootQuestion, false).size());
+        Assertions.assertTrue(cache.getCachedResults(questions[0], false).isEmpty());
+    }
+
+    @Test
+    public void testCnameIncluded() {
+        DNSQuestion cname = new DNSQuestion("host1.example.com", RecordType.CNAME, RecordClass.IN);
+        ResourceRecord alias = new ResourceRecord(cname, 3600, "host2.example.com");
+        cache.addResult(alias);
+        Assertions.assertTrue(cache.getCachedResults(questions[1], true).contains(alias));
+        Assertions.assertFalse(cache.getCachedResults(questions[1], false).contains(alias));
+    }
+
+    @Test
+    public void testExpiredRecordsRemoved() {
+        DNSQuestion question = new DNSQuestion("expired.example.com", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(question, 0, "10.1.1.1"));
+        Assertions.assertTrue(cache.getCachedResults(question, false).isEmpty());
+        cache.forEachQuestion((q, records) -> Assertions.assertNotEquals(question, q));
+    }
+
+    @Test
+    public void testInvalidationListener() {
+        List<DNSQuestion> invalidated = new ArrayList<>();
+        AtomicBoolean cleared = new AtomicBoolean();
+        DNSCache.InvalidationListener listener = new DNSCache.InvalidationListener() {
+            @Override
+            public void invalidate(DNSQuestion question) {
+                invalidated.add(question);
+            }
+
+            @Override
+            public void invalidateAll() {
+                cleared.set(true);
+            }
+        };
+        cache.addInvalidationListener(listener);
+
+        DNSQuestion question = new DNSQuestion("listened.example.com", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(question, 3600, "10.6.0.1"));
+        Assertions.assertEquals(Collections.singletonList(question), invalidated);
+        cache.addResult(new ResourceRecord(question, 7200, "10.6.0.1"));
+        Assertions.assertEquals(1, invalidated.size(), "Extended record reported as a change");
+
+        DNSQuestion missing = new DNSQuestion("listened.example.com", RecordType.AAAA, RecordClass.IN);
+        DNSQuestion zone = new DNSQuestion("example.com", RecordType.SOA, RecordClass.IN);
+        cache.addNegativeResult(missing, new ResourceRecord(zone, 600, "ns.example.com h.example.com 1 2 3 4 5"), 60);
+        Assertions.assertEquals(Arrays.asList(question, missing), invalidated);
+
+        cache.reset();
+        Assertions.assertTrue(cleared.get());
+
+        invalidated.clear();
+        cache.removeInvalidationListener(listener);
+        cache.addResult(new ResourceRecord(question, 3600, "10.6.0.1"));
+        Assertions.assertTrue(invalidated.isEmpty());
+    }
+
+    @Test
+    public void testEvictionInvalidates() {
+        DNSCache bounded = new DNSCache(1, 1, Long.MAX_VALUE);
+        Set<DNSQuestion> invalidated = new HashSet<>();
+        bounded.addInvalidationListener(new DNSCache.InvalidationListener() {
+            @Override
+            public void invalidate(DNSQuestion question) {
+                invalidated.add(question);
+            }
+
+            @Override
+            public void invalidateAll() {
+            }
+        });
+        bounded.addResult(new ResourceRecord(questions[0], 3600, "10.6.1.1"));
+        bounded.addResult(new ResourceRecord(questions[1], 3600, "10.6.1.2"));
+        Assertions.assertEquals(1, bounded.getEvictionCount());
+        Assertions.assertEquals(new HashSet<>(Arrays.asList(questions[0], questions[1])), invalidated);
+    }
+
+    @Test
+    public void testRecordBound() {
+        DNSCache bounded = new DNSCache(1, 100, Long.MAX_VALUE);
+        for (DNSQuestion question : questions)
+            bounded.addResult(new ResourceRecord(question, 3600, "10.5.0.1"));
+        Assertions.assertEquals(100, bounded.getRecordCount());
+        Assertions.assertEquals(HOSTS - 100, bounded.getEvictionCount());
+        Assertions.assertEquals(13, bounded.getCachedResults(DNSCache.rootQuestion, false).size(),
+                "Root nameservers must never be evicted");
+    }
+
+    @Test
+    public void testByteBound() {
+        DNSCache bounded = new DNSCache(1, Long.MAX_VALUE, 64 * 1024);
+        for (DNSQuestion question : questions)
+            bounded.addResult(new ResourceRecord(question, 3600, "10.5.0.1"));
+        Assertions.assertTrue(bounded.getEstimatedBytes() <= 64 * 1024);
+        Assertions.assertTrue(bounded.getRecordCount() > 0);
+        Assertions.assertEquals(13, bounded.getCachedResults(DNSCache.rootQuestion, false).size());
+    }
+
+    @Test
+    public void testHotNamesSurviveScan() {
+        DNSCache bounded = new DNSCache(1, 1000, Long.MAX_VALUE);
+        int hot = 500;
+        for (int round = 0; round < 5; round++)
+            for (int i = 0; i < hot; i++)
+                if (bounded.getCachedResults(questions[i], false).isEmpty())
+                    bounded.addResult(new ResourceRecord(questions[i], 3600, "10.6.0.1"));
+
+        // A scan of names requested only once, each one a miss followed by an insertion
+        for (int i = hot; i < HOSTS; i++) {
+            bounded.getCachedResults(questions[i], false);
+            bounded.addResult(new ResourceRecord(questions[i], 3600, "10.6.0.2"));
+        }
+
+        long resident = Arrays.stream(questions, 0, hot)
+                .filter(q -> !bounded.getCachedResults(q, false).isEmpty()).count();
+        Assertions.assertTrue(resident >= hot * 9 / 10, "Only " + resident + " hot names survived the scan");
+    }
+
+    @Test
+    public void testHitAndMissCounters() {
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        cache.getCachedResults(questions[0], false);
+        cache.getCachedResults(new DNSQuestion("missing.example.com", RecordType.A, RecordClass.IN), true);
+        Assertions.assertEquals(hits + 1, cache.getHitCount());
+        Assertions.assertEquals(misses + 1, cache.getMissCount());
+    }
+
+    @Test
+    public void testConcurrentAddResult() throws InterruptedException {
+        int threads = 8;
+        int perThread = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        DNSQuestion shared = new DNSQuestion("shared.example.com", RecordType.A, RecordClass.IN);
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            executor.execute(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    DNSQuestion question = new DNSQuestion("t" + id + "-" + i + ".example.com", RecordType.A, RecordClass.IN);
+                    cache.addResult(new ResourceRecord(question, 3600, "10.2.0." + (i & 0xff)));
+                    cache.addResult(new ResourceRecord(shared, 3600, "10.3." + id + "." + (i % 10)));
+                }
+            });
+        }
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        Assertions.assertEquals(threads * 10, cache.getCachedResults(shared, false).size());
+        for (int t = 0; t < threads; t++)
+            for (int i = 0; i < perThread; i++)
+                Assertions.assertEquals(1, cache.getCachedResults(
+                        new DNSQuestion("t" + t + "-" + i + ".example.com", RecordType.A, RecordClass.IN), false).size());
+    }
+
+    /**
+     * Depends on the load of the machine, so it is tagged to be excluded from routine runs (--exclude-tag stress). See
+     * CacheBenchmark.mixedAllThreads for a measurement of the scaling.
+     */
+    @Test
+    @Tag("stress")
+    public void testThroughputScalesWithThreads() throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        Assumptions.assumeTrue(cores >= 4, "Scaling can only be observed with four or more cores");
+        measureThroughput(cores); // warm-up
+        double single = measureThroughput(1);
+        double multiple = measureThroughput(cores);
+
+        Assertions.assertTrue(multiple > single * 1.5,
+                String.format("Throughput did not increase with more threads: 1 thread %.0f ops/s, "
+                        + "%d threads %.0f ops/s", single, cores, multiple));
+    }
+
+    @Test
+    public void testSnapshotRoundTrip(@TempDir Path directory) throws IOException {
+        DNSQuestion v6 = new DNSQuestion("host1.example.com", RecordType.AAAA, RecordClass.IN);
+        cache.addResult(new ResourceRecord(v6, 600, InetAddress.getByName("2001:db8::1")));
+        DNSQuestion missing = new DNSQuestion("missing.example.com", RecordType.A, RecordClass.IN);
+        ResourceRecord soa = new ResourceRecord(new DNSQuestion("example.com", RecordType.SOA, RecordClass.IN), 900,
+                "ns.example.com admin.example.com 1 7200 900 604800 300");
+        cache.addNegativeResult(missing, soa, 300, true);
+        DNSQuestion expired = new DNSQuestion("expired.example.com", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(expired, "10.9.9.9", null, System.nanoTime() + 1_000_000L));
+        DNSQuestion mx = new DNSQuestion("example.com", RecordType.MX, RecordClass.IN);
+        cache.addResult(new ResourceRecord(mx, 600, 10, DNSName.of("mail.example.com")));
+
+        Path file = directory.resolve("cache.snapshot");
+        Assertions.assertTrue(cache.writeSnapshot(file) >= HOSTS + 3);
+
+        DNSCache restored = new DNSCache();
+        Assertions.assertEquals(HOSTS + 3, restored.loadSnapshot(file));
+        Assertions.assertEquals(13, restored.getCachedResults(DNSCache.rootQuestion, false).size());
+        for (int i = 0; i < HOSTS; i += 97) {
+            List<ResourceRecord> results = restored.getCachedResults(questions[i], false);
+            Assertions.assertEquals(cache.getCachedResults(questions[i], false), results);
+            Assertions.assertTrue(results.get(0).getRemainingTTL() > 3590);
+        }
+        ResourceRecord address = restored.getCachedResults(v6, false).get(0);
+        Assertions.assertEquals(InetAddress.getByName("2001:db8::1"), address.getInetResult());
+        ResourceRecord negative = restored.getNegativeResult(missing);
+        Assertions.assertNotNull(negative);
+        Assertions.assertEquals(soa.getTextResult(), negative.getTextResult());
+        Assertions.assertTrue(negative.getRemainingTTL() <= 300);
+        Assertions.assertTrue(restored.isNonExistent(missing));
+        ResourceRecord exchange = restored.getCachedResults(mx, false).get(0);
+        Assertions.assertEquals("mail.example.com", exchange.getTextResult());
+        Assertions.assertEquals(10, exchange.getPreference());
+        Assertions.assertTrue(restored.getCachedResults(expired, false).isEmpty());
+    }
+
+    @Test
+    public void testSnapshotRejectsOtherFiles(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("not-a-snapshot");
+        Files.write(file, "127.0.0.1 localhost\n".getBytes());
+        Assertions.assertThrows(IOException.class, () -> cache.loadSnapshot(file));
+    }
+
+    @Test
+    public void testServeStale() throws InterruptedException {
+        cache.setMaxStale(60);
+        DNSQuestion question = new DNSQuestion("stale.example.com", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(question, "10.1.1.1", null, System.nanoTime() + 50_000_000L));
+        Thread.sleep(100);
+        cache.cleanUp();
+
+        Assertions.assertTrue(cache.getCachedResults(question, true).isEmpty());
+        List<ResourceRecord> stale = cache.getStaleResults(question, true);
+        Assertions.assertEquals(1, stale.size());
+        Assertions.assertTrue(stale.get(0).isExpired());
+
+        cache.setMaxStale(0);
+        Assertions.assertTrue(cache.getStaleResults(question, true).isEmpty());
+    }
+
+    @Test
+    public void testRefreshDue() {
+        long now = System.nanoTime();
+        ResourceRecord record = new ResourceRecord(questions[0], "10.1.1.1", null, now + 10_000_000_000L);
+        Assertions.assertFalse(record.isRefreshDue(now, 0.1));
+        Assertions.assertTrue(record.isRefreshDue(now + 9_500_000_000L, 0.1));
+        Assertions.assertFalse(record.isRefreshDue(now + 10_000_000_000L, 0.1), "Expired records are not refreshed");
+    }
+
+    @Test
+    public void testCompactRecords() throws Exception {
+        DNSQuestion question = new DNSQuestion("compact.example.com", RecordType.AAAA, RecordClass.IN);
+        InetAddress address = InetAddress.getByName("2001:db8::1:2");
+        ResourceRecord record = new ResourceRecord(question, 3600, address);
+        Assertions.assertEquals(address, record.getInetResult());
+        Assertions.assertEquals(address.getHostAddress(), record.getTextResult());
+        Assertions.assertEquals(16, record.getAddressLength());
+        ResourceRecord ipv4 = new ResourceRecord(questions[0], 3600, InetAddress.getByName("192.0.2.250"));
+        Assertions.assertEquals("192.0.2.250", ipv4.getTextResult());
+        Assertions.assertEquals(4, ipv4.getAddressLength());
+
+        // The same address decoded again is a duplicate, whose question is shared with the cached record
+        DNSQuestion copy = new DNSQuestion("compact.example.com", RecordType.AAAA, RecordClass.IN);
+        ResourceRecord duplicate = new ResourceRecord(copy, 7200, InetAddress.getByName("2001:db8:0:0:0:0:1:2"));
+        Assertions.assertEquals(record, duplicate);
+        Assertions.assertEquals(record.hashCode(), duplicate.hashCode());
+        cache.addResult(record);
+        cache.addResult(duplicate);
+        List<ResourceRecord> cached = cache.getCachedResults(question, false);
+        Assertions.assertEquals(1, cached.size());
+        Assertions.assertTrue(cached.get(0).getRemainingTTL() > 3600, "Duplicate did not extend the record");
+        cache.addResult(new ResourceRecord(copy, 3600, InetAddress.getByName("2001:db8::1:3")));
+        cached = cache.getCachedResults(question, false);
+        Assertions.assertEquals(2, cached.size());
+        Assertions.assertSame(cached.get(0).getQuestion(), cached.get(1).getQuestion());
+
+        // Host names that result from records are interned
+        DNSQuestion ns = new DNSQuestion("example.com", RecordType.NS, RecordClass.IN);
+        ResourceRecord nameServer = new ResourceRecord(ns, 3600, "ns1." + "example.com");
+        Assertions.assertSame(DNSName.of("ns1.example.com"), nameServer.getNameResult());
+        Assertions.assertEquals("ns1.example.com", nameServer.getTextResult());
+        Assertions.assertNull(nameServer.getInetResult());
+        Assertions.assertNotEquals(nameServer, new ResourceRecord(ns, 3600, "NS1.example.com"));
+    }
+
+    @Test
+    public void testSingleRecordSets() throws Exception {
+        DNSCache small = new DNSCache(1);
+        DNSQuestion question = new DNSQuestion("single.example.com", RecordType.A, RecordClass.IN);
+        ResourceRecord soa = new ResourceRecord(new DNSQuestion("example.com", RecordType.SOA, RecordClass.IN), 3600,
+                "ns1.example.com");
+        small.addNegativeResult(question, soa, 60);
+        Assertions.assertEquals(1, small.getRecordCount());
+
+        // A positive record replaces the negative answer, then a second record is added next to it
+        ResourceRecord first = new ResourceRecord(question, 3600, InetAddress.getByName("10.6.0.1"));
+        small.addResult(first);
+        Assertions.assertNull(small.getNegativeResult(question));
+        Assertions.assertEquals(Collections.singletonList(first), small.getCachedResults(question, false));
+        small.addResult(new ResourceRecord(question, 7200, InetAddress.getByName("10.6.0.1")));
+        Assertions.assertEquals(1, small.getRecordCount());
+        small.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.6.0.2")));
+        Assertions.assertEquals(2, small.getCachedResults(question, false).size());
+        Assertions.assertEquals(2, small.getRecordCount());
+    }
+
+    /**
+     * Runs a mix of 90% reads and 10% writes on the cache from several threads for a fixed duration.
+     *
+     * @param threads Number of threads accessing the cache.
+     * @return The number of operations per second performed by all threads together.
+     */
+    private double measureThroughput(int threads) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (running.get()) {
+                    DNSQuestion question = questions[random.nextInt(HOSTS)];
+                    if (random.nextInt(10) == 0)
+                        cache.addResult(new ResourceRecord(question, 3600, "10.4.0." + random.nextInt(4)));
+                    else
+                        cache.getCachedResults(question, true);
+                    count++;
+                }
+                operations.add(count);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(STRESS_DURATION_MS);
+        running.set(false);
+        for (Thread worker : workers)
+            worker.join();
+        return operations.sum() * 1e9 / (System.nanoTime() - begin);
+    }
+}
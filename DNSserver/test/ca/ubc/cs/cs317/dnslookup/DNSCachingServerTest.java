@@ -0,0 +1,271 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+public class DNSCachingServerTest {
+
+    private DNSCache cache;
+    private DNSLookupService service;
+    private DNSCachingServer server;
+    private DatagramSocket client;
+    private Random random;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        this.cache = DNSCache.getInstance();
+        this.service = new DNSLookupService("127.0.0.1", new DNSLookupCUI());
+        this.server = new DNSCachingServer(service, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+        this.client = new DatagramSocket();
+        client.setSoTimeout(2000);
+        this.random = new Random();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        client.close();
+        server.close();
+        service.close();
+    }
+
+    private String uniqueName(String prefix) {
+        return prefix + random.nextInt(1000000) + ".server.test";
+    }
+
+    private DNSMessage buildQuery(DNSQuestion question) {
+        DNSMessage query = new DNSMessage((short) random.nextInt(0x10000));
+        query.setRD(true);
+        query.addQuestion(question);
+        return query;
+    }
+
+    private DNSMessage ask(DNSMessage query) throws IOException {
+        byte[] data = query.getUsed();
+        client.send(new DatagramPacket(data, data.length, server.getLocalAddress()));
+        byte[] buffer = new byte[DNSMessage.MAX_UDP_PAYLOAD_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        client.receive(packet);
+        DNSMessage response = new DNSMessage(buffer, packet.getLength());
+        Assertions.assertEquals(query.getID(), response.getID());
+        Assertions.assertTrue(response.getQR());
+        Assertions.assertTrue(response.getRA());
+        return response;
+    }
+
+    @Test
+    public void testUnexpectedFailureKeepsReceivers() throws Exception {
+        server.close();
+        DNSQuestion failing = new DNSQuestion(uniqueName("failing"), RecordType.A, RecordClass.IN);
+        DNSLookupService failingService = new DNSLookupService("127.0.0.1", new DNSLookupCUI()) {
+            @Override
+            public CompletableFuture<Collection<ResourceRecord>> getResultsFollowingCNamesAsync(DNSQuestion question,
+                                                                                      int maxIndirectionLevels) {
+                if (question.equals(failing)) throw new IllegalStateException("Lookup service closing");
+                return super.getResultsFollowingCNamesAsync(question, maxIndirectionLevels);
+            }
+        };
+        server = new DNSCachingServer(failingService, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+        try {
+            // More failures than receivers, each answered with a server failure
+            for (int i = 0; i < 3; i++)
+                Assertions.assertEquals(2, ask(buildQuery(failing)).getRcode());
+            Assertions.assertEquals(3, server.getErrorCount());
+
+            DNSQuestion question = new DNSQuestion(uniqueName("www"), RecordType.A, RecordClass.IN);
+            cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.8.1.2")));
+            Assertions.assertEquals(1, ask(buildQuery(question)).getANCount());
+        } finally {
+            failingService.close();
+        }
+    }
+
+    @Test
+    public void testCachedAnswer() throws Exception {
+        DNSQuestion question = new DNSQuestion(uniqueName("www"), RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.8.1.1")));
+
+        DNSMessage response = ask(buildQuery(question));
+        Assertions.assertTrue(response.getRD());
+        Assertions.assertEquals(0, response.getRcode());
+        Assertions.assertEquals(question, response.getQuestion());
+        Assertions.assertEquals(1, response.getANCount());
+        ResourceRecord answer = response.getRR();
+        Assertions.assertEquals(question, answer.getQuestion());
+        Assertions.assertEquals(InetAddress.getByName("10.8.1.1"), answer.getInetResult());
+        Assertions.assertTrue(answer.getRemainingTTL() > 3500 && answer.getRemainingTTL() <= 3600);
+        Assertions.assertEquals(1, server.getCachedAnswerCount());
+    }
+
+    @Test
+    public void testCNameFollowed() throws Exception {
+        DNSQuestion alias = new DNSQuestion(uniqueName("alias"), RecordType.A, RecordClass.IN);
+        DNSQuestion target = new DNSQuestion(uniqueName("target"), RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(new DNSQuestion(alias.getHostName(), RecordType.CNAME, RecordClass.IN),
+                3600, target.getHostName()));
+        cache.addResult(new ResourceRecord(target, 3600, InetAddress.getByName("10.8.2.1")));
+
+        DNSMessage response = ask(buildQuery(alias));
+        Assertions.assertEquals(alias, response.getQuestion());
+        Assertions.assertEquals(2, response.getANCount());
+        ResourceRecord cname = response.getRR();
+        Assertions.assertEquals(RecordType.CNAME, cname.getRecordType());
+        Assertions.assertEquals(target.getHostName(), cname.getTextResult());
+        Assertions.assertEquals(InetAddress.getByName("10.8.2.1"), response.getRR().getInetResult());
+    }
+
+    @Test
+    public void testNegativeAnswer() throws Exception {
+        DNSQuestion question = new DNSQuestion(uniqueName("missing"), RecordType.AAAA, RecordClass.IN);
+        DNSQuestion zone = new DNSQuestion("server.test", RecordType.SOA, RecordClass.IN);
+        cache.addNegativeResult(question,
+                new ResourceRecord(zone, 600, "ns.server.test hostmaster.server.test 1 7200 900 1209600 300"), 300);
+
+        DNSMessage response = ask(buildQuery(question));
+        Assertions.assertEquals(0, response.getRcode());
+        Assertions.assertEquals(0, response.getANCount());
+        Assertions.assertEquals(1, response.getNSCount());
+        response.getQuestion();
+        ResourceRecord soa = response.getRR();
+        Assertions.assertEquals(RecordType.SOA, soa.getRecordType());
+        Assertions.assertTrue(soa.getRemainingTTL() <= 300);
+    }
+
+    @Test
+    public void testNonExistentName() throws Exception {
+        DNSQuestion question = new DNSQuestion(uniqueName("nxdomain"), RecordType.A, RecordClass.IN);
+        DNSQuestion zone = new DNSQuestion("server.test", RecordType.SOA, RecordClass.IN);
+        cache.addNegativeResult(question,
+                new ResourceRecord(zone, 600, "ns.server.test hostmaster.server.test 1 7200 900 1209600 300"), 300,
+                true);
+
+        for (int i = 0; i < 2; i++) {
+            // The second response comes from the response cache
+            DNSMessage response = ask(buildQuery(question));
+            Assertions.assertEquals(3, response.getRcode());
+            Assertions.assertEquals(0, response.getANCount());
+            Assertions.assertEquals(1, response.getNSCount());
+        }
+    }
+
+    @Test
+    public void testTruncation() throws Exception {
+        DNSQuestion question = new DNSQuestion(uniqueName("many"), RecordType.A, RecordClass.IN);
+        for (int i = 1; i <= 60; i++)
+            cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.8.3." + i)));
+
+        DNSMessage truncated = ask(buildQuery(question));
+        Assertions.assertTrue(truncated.getTC());
+        Assertions.assertEquals(0, truncated.getANCount());
+        Assertions.assertEquals(question, truncated.getQuestion());
+        Assertions.assertEquals(1, server.getTruncatedCount());
+
+        DNSMessage query = buildQuery(question);
+        query.addOPT(DNSMessage.DEFAULT_EDNS_PAYLOAD_SIZE);
+        DNSMessage response = ask(query);
+        Assertions.assertFalse(response.getTC());
+        Assertions.assertEquals(60, response.getANCount());
+        Assertions.assertEquals(1, response.getARCount());
+    }
+
+    @Test
+    public void testResolvedThroughNameServer() throws Exception {
+        SimulatedNameServer nameServer = new SimulatedNameServer("127.0.0.12", 0, 0,
+                SimulatedNameServer.answer("10.8.4.1"));
+        try {
+            service.setNameServer(nameServer.getAddress().getHostAddress());
+            service.setNameServerPort(nameServer.getPort());
+            DNSQuestion question = new DNSQuestion(uniqueName("resolved"), RecordType.A, RecordClass.IN);
+
+            DNSMessage response = ask(buildQuery(question));
+            Assertions.assertEquals(1, response.getANCount());
+            response.getQuestion();
+            Assertions.assertEquals(InetAddress.getByName("10.8.4.1"), response.getRR().getInetResult());
+            Assertions.assertEquals(0, server.getCachedAnswerCount());
+
+            ask(buildQuery(question));
+            Assertions.assertEquals(1, nameServer.getQueryCount(), "Second query not answered from the cache");
+            Assertions.assertEquals(1, server.getCachedAnswerCount());
+        } finally {
+            nameServer.close();
+        }
+    }
+
+    @Test
+    public void testInvalidQueries() throws Exception {
+        DNSMessage query = new DNSMessage((short) 42);
+        query.setQDCount(1);
+        query.addName("www.example");
+        DNSMessage response = ask(query);
+        Assertions.assertEquals(1, response.getRcode(), "Truncated question not reported as a format error");
+
+        query = buildQuery(new DNSQuestion(uniqueName("status"), RecordType.A, RecordClass.IN));
+        query.setOpcode(2);
+        response = ask(query);
+        Assertions.assertEquals(4, response.getRcode(), "Unsupported opcode not reported as not implemented");
+
+        response = ask(buildQuery(new DNSQuestion(uniqueName("chaos"), RecordType.A, RecordClass.OTHER)));
+        Assertions.assertEquals(4, response.getRcode(), "Unsupported class not reported as not implemented");
+        Assertions.assertEquals(3, server.getErrorCount());
+    }
+
+    @Test
+    public void testEncodedAnswerReused() throws Exception {
+        DNSQuestion question = new DNSQuestion(uniqueName("encoded"), RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.8.5.1")));
+
+        ask(buildQuery(question));
+        Assertions.assertEquals(0, server.getEncodedAnswerCount());
+        DNSMessage query = buildQuery(question);
+        query.setRD(false);
+        DNSMessage response = ask(query);
+        Assertions.assertEquals(1, server.getEncodedAnswerCount());
+        Assertions.assertFalse(response.getRD());
+        Assertions.assertEquals(question, response.getQuestion());
+        Assertions.assertEquals(1, response.getANCount());
+        Assertions.assertEquals(InetAddress.getByName("10.8.5.1"), response.getRR().getInetResult());
+
+        query = buildQuery(question);
+        query.addOPT(DNSMessage.DEFAULT_EDNS_PAYLOAD_SIZE);
+        response = ask(query);
+        Assertions.assertEquals(2, server.getEncodedAnswerCount());
+        Assertions.assertEquals(1, response.getARCount(), "OPT record missing from encoded answer");
+
+        Thread.sleep(1100);
+        response = ask(buildQuery(question));
+        Assertions.assertEquals(3, server.getEncodedAnswerCount());
+        response.getQuestion();
+        Assertions.assertEquals(3599, response.getRR().getRemainingTTL(), "TTL not decremented");
+    }
+
+    @Test
+    public void testEncodedAnswerInvalidated() throws Exception {
+        DNSQuestion alias = new DNSQuestion(uniqueName("alias"), RecordType.A, RecordClass.IN);
+        DNSQuestion target = new DNSQuestion(uniqueName("target"), RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(new DNSQuestion(alias.getHostName(), RecordType.CNAME, RecordClass.IN),
+                3600, target.getHostName()));
+        cache.addResult(new ResourceRecord(target, 3600, InetAddress.getByName("10.8.6.1")));
+        ask(buildQuery(alias));
+        ask(buildQuery(alias));
+        Assertions.assertEquals(1, server.getEncodedAnswerCount());
+
+        // A new record at the end of the chain must be seen by the next query
+        cache.addResult(new ResourceRecord(target, 3600, InetAddress.getByName("10.8.6.2")));
+        DNSMessage response = ask(buildQuery(alias));
+        Assertions.assertEquals(3, response.getANCount());
+        Assertions.assertEquals(1, server.getEncodedAnswerCount());
+        ask(buildQuery(alias));
+        Assertions.assertEquals(2, server.getEncodedAnswerCount());
+
+        cache.reset();
+        cache.addResult(new ResourceRecord(alias, 3600, InetAddress.getByName("10.8.6.3")));
+        response = ask(buildQuery(alias));
+        Assertions.assertEquals(1, response.getANCount(), "Encoded answer kept after reset");
+        response.getQuestion();
+        Assertions.assertEquals(InetAddress.getByName("10.8.6.3"), response.getRR().getInetResult());
+    }
+}
@@ -0,0 +1,93 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+public class DNSInfraCacheTest {
+
+    private DNSInfraCache infra;
+    private InetAddress fast;
+    private InetAddress slow;
+
+    @BeforeEach
+    public void setUp() throws UnknownHostException {
+        this.infra = new DNSInfraCache();
+        this.fast = InetAddress.getByName("192.0.2.1");
+        this.slow = InetAddress.getByName("192.0.2.2");
+    }
+
+    @Test
+    public void testSmoothedRtt() {
+        infra.recordRtt(fast, 10_000);
+        Assertions.assertEquals(10_000, infra.getSmoothedRtt(fast));
+        Assertions.assertEquals(5_000, infra.getRttVariance(fast));
+        infra.recordRtt(fast, 18_000);
+        Assertions.assertEquals(11_000, infra.getSmoothedRtt(fast));
+        Assertions.assertEquals(5_750, infra.getRttVariance(fast));
+        Assertions.assertEquals(-1, infra.getSmoothedRtt(slow));
+    }
+
+    @Test
+    public void testSelectFastest() {
+        infra.recordRtt(fast, 5_000);
+        infra.recordRtt(slow, 50_000);
+        List<InetAddress> candidates = Arrays.asList(slow, fast);
+        Assertions.assertEquals(fast, infra.select(candidates));
+        Assertions.assertEquals(49_000, infra.getSmoothedRtt(slow), "Server passed over was not decayed");
+        Assertions.assertEquals(5_000, infra.getSmoothedRtt(fast));
+    }
+
+    @Test
+    public void testSlowServerExploredEventually() {
+        infra.recordRtt(fast, 5_000);
+        infra.recordRtt(slow, 50_000);
+        List<InetAddress> candidates = Arrays.asList(fast, slow);
+        int selections = 0;
+        while (infra.select(candidates) == fast)
+            Assertions.assertTrue(++selections < 1000, "Slow server never tried again");
+        Assertions.assertTrue(selections > 50, "Slow server tried again too soon");
+    }
+
+    @Test
+    public void testTimeouts() {
+        infra.recordRtt(fast, 5_000);
+        infra.recordRtt(slow, 50_000);
+        infra.recordTimeout(fast, 5_000_000);
+        Assertions.assertEquals(1, infra.getTimeoutCount(fast));
+        Assertions.assertEquals(5_000_000, infra.getSmoothedRtt(fast));
+        infra.recordTimeout(fast, 5_000_000);
+        Assertions.assertEquals(2, infra.getTimeoutCount(fast));
+        Assertions.assertEquals(10_000_000, infra.getSmoothedRtt(fast));
+        Assertions.assertEquals(slow, infra.select(Arrays.asList(fast, slow)));
+
+        infra.recordRtt(fast, 5_000);
+        Assertions.assertEquals(0, infra.getTimeoutCount(fast));
+    }
+
+    @Test
+    public void testUnknownServersTriedFirst() {
+        infra.recordRtt(slow, 50_000);
+        Assertions.assertEquals(fast, infra.select(Arrays.asList(slow, fast)));
+    }
+
+    @Test
+    public void testRetransmissionTimeout() {
+        Assertions.assertEquals(DNSInfraCache.INITIAL_RTO, infra.getRetransmissionTimeout(fast, 0));
+        Assertions.assertEquals(2 * DNSInfraCache.INITIAL_RTO, infra.getRetransmissionTimeout(fast, 1));
+
+        infra.recordRtt(fast, 2_000);
+        Assertions.assertEquals(DNSInfraCache.MIN_RTO, infra.getRetransmissionTimeout(fast, 0));
+        infra.recordRtt(slow, 100_000);
+        Assertions.assertEquals(300, infra.getRetransmissionTimeout(slow, 0));
+        Assertions.assertEquals(1200, infra.getRetransmissionTimeout(slow, 2));
+        Assertions.assertEquals(DNSInfraCache.MAX_RTO, infra.getRetransmissionTimeout(slow, 10));
+
+        infra.recordTimeout(fast, 50_000);
+        Assertions.assertTrue(infra.getRetransmissionTimeout(fast, 0) > DNSInfraCache.MIN_RTO,
+                "Timeout did not increase the retransmission timeout");
+    }
+}
@@ -24,6 +24,11 @@ public class DNSLookupServiceTest {
         this.random = new Random();
     }
 
+    @AfterEach
+    public void stopServer() {
+        service.close();
+    }
+
     private void buildQueryCommonTest(DNSQuestion question) {
         DNSMessage message = service.buildQuery(question);
 
@@ -126,4 +131,668 @@ public class DNSLookupServiceTest {
                 Collections.singleton(new ResourceRecord(question, 16482, InetAddress.getByName("103.233.44.22"))),
                 Collections.emptySet(), Collections.emptySet());
     }
+
+    @Test
+    public void testProcessResponseReferral() throws UnknownHostException {
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSQuestion zone = new DNSQuestion("ubc.ca", RecordType.NS, RecordClass.IN);
+        DNSQuestion glue = new DNSQuestion("ns1.ubc.ca", RecordType.A, RecordClass.IN);
+        processResponseCommonTest(false, 0,
+                Collections.singleton(question),
+                Collections.emptySet(),
+                Arrays.asList(new ResourceRecord(zone, 86400, "ns1.ubc.ca"), new ResourceRecord(zone, 86400, "ns2.ubc.ca")),
+                Collections.singleton(new ResourceRecord(glue, 86400, InetAddress.getByName("137.82.1.1"))));
+    }
+
+    @Test
+    public void testProcessResponseCachesOnlyUsedAdditionalRecords() throws UnknownHostException {
+        String zoneName = "zone" + random.nextInt(1000000) + ".test";
+        DNSQuestion question = new DNSQuestion("www." + zoneName, RecordType.A, RecordClass.IN);
+        DNSQuestion zone = new DNSQuestion(zoneName, RecordType.NS, RecordClass.IN);
+        DNSQuestion glue = new DNSQuestion("NS1." + zoneName, RecordType.A, RecordClass.IN);
+        DNSQuestion unrelated = new DNSQuestion("www.elsewhere." + zoneName, RecordType.A, RecordClass.IN);
+        DNSQuestion unknown = new DNSQuestion("ns1." + zoneName, RecordType.OTHER, RecordClass.IN);
+        ResourceRecord nameserver = new ResourceRecord(zone, 86400, "ns1." + zoneName);
+        ResourceRecord glueRecord = new ResourceRecord(glue, 86400, InetAddress.getByName("10.9.1.1"));
+        DNSMessage response = buildResponse(1, false, 0, Collections.singleton(question), Collections.emptySet(),
+                Collections.singleton(nameserver), Arrays.asList(
+                        new ResourceRecord(unrelated, 86400, InetAddress.getByName("10.9.1.2")), glueRecord,
+                        new ResourceRecord(unknown, 86400, "0a0b")));
+
+        Assertions.assertEquals(Collections.singleton(nameserver), service.processResponse(turnaround(response)));
+        checkRRs(Arrays.asList(nameserver, glueRecord));
+        Assertions.assertTrue(cache.getCachedResults(unrelated, false).isEmpty(), "Unrelated address was cached");
+        Assertions.assertTrue(cache.getCachedResults(unknown, false).isEmpty(), "Unused record was cached");
+    }
+
+    @Test
+    public void testNegativeCachingNxdomain() {
+        DNSQuestion question = new DNSQuestion("nxdomain.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSQuestion zone = new DNSQuestion("cs.ubc.ca", RecordType.SOA, RecordClass.IN);
+        ResourceRecord soa = new ResourceRecord(zone, 3600, "ns1.cs.ubc.ca hostmaster.cs.ubc.ca 2021 7200 900 604800 300");
+        processResponseCommonTest(true, 3, Collections.singleton(question), Collections.emptySet(),
+                Collections.singleton(soa), Collections.emptySet());
+
+        ResourceRecord negative = cache.getNegativeResult(question);
+        Assertions.assertNotNull(negative, "NXDOMAIN answer was not cached");
+        Assertions.assertTrue(negative.getRemainingTTL() <= 300, "Negative TTL must not exceed the SOA MINIMUM");
+        Assertions.assertTrue(cache.isNonExistent(question), "NXDOMAIN cached as NODATA");
+        Assertions.assertTrue(cache.getCachedResults(question, true).isEmpty());
+
+        // The nameserver (127.0.0.1) is not contacted, otherwise the lookup would time out
+        Collection<ResourceRecord> results = Assertions.assertTimeoutPreemptively(
+                java.time.Duration.ofSeconds(1), () -> service.getResults(question));
+        Assertions.assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void testNegativeCachingNodata() {
+        DNSQuestion question = new DNSQuestion("nodata.cs.ubc.ca", RecordType.AAAA, RecordClass.IN);
+        DNSQuestion zone = new DNSQuestion("cs.ubc.ca", RecordType.SOA, RecordClass.IN);
+        ResourceRecord soa = new ResourceRecord(zone, 60, "ns1.cs.ubc.ca hostmaster.cs.ubc.ca 2021 7200 900 604800 3600");
+        processResponseCommonTest(true, 0, Collections.singleton(question), Collections.emptySet(),
+                Collections.singleton(soa), Collections.emptySet());
+
+        ResourceRecord negative = cache.getNegativeResult(question);
+        Assertions.assertNotNull(negative, "NODATA answer was not cached");
+        Assertions.assertTrue(negative.getRemainingTTL() <= 60, "Negative TTL must not exceed the SOA TTL");
+        Assertions.assertFalse(cache.isNonExistent(question), "NODATA cached as NXDOMAIN");
+
+        // A positive answer replaces the negative one
+        DNSQuestion other = new DNSQuestion("nodata.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        Assertions.assertNull(cache.getNegativeResult(other));
+        cache.addResult(new ResourceRecord(question, 3600, "::1"));
+        Assertions.assertNull(cache.getNegativeResult(question));
+    }
+
+    @Test
+    public void testResolveAllFromCache() throws UnknownHostException {
+        List<DNSQuestion> questions = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            DNSQuestion question = new DNSQuestion("batch" + i + ".cs.ubc.ca", RecordType.A, RecordClass.IN);
+            cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.7.0." + (i % 250))));
+            questions.add(question);
+        }
+        DNSQuestion alias = new DNSQuestion("alias.batch.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(new DNSQuestion(alias.getHostName(), RecordType.CNAME, RecordClass.IN),
+                3600, "batch0.cs.ubc.ca"));
+        questions.add(alias);
+
+        Map<DNSQuestion, DNSLookupService.Resolution> resolutions = Assertions.assertTimeoutPreemptively(
+                java.time.Duration.ofSeconds(10), () -> service.resolveAll(questions, 16)
+                        .collect(Collectors.toMap(DNSLookupService.Resolution::getQuestion, r -> r)));
+        Assertions.assertEquals(new HashSet<>(questions), resolutions.keySet());
+        for (DNSLookupService.Resolution resolution : resolutions.values())
+            Assertions.assertNull(resolution.getFailure());
+        Assertions.assertEquals(1, resolutions.get(questions.get(5)).getResults().size());
+        Assertions.assertEquals(2, resolutions.get(alias).getResults().size(), "CNAME was not followed");
+    }
+
+    @Test
+    public void testResolveAllInterrupted() throws UnknownHostException {
+        List<DNSQuestion> questions = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            DNSQuestion question = new DNSQuestion("interrupted" + i + ".cs.ubc.ca", RecordType.A, RecordClass.IN);
+            cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.7.1." + i)));
+            questions.add(question);
+        }
+
+        // The stream ends early, and sized operations such as sorted().toArray() get the partial batch
+        Thread.currentThread().interrupt();
+        try {
+            long[] counts = service.resolveAll(questions, 4)
+                    .mapToLong(r -> r.getResults().size()).sorted().toArray();
+            Assertions.assertTrue(counts.length < questions.size());
+            Assertions.assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void testCNameChainCached() throws Exception {
+        String prefix = "chain" + random.nextInt(1000000);
+        for (int i = 0; i < 4; i++)
+            cache.addResult(new ResourceRecord(new DNSQuestion(prefix + "-" + i + ".cdn.test", RecordType.CNAME,
+                    RecordClass.IN), 3600, prefix + "-" + (i + 1) + ".cdn.test"));
+        DNSQuestion end = new DNSQuestion(prefix + "-4.cdn.test", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(end, 3600, InetAddress.getByName("10.9.6.1")));
+        DNSQuestion question = new DNSQuestion(prefix + "-0.cdn.test", RecordType.A, RecordClass.IN);
+
+        Collection<ResourceRecord> results = service.getResultsFollowingCNames(question, 4);
+        Assertions.assertEquals(5, results.size());
+        Assertions.assertEquals(0, service.getChainCacheHitCount());
+
+        // A chain hit is counted as a hit on every name of the chain, as following the chain is
+        long hits = cache.getHitCount(RecordType.A);
+        long misses = cache.getMissCount();
+        Assertions.assertEquals(new ArrayList<>(results), service.getResultsFollowingCNames(question, 4));
+        Assertions.assertEquals(new ArrayList<>(results),
+                service.getResultsFollowingCNamesAsync(question, 4).get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(2, service.getChainCacheHitCount());
+        Assertions.assertEquals(hits + 2 * 5, cache.getHitCount(RecordType.A));
+        Assertions.assertEquals(misses, cache.getMissCount());
+
+        // The cached chain does not bypass the indirection limit
+        Assertions.assertThrows(DNSLookupService.CNameIndirectionLimitException.class,
+                () -> service.getResultsFollowingCNames(question, 3));
+
+        // A change at the end of the chain invalidates it
+        cache.addResult(new ResourceRecord(end, 3600, InetAddress.getByName("10.9.6.2")));
+        Assertions.assertEquals(6, service.getResultsFollowingCNames(question, 4).size());
+        Assertions.assertEquals(2, service.getChainCacheHitCount());
+    }
+
+    @Test
+    public void testCNameLoopNotCached() {
+        String prefix = "loop" + random.nextInt(1000000);
+        cache.addResult(new ResourceRecord(new DNSQuestion(prefix + "-a.cdn.test", RecordType.CNAME, RecordClass.IN),
+                3600, prefix + "-b.cdn.test"));
+        cache.addResult(new ResourceRecord(new DNSQuestion(prefix + "-b.cdn.test", RecordType.CNAME, RecordClass.IN),
+                3600, prefix + "-a.cdn.test"));
+        DNSQuestion question = new DNSQuestion(prefix + "-a.cdn.test", RecordType.A, RecordClass.IN);
+        for (int i = 0; i < 2; i++)
+            Assertions.assertThrows(DNSLookupService.CNameIndirectionLimitException.class,
+                    () -> service.getResultsFollowingCNames(question, 10));
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                () -> service.getResultsFollowingCNamesAsync(question, 10).get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof DNSLookupService.CNameIndirectionLimitException);
+        Assertions.assertEquals(0, service.getChainCacheHitCount());
+    }
+
+    @Test
+    public void testConcurrentLookupsCoalesced() throws Exception {
+        int threads = 8;
+        DNSQuestion question = new DNSQuestion("coalesced" + random.nextInt(1000000) + ".cs.ubc.ca", RecordType.A,
+                RecordClass.IN);
+        AtomicInteger queries = new AtomicInteger();
+        DNSLookupService coalescing = new DNSLookupService("127.0.0.1", new DNSLookupCUI()) {
+            @Override
+            protected Set<ResourceRecord> individualQueryProcess(DNSQuestion q, List<InetAddress> servers,
+                                                                 DNSName zone) {
+                queries.incrementAndGet();
+                // Hold the query until every other lookup has joined it
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (getCoalescedCount() < threads - 1 && System.nanoTime() - deadline < 0)
+                    Thread.yield();
+                try {
+                    cache.addResult(new ResourceRecord(q, 3600, InetAddress.getByName("10.8.0.1")));
+                } catch (UnknownHostException e) {
+                    throw new AssertionError(e);
+                }
+                return Collections.emptySet();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Collection<ResourceRecord>>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+                futures.add(executor.submit(() -> coalescing.getResults(question)));
+            for (Future<Collection<ResourceRecord>> future : futures)
+                Assertions.assertEquals(1, future.get(10, TimeUnit.SECONDS).size());
+        } finally {
+            executor.shutdownNow();
+            coalescing.close();
+        }
+        Assertions.assertEquals(1, queries.get(), "Identical lookups were not coalesced");
+        Assertions.assertEquals(threads - 1, coalescing.getCoalescedCount());
+        Assertions.assertEquals(threads, coalescing.getResolutionCount());
+    }
+
+    @Test
+    public void testServeStaleWhenNameserversTimeOut() throws Exception {
+        DNSQuestion question = new DNSQuestion("stale" + random.nextInt(1000000) + ".cs.ubc.ca", RecordType.A,
+                RecordClass.IN);
+        DNSLookupService unreachable = new DNSLookupService("127.0.0.1", new DNSLookupCUI()) {
+            @Override
+            protected Set<ResourceRecord> individualQueryProcess(DNSQuestion q, List<InetAddress> servers,
+                                                                 DNSName zone) {
+                return null;
+            }
+        };
+        cache.setMaxStale(60);
+        try {
+            cache.addResult(new ResourceRecord(question, "10.8.1.1", InetAddress.getByName("10.8.1.1"),
+                    System.nanoTime() + 20_000_000L));
+            Thread.sleep(50);
+
+            Collection<ResourceRecord> results = unreachable.getResults(question);
+            Assertions.assertEquals(1, results.size());
+            ResourceRecord record = results.iterator().next();
+            Assertions.assertEquals(InetAddress.getByName("10.8.1.1"), record.getInetResult());
+            Assertions.assertEquals(30, record.getRemainingTTL());
+            Assertions.assertEquals(1, unreachable.getStaleAnswerCount());
+            Assertions.assertTrue(cache.getCachedResults(question, false).isEmpty(), "Stale answer was cached again");
+        } finally {
+            cache.setMaxStale(0);
+            unreachable.close();
+        }
+    }
+
+    @Test
+    public void testPrefetchBeforeExpiry() throws UnknownHostException {
+        DNSQuestion question = new DNSQuestion("prefetch" + random.nextInt(1000000) + ".cs.ubc.ca", RecordType.A,
+                RecordClass.IN);
+        cache.addResult(new ResourceRecord(question, 100, InetAddress.getByName("10.8.2.1")));
+
+        service.setPrefetchRatio(0.5);
+        Assertions.assertEquals(1, service.getResults(question).size());
+        Assertions.assertEquals(0, service.getPrefetchCount(), "Record refreshed too early");
+
+        service.setPrefetchRatio(1);
+        try {
+            Assertions.assertEquals(1, service.getResults(question).size());
+            Assertions.assertEquals(1, service.getPrefetchCount());
+            // The refresh is still in flight, so it is not started again
+            Assertions.assertEquals(1, service.getResults(question).size());
+            Assertions.assertEquals(1, service.getPrefetchCount());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void testFastestNameServerPreferred() throws Exception {
+        String[] addresses = {"127.0.0.2", "127.0.0.3", "127.0.0.4"};
+        int[] delays = {80, 40, 2};
+        List<SimulatedNameServer> servers = new ArrayList<>();
+        SimulatedNameServer parent = new SimulatedNameServer("127.0.0.1", 0, 0,
+                SimulatedNameServer.referral("sim.test", addresses));
+        DNSLookupService simulated = new DNSLookupService("127.0.0.1", new DNSLookupCUI());
+        try {
+            for (int i = 0; i < addresses.length; i++)
+                servers.add(new SimulatedNameServer(addresses[i], parent.getPort(), delays[i],
+                        SimulatedNameServer.answer("10.9.0.1")));
+            simulated.setNameServerPort(parent.getPort());
+            for (String address : addresses)
+                DNSInfraCache.getInstance().recordRtt(InetAddress.getByName(address), 20_000);
+
+            long[] latencies = new long[40];
+            for (int i = 0; i < latencies.length; i++) {
+                DNSQuestion question = new DNSQuestion("host" + i + "-" + random.nextInt(1000000) + ".sim.test",
+                        RecordType.A, RecordClass.IN);
+                long start = System.nanoTime();
+                Assertions.assertEquals(1, simulated.getResults(question).size());
+                latencies[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(latencies);
+            Assertions.assertTrue(latencies[latencies.length / 2] < 30_000_000L,
+                    "Median latency " + latencies[latencies.length / 2] / 1_000_000 + " ms");
+            Assertions.assertTrue(servers.get(2).getQueryCount() >= 36,
+                    "Fastest server only received " + servers.get(2).getQueryCount() + " queries");
+            Assertions.assertEquals(0, DNSInfraCache.getInstance().getTimeoutCount(InetAddress.getByName("127.0.0.4")));
+        } finally {
+            simulated.close();
+            parent.close();
+            servers.forEach(SimulatedNameServer::close);
+        }
+    }
+
+    @Test
+    public void testRetryGoesToAnotherNameServer() throws Exception {
+        DNSQuestion question = new DNSQuestion("lossy" + random.nextInt(1000000) + ".sim.test", RecordType.A,
+                RecordClass.IN);
+        SimulatedNameServer.Responder answer = SimulatedNameServer.answer("10.9.1.1");
+        SimulatedNameServer lossy = new SimulatedNameServer("127.0.0.5", 0, 0, answer);
+        SimulatedNameServer healthy = new SimulatedNameServer("127.0.0.6", lossy.getPort(), 2, answer);
+        try {
+            lossy.setDropping(true);
+            service.setNameServerPort(lossy.getPort());
+            DNSInfraCache infra = DNSInfraCache.getInstance();
+            infra.recordRtt(lossy.getAddress(), 1_000);
+            infra.recordRtt(healthy.getAddress(), 5_000);
+
+            long start = System.nanoTime();
+            Set<ResourceRecord> nameservers = service.individualQueryProcess(question,
+                    Arrays.asList(healthy.getAddress(), lossy.getAddress()));
+            long elapsed = System.nanoTime() - start;
+            Assertions.assertNotNull(nameservers, "No response received");
+            Assertions.assertEquals(1, cache.getCachedResults(question, false).size());
+            Assertions.assertEquals(1, lossy.getQueryCount(), "Query was sent again to the lossy server");
+            Assertions.assertEquals(1, healthy.getQueryCount());
+            Assertions.assertEquals(1, infra.getTimeoutCount(lossy.getAddress()));
+            Assertions.assertTrue(elapsed < 1_000_000_000L, "Lookup took " + elapsed / 1_000_000 + " ms");
+        } finally {
+            lossy.close();
+            healthy.close();
+        }
+    }
+
+    @Test
+    public void testDelayedHedgeWins() throws Exception {
+        DNSQuestion question = new DNSQuestion("hedged" + random.nextInt(1000000) + ".sim.test", RecordType.A,
+                RecordClass.IN);
+        SimulatedNameServer slow = new SimulatedNameServer("127.0.0.7", 0, 400, SimulatedNameServer.answer("10.9.2.1"));
+        SimulatedNameServer fast = new SimulatedNameServer("127.0.0.8", slow.getPort(), 2,
+                SimulatedNameServer.answer("10.9.2.1"));
+        try {
+            service.setNameServerPort(slow.getPort());
+            service.setHedging(1, 20);
+            // The slow server is expected to be the fastest, with a retransmission timeout of 300 ms
+            DNSInfraCache.getInstance().recordRtt(slow.getAddress(), 100_000);
+            DNSInfraCache.getInstance().recordRtt(fast.getAddress(), 150_000);
+
+            long start = System.nanoTime();
+            Assertions.assertNotNull(service.individualQueryProcess(question,
+                    Arrays.asList(slow.getAddress(), fast.getAddress())));
+            long elapsed = System.nanoTime() - start;
+            Assertions.assertTrue(elapsed < 250_000_000L, "Lookup took " + elapsed / 1_000_000 + " ms");
+            Assertions.assertEquals(1, service.getHedgeCount());
+            Assertions.assertEquals(1, service.getHedgeWinCount());
+            Assertions.assertEquals(1, slow.getQueryCount());
+            Assertions.assertEquals(1, fast.getQueryCount());
+        } finally {
+            slow.close();
+            fast.close();
+        }
+    }
+
+    @Test
+    public void testImmediateHedgesAsync() throws Exception {
+        SimulatedNameServer parent = new SimulatedNameServer("127.0.0.1", 0, 0,
+                SimulatedNameServer.referral("hedge.test", "127.0.0.9", "127.0.0.10"));
+        SimulatedNameServer slow = new SimulatedNameServer("127.0.0.9", parent.getPort(), 400,
+                SimulatedNameServer.answer("10.9.3.1"));
+        SimulatedNameServer fast = new SimulatedNameServer("127.0.0.10", parent.getPort(), 2,
+                SimulatedNameServer.answer("10.9.3.1"));
+        DNSLookupService hedging = new DNSLookupService("127.0.0.1", new DNSLookupCUI());
+        try {
+            hedging.setNameServerPort(parent.getPort());
+            hedging.setHedging(2, 0);
+            DNSInfraCache.getInstance().recordRtt(slow.getAddress(), 100_000);
+            DNSInfraCache.getInstance().recordRtt(fast.getAddress(), 150_000);
+
+            List<CompletableFuture<Collection<ResourceRecord>>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < 5; i++)
+                futures.add(hedging.getResultsAsync(new DNSQuestion("host" + i + "-" + random.nextInt(1000000) +
+                        ".hedge.test", RecordType.A, RecordClass.IN)));
+            for (CompletableFuture<Collection<ResourceRecord>> future : futures)
+                Assertions.assertEquals(1, future.get(5, TimeUnit.SECONDS).size());
+            long elapsed = System.nanoTime() - start;
+            Assertions.assertTrue(elapsed < 250_000_000L, "Lookups took " + elapsed / 1_000_000 + " ms");
+            // Only the queries of the referred zone have two servers to be sent to
+            Assertions.assertEquals(5, hedging.getHedgeCount());
+            // Hedges win while the slow server is expected to be the fastest
+            Assertions.assertTrue(hedging.getHedgeWinCount() >= 1);
+            Assertions.assertEquals(5, fast.getQueryCount());
+        } finally {
+            hedging.close();
+            parent.close();
+            slow.close();
+            fast.close();
+        }
+    }
+
+    @Test
+    public void testResolutionStartsAtZoneCut() throws Exception {
+        SimulatedNameServer parent = new SimulatedNameServer("127.0.0.1", 0, 0,
+                SimulatedNameServer.referral("cut.test", "127.0.0.13"));
+        SimulatedNameServer child = new SimulatedNameServer("127.0.0.13", parent.getPort(), 0,
+                SimulatedNameServer.answer("10.9.6.1"));
+        try {
+            service.setNameServerPort(parent.getPort());
+            Assertions.assertEquals(1, service.getResults(new DNSQuestion("www" + random.nextInt(1000000) +
+                    ".cut.test", RecordType.A, RecordClass.IN)).size());
+            Assertions.assertEquals(1, parent.getQueryCount());
+
+            Assertions.assertEquals(1, service.getResults(new DNSQuestion("host" + random.nextInt(1000000) +
+                    ".deep.cut.test", RecordType.A, RecordClass.IN)).size());
+            Assertions.assertEquals(1, service.getResultsAsync(new DNSQuestion("async" + random.nextInt(1000000) +
+                    ".cut.test", RecordType.A, RecordClass.IN)).get(5, TimeUnit.SECONDS).size());
+            Assertions.assertEquals(1, parent.getQueryCount(), "Resolution under a cached zone started at the root");
+            Assertions.assertEquals(3, child.getQueryCount());
+            Assertions.assertEquals(2, service.getMetrics().getZoneCutCount());
+        } finally {
+            parent.close();
+            child.close();
+        }
+    }
+
+    @Test
+    public void testZoneCutFallsBackToStartServers() throws Exception {
+        SimulatedNameServer start = new SimulatedNameServer("127.0.0.1", 0, 0,
+                SimulatedNameServer.answer("10.9.7.1"));
+        // A lame nameserver, which no longer serves the zone and refuses queries
+        SimulatedNameServer lame = new SimulatedNameServer("127.0.0.13", start.getPort(), 0,
+                (question, response) -> response.setRcode(5));
+        try {
+            service.setNameServerPort(start.getPort());
+            cache.addResult(new ResourceRecord(new DNSQuestion("lame.test", RecordType.NS, RecordClass.IN), 3600,
+                    "ns0.lame.test"));
+            cache.addResult(new ResourceRecord(new DNSQuestion("ns0.lame.test", RecordType.A, RecordClass.IN), 3600,
+                    lame.getAddress()));
+
+            Assertions.assertEquals(1, service.getResults(new DNSQuestion("www" + random.nextInt(1000000) +
+                    ".lame.test", RecordType.A, RecordClass.IN)).size());
+            Assertions.assertEquals(1, service.getResultsAsync(new DNSQuestion("async" + random.nextInt(1000000) +
+                    ".lame.test", RecordType.A, RecordClass.IN)).get(5, TimeUnit.SECONDS).size());
+            Assertions.assertEquals(2, lame.getQueryCount(), "Cached zone cut not tried first");
+            Assertions.assertEquals(2, start.getQueryCount());
+        } finally {
+            start.close();
+            lame.close();
+        }
+    }
+
+    @Test
+    public void testOutOfZoneNameServersNotUsedAsZoneCut() throws Exception {
+        // The parent refers evil.test to its nameserver, and answers for everything else
+        SimulatedNameServer.Responder referral = SimulatedNameServer.referral("evil.test", "127.0.0.13");
+        SimulatedNameServer parent = new SimulatedNameServer("127.0.0.1", 0, 0, (question, response) -> {
+            if (question.getHostName().endsWith(".evil.test"))
+                referral.respond(question, response);
+            else
+                SimulatedNameServer.answer("10.9.9.2").respond(question, response);
+        });
+        // The nameserver of evil.test claims to serve victim.test too, in the authority section of its answers
+        InetAddress evilAddress = InetAddress.getByName("127.0.0.13");
+        SimulatedNameServer evil = new SimulatedNameServer("127.0.0.13", parent.getPort(), 0, (question, response) -> {
+            SimulatedNameServer.answer("10.9.9.1").respond(question, response);
+            DNSQuestion victim = new DNSQuestion("victim.test", RecordType.NS, RecordClass.IN);
+            response.addResourceRecord(new ResourceRecord(victim, 3600, "ns0.evil.test"), "nameserver");
+            DNSQuestion glue = new DNSQuestion("ns0.victim.test", RecordType.A, RecordClass.IN);
+            response.addResourceRecord(new ResourceRecord(glue, 3600, evilAddress), "additional");
+        });
+        try {
+            service.setNameServerPort(parent.getPort());
+            Assertions.assertEquals(1, service.getResults(new DNSQuestion("www" + random.nextInt(1000000) +
+                    ".evil.test", RecordType.A, RecordClass.IN)).size());
+            Assertions.assertEquals(1, evil.getQueryCount());
+            Assertions.assertTrue(cache.getCachedNameServers(DNSName.of("victim.test"), RecordClass.IN).isEmpty(),
+                    "Out-of-zone NS records were cached");
+
+            DNSQuestion question = new DNSQuestion("www" + random.nextInt(1000000) + ".victim.test", RecordType.A,
+                    RecordClass.IN);
+            Collection<ResourceRecord> results = service.getResults(question);
+            Assertions.assertEquals(1, results.size());
+            Assertions.assertEquals(InetAddress.getByName("10.9.9.2"), results.iterator().next().getInetResult());
+            Assertions.assertEquals(1, evil.getQueryCount(), "Out-of-zone NS records used as a zone cut");
+            Assertions.assertEquals(0, service.getMetrics().getZoneCutCount());
+        } finally {
+            parent.close();
+            evil.close();
+        }
+    }
+
+    /**
+     * Starts the nameservers of zones referred to without glue records. The parent (127.0.0.1) refers each zone under
+     * glueless.test to two nameservers named in other zones, one hosted by a slow provider (127.0.0.14) and one by a
+     * fast provider (127.0.0.15), which both answer with the address of the nameserver of the zone (127.0.0.13).
+     */
+    private List<SimulatedNameServer> startGluelessServers() throws IOException {
+        SimulatedNameServer.Responder slowProvider = SimulatedNameServer.referral("slow.test", "127.0.0.14");
+        SimulatedNameServer.Responder fastProvider = SimulatedNameServer.referral("fast.test", "127.0.0.15");
+        SimulatedNameServer parent = new SimulatedNameServer("127.0.0.1", 0, 0, (question, response) -> {
+            String name = question.getHostName();
+            if (name.endsWith(".slow.test")) {
+                slowProvider.respond(question, response);
+            } else if (name.endsWith(".fast.test")) {
+                fastProvider.respond(question, response);
+            } else {
+                String zone = name.substring(name.indexOf('.') + 1);
+                String label = zone.substring(0, zone.indexOf('.'));
+                DNSQuestion ns = new DNSQuestion(zone, RecordType.NS, RecordClass.IN);
+                response.addResourceRecord(new ResourceRecord(ns, 3600, "ns." + label + ".slow.test"), "nameserver");
+                response.addResourceRecord(new ResourceRecord(ns, 3600, "ns." + label + ".fast.test"), "nameserver");
+            }
+        });
+        // The slow provider is known to be slow, so its answers arrive within its retransmission timeout
+        DNSInfraCache.getInstance().recordRtt(InetAddress.getByName("127.0.0.14"), 1_500_000);
+        return Arrays.asList(parent,
+                new SimulatedNameServer("127.0.0.13", parent.getPort(), 0, SimulatedNameServer.answer("10.9.8.1")),
+                new SimulatedNameServer("127.0.0.14", parent.getPort(), 1500, SimulatedNameServer.answer("127.0.0.13")),
+                new SimulatedNameServer("127.0.0.15", parent.getPort(), 0, SimulatedNameServer.answer("127.0.0.13")));
+    }
+
+    /**
+     * Waits until the address of a nameserver is cached, as the lookup of the slow nameserver of a glueless referral
+     * completes after the lookup that needed it.
+     */
+    private boolean awaitCachedAddress(String nameserver) throws InterruptedException {
+        DNSQuestion question = new DNSQuestion(nameserver, RecordType.A, RecordClass.IN);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cache.getCachedResults(question, false).isEmpty()) {
+            if (System.nanoTime() - deadline >= 0) return false;
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    @Test
+    public void testGluelessNameServersResolvedInParallel() throws Exception {
+        List<SimulatedNameServer> servers = startGluelessServers();
+        try {
+            service.setNameServerPort(servers.get(0).getPort());
+            String label = "z" + random.nextInt(1000000);
+            long start = System.nanoTime();
+            Collection<ResourceRecord> results = service.getResults(new DNSQuestion("www." + label +
+                    ".glueless.test", RecordType.A, RecordClass.IN));
+            long elapsed = System.nanoTime() - start;
+            Assertions.assertEquals(1, results.size());
+            Assertions.assertTrue(elapsed < 1_000_000_000L, "Lookup waited " + elapsed / 1_000_000 + " ms for the "
+                    + "slow nameserver");
+            Assertions.assertTrue(awaitCachedAddress("ns." + label + ".slow.test"),
+                    "Address of the slow nameserver not cached");
+        } finally {
+            servers.forEach(SimulatedNameServer::close);
+        }
+    }
+
+    @Test
+    public void testGluelessNameServersResolvedInParallelAsync() throws Exception {
+        List<SimulatedNameServer> servers = startGluelessServers();
+        try {
+            service.setNameServerPort(servers.get(0).getPort());
+            String label = "z" + random.nextInt(1000000);
+            CompletableFuture<Collection<ResourceRecord>> results = service.getResultsAsync(new DNSQuestion("www." +
+                    label + ".glueless.test", RecordType.A, RecordClass.IN));
+            Assertions.assertEquals(1, results.get(1, TimeUnit.SECONDS).size());
+            Assertions.assertTrue(awaitCachedAddress("ns." + label + ".slow.test"),
+                    "Address of the slow nameserver not cached");
+        } finally {
+            servers.forEach(SimulatedNameServer::close);
+        }
+    }
+
+    /**
+     * Starts a nameserver answering with a referral to a zone with many nameservers, which does not fit in 512 bytes.
+     */
+    private SimulatedNameServer startLargeReferralServer(String zone, int nameservers) throws IOException {
+        String[] addresses = new String[nameservers];
+        for (int i = 0; i < nameservers; i++)
+            addresses[i] = "10.9.4." + (i + 1);
+        SimulatedNameServer server = new SimulatedNameServer("127.0.0.11", 0, 0,
+                SimulatedNameServer.referral(zone, addresses));
+        server.enableTcp();
+        return server;
+    }
+
+    @Test
+    public void testEdnsAvoidsTruncation() throws Exception {
+        String zone = "edns" + random.nextInt(1000000) + ".test";
+        SimulatedNameServer server = startLargeReferralServer(zone, 20);
+        try {
+            service.setNameServerPort(server.getPort());
+            Set<ResourceRecord> nameservers = service.individualQueryProcess(
+                    new DNSQuestion("www." + zone, RecordType.A, RecordClass.IN), server.getAddress());
+            Assertions.assertEquals(20, nameservers.size());
+            Assertions.assertEquals(1, cache.getCachedResults(
+                    new DNSQuestion("ns19." + zone, RecordType.A, RecordClass.IN), false).size(), "Glue record lost");
+            Assertions.assertEquals(0, server.getTcpQueryCount());
+            Assertions.assertEquals(0, service.getTcpFallbackCount());
+            Assertions.assertTrue(cache.getCachedResults(new DNSQuestion("", RecordType.OPT, RecordClass.OTHER), false)
+                    .isEmpty(), "OPT record was cached");
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testTcpFallbackOnTruncation() throws Exception {
+        String zone = "tcp" + random.nextInt(1000000) + ".test";
+        SimulatedNameServer server = startLargeReferralServer(zone, 20);
+        try {
+            service.setNameServerPort(server.getPort());
+            service.setEdnsPayloadSize(0);
+            Set<ResourceRecord> nameservers = service.individualQueryProcess(
+                    new DNSQuestion("www." + zone, RecordType.A, RecordClass.IN), server.getAddress());
+            Assertions.assertEquals(20, nameservers.size());
+            Assertions.assertEquals(1, cache.getCachedResults(
+                    new DNSQuestion("ns19." + zone, RecordType.A, RecordClass.IN), false).size(), "Glue record lost");
+            Assertions.assertEquals(1, server.getTcpQueryCount());
+            Assertions.assertEquals(1, service.getTcpFallbackCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testTcpConnectionReused() throws Exception {
+        String zone = "tcpreuse" + random.nextInt(1000000) + ".test";
+        SimulatedNameServer server = startLargeReferralServer(zone, 20);
+        try {
+            service.setNameServerPort(server.getPort());
+            service.setEdnsPayloadSize(0);
+            for (int i = 0; i < 3; i++)
+                Assertions.assertEquals(20, service.individualQueryProcess(
+                        new DNSQuestion("www" + i + "." + zone, RecordType.A, RecordClass.IN),
+                        server.getAddress()).size());
+            Assertions.assertEquals(3, server.getTcpQueryCount());
+            Assertions.assertEquals(1, server.getTcpConnectionCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testTcpFallbackOnTruncationAsync() throws Exception {
+        String zone = "tcpasync" + random.nextInt(1000000) + ".test";
+        SimulatedNameServer server = new SimulatedNameServer("127.0.0.11", 0, 0, (question, response) -> {
+            response.setAA(true);
+            for (int i = 1; i <= 60; i++) {
+                try {
+                    response.addResourceRecord(new ResourceRecord(question, 60,
+                            InetAddress.getByName("10.9.5." + i)), "answer");
+                } catch (UnknownHostException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        server.enableTcp();
+        DNSLookupService tcp = new DNSLookupService(server.getAddress().getHostAddress(), new DNSLookupCUI());
+        try {
+            tcp.setNameServerPort(server.getPort());
+            tcp.setEdnsPayloadSize(DNSMessage.MAX_DNS_MESSAGE_LENGTH);
+            Collection<ResourceRecord> results = tcp.getResultsAsync(
+                    new DNSQuestion("many." + zone, RecordType.A, RecordClass.IN)).get(5, TimeUnit.SECONDS);
+            Assertions.assertEquals(60, results.size());
+            Assertions.assertEquals(1, server.getTcpQueryCount());
+            Assertions.assertEquals(1, tcp.getTcpFallbackCount());
+        } finally {
+            tcp.close();
+            server.close();
+        }
+    }
 }
@@ -2,6 +2,8 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import org.junit.jupiter.api.Test;
 
+import java.net.InetAddress;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class DNSMessageTest {
@@ -60,4 +62,181 @@ public class DNSMessageTest {
         ResourceRecord replyRR = reply.getRR();
         assertEquals(rr, replyRR);
     }
+    @Test
+    public void testMXPreference() {
+        DNSMessage message = new DNSMessage((short)23);
+        DNSQuestion question = new DNSQuestion("cs.ubc.ca", RecordType.MX, RecordClass.IN);
+        message.addResourceRecord(new ResourceRecord(question, 3600, 10, DNSName.of("mail1.cs.ubc.ca")), "answer");
+        message.addResourceRecord(new ResourceRecord(question, 3600, 20, DNSName.of("mail2.cs.ubc.ca")), "answer");
+        byte[] content = message.getUsed();
+
+        DNSMessage reply = new DNSMessage(content, content.length);
+        ResourceRecord first = reply.getRR();
+        ResourceRecord second = reply.getRR();
+        assertEquals("mail1.cs.ubc.ca", first.getTextResult());
+        assertEquals(10, first.getPreference());
+        assertEquals(20, second.getPreference());
+        assertNotEquals(first, new ResourceRecord(question, 3600, 20, DNSName.of("mail1.cs.ubc.ca")));
+    }
+
+    @Test
+    public void testHeaderFlagsOnTheWire() {
+        DNSMessage message = new DNSMessage((short)23);
+        message.setQR(true);
+        message.setOpcode(2);
+        message.setAA(true);
+        message.setRD(true);
+        message.setRcode(3);
+        message.setQDCount(1);
+        byte[] content = message.getUsed();
+        assertEquals((byte) 0x95, content[2]);
+        assertEquals((byte) 0x03, content[3]);
+        assertEquals(1, content[5]);
+
+        DNSMessage reply = new DNSMessage(content, content.length);
+        assertTrue(reply.getQR());
+        assertEquals(2, reply.getOpcode());
+        assertTrue(reply.getAA());
+        assertFalse(reply.getTC());
+        assertTrue(reply.getRD());
+        assertFalse(reply.getRA());
+        assertEquals(3, reply.getRcode());
+        assertEquals(1, reply.getQDCount());
+    }
+    @Test
+    public void testSOAResourceRecord() {
+        DNSMessage request = new DNSMessage((short)23);
+        DNSQuestion question = new DNSQuestion("cs.ubc.ca", RecordType.SOA, RecordClass.IN);
+        ResourceRecord rr = new ResourceRecord(question, 3600, "ns1.cs.ubc.ca hostmaster.cs.ubc.ca 4294967295 7200 900 604800 300");
+        request.addResourceRecord(rr, "nameserver");
+        byte[] content = request.getUsed();
+
+        DNSMessage reply = new DNSMessage(content, content.length);
+        assertEquals(1, reply.getNSCount());
+        ResourceRecord replyRR = reply.getRR();
+        assertEquals(rr, replyRR);
+        assertEquals(rr.getTextResult(), replyRR.getTextResult());
+    }
+    @Test
+    public void testPooledMessageRoundTrip() throws Exception {
+        DNSMessage request = DNSMessage.allocate(4321);
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.CNAME, RecordClass.IN);
+        request.addQuestion(question);
+        request.addResourceRecord(new ResourceRecord(question, 60, "remote.cs.ubc.ca"), "answer");
+
+        try (java.nio.channels.DatagramChannel sender = java.nio.channels.DatagramChannel.open();
+             java.nio.channels.DatagramChannel receiver = java.nio.channels.DatagramChannel.open()) {
+            receiver.bind(new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), 0));
+            byte[] content = request.getUsed();
+            // The CNAME target and the question share their suffix through a compression pointer
+            assertEquals(12 + 19 + 12 + 9, content.length);
+            assertEquals(content.length, request.send(sender, receiver.getLocalAddress()));
+            request.release();
+
+            java.nio.ByteBuffer packet = DNSBufferPool.getInstance().acquire();
+            receiver.receive(packet);
+            packet.flip();
+            DNSMessage reply = DNSMessage.wrap(packet, true);
+            assertEquals(4321, reply.getID());
+            assertEquals(question, reply.getQuestion());
+            assertEquals("remote.cs.ubc.ca", reply.getRR().getTextResult());
+            reply.release();
+        }
+    }
+    @Test
+    public void testCompressionLoop() {
+        byte[] content = new byte[16];
+        content[5] = 1;
+        content[12] = (byte) 0xc0;
+        content[13] = 14;
+        content[14] = (byte) 0xc0;
+        content[15] = 12;
+        DNSMessage message = new DNSMessage(content, content.length);
+        assertThrows(IllegalArgumentException.class, message::getQuestion);
+    }
+
+    @Test
+    public void testOPTRecord() {
+        DNSMessage query = new DNSMessage((short) 1);
+        query.addQuestion(new DNSQuestion("www.example.com", RecordType.A, RecordClass.IN));
+        assertEquals(DNSMessage.MAX_DNS_MESSAGE_LENGTH, query.getUDPPayloadSize());
+        query.addOPT(DNSMessage.DEFAULT_EDNS_PAYLOAD_SIZE);
+        assertEquals(1, query.getARCount());
+
+        byte[] data = query.getUsed();
+        assertEquals(33 + 11, data.length);
+        DNSMessage received = new DNSMessage(data, data.length);
+        assertEquals(DNSMessage.DEFAULT_EDNS_PAYLOAD_SIZE, received.getUDPPayloadSize());
+        assertEquals(new DNSQuestion("www.example.com", RecordType.A, RecordClass.IN),
+                received.getQuestion());
+        ResourceRecord opt = received.getRR();
+        assertEquals(RecordType.OPT, opt.getRecordType());
+        assertEquals("", opt.getHostName());
+        assertEquals(data.length, received.getUsed().length);
+    }
+
+    @Test
+    public void testLazyRecordIndex() throws Exception {
+        DNSMessage response = new DNSMessage((short) 7);
+        response.setQR(true);
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSQuestion zone = new DNSQuestion("cs.ubc.ca", RecordType.NS, RecordClass.IN);
+        DNSQuestion unknown = new DNSQuestion("www.cs.ubc.ca", RecordType.OTHER, RecordClass.IN);
+        DNSQuestion glue = new DNSQuestion("ns1.cs.ubc.ca", RecordType.AAAA, RecordClass.IN);
+        ResourceRecord[] records = {
+                new ResourceRecord(question, 300, InetAddress.getByName("142.103.6.6")),
+                new ResourceRecord(zone, 3600, "ns1.cs.ubc.ca"),
+                new ResourceRecord(unknown, 300, "0a1b2c"),
+                new ResourceRecord(glue, 3600, InetAddress.getByName("2001:db8::53"))};
+        response.addQuestion(question);
+        response.addResourceRecord(records[0], "answer");
+        response.addResourceRecord(records[1], "nameserver");
+        response.addResourceRecord(records[2], "nameserver");
+        response.addResourceRecord(records[3], "additional");
+        response.addOPT(DNSMessage.DEFAULT_EDNS_PAYLOAD_SIZE);
+        byte[] data = response.getUsed();
+
+        DNSMessage reply = new DNSMessage(data, data.length);
+        assertEquals(5, reply.getRecordCount());
+        assertEquals(RecordType.OPT.getCode(), reply.getRecordTypeCode(4));
+        assertEquals(DNSMessage.DEFAULT_EDNS_PAYLOAD_SIZE, reply.getRecordClassCode(4));
+        assertSame(DNSName.of("ns1.cs.ubc.ca"), reply.getRecordName(3));
+        // Owner names are compared in the packet, following compression pointers
+        assertTrue(reply.isRecordName(3, DNSName.of("NS1.cs.UBC.ca")));
+        assertFalse(reply.isRecordName(3, DNSName.of("cs.ubc.ca")));
+        assertFalse(reply.isRecordName(3, DNSName.of("ns1.cs.ubc.ca.example")));
+        assertFalse(reply.isRecordName(1, DNSName.of("ns1.cs.ubc.ca")));
+        assertTrue(reply.isRecordName(4, DNSName.ROOT));
+        // Records can be decoded in any order, without moving the position of the sequential decoding
+        for (int i = records.length - 1; i >= 0; i--)
+            assertEquals(records[i], reply.getRR(i));
+        assertEquals(question, reply.getQuestion());
+        for (ResourceRecord record : records)
+            assertEquals(record, reply.getRR());
+        assertEquals(RecordType.OPT, reply.getRR().getRecordType());
+    }
+
+    @Test
+    public void testUnknownDataKeptAsIs() {
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.OTHER, RecordClass.IN);
+        byte[] data = {0x00, 0x7f, (byte) 0x80, (byte) 0xff};
+        assertEquals("007f80ff", DNSMessage.byteArrayToHexString(data));
+        ResourceRecord raw = new ResourceRecord(question, 300, data);
+        ResourceRecord text = new ResourceRecord(question, 300, "007f80ff");
+        assertEquals(4, text.getDataLength());
+        assertEquals(raw, text);
+        assertEquals(raw.hashCode(), text.hashCode());
+        assertEquals("007f80ff", raw.getTextResult());
+        assertEquals(-1, new ResourceRecord(question, 300, "not hex").getDataLength());
+
+        DNSMessage message = new DNSMessage((short) 9);
+        message.addResourceRecord(raw, "answer");
+        message.addResourceRecord(new ResourceRecord(question, 300, "0A0B"), "answer");
+        byte[] encoded = message.getUsed();
+        DNSMessage reply = new DNSMessage(encoded, encoded.length);
+        ResourceRecord decoded = reply.getRR();
+        assertEquals(raw, decoded);
+        assertEquals(4, decoded.getDataLength());
+        assertEquals("0a0b", reply.getRR().getTextResult());
+    }
 }
@@ -0,0 +1,139 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class DNSMetricsTest {
+
+    private DNSLookupService service;
+    private Random random;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        this.service = new DNSLookupService("127.0.0.1", new DNSLookupCUI());
+        this.random = new Random();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        service.close();
+    }
+
+    private DNSQuestion uniqueQuestion(String zone) {
+        return new DNSQuestion("host" + random.nextInt(1000000) + "." + zone, RecordType.A, RecordClass.IN);
+    }
+
+    @Test
+    public void testCacheHitsByType() throws Exception {
+        DNSCache cache = new DNSCache();
+        DNSMetrics metrics = new DNSMetrics(service, cache);
+        DNSQuestion question = new DNSQuestion("www.metrics.test", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.10.0.1")));
+        for (int i = 0; i < 3; i++)
+            cache.getCachedResults(question, true);
+        cache.getCachedResults(new DNSQuestion("www.metrics.test", RecordType.AAAA, RecordClass.IN), true);
+
+        Assertions.assertEquals(3, metrics.getCacheHitCount());
+        Assertions.assertEquals(1, metrics.getCacheMissCount());
+        Assertions.assertEquals(0.75, metrics.getCacheHitRatio(), 1e-9);
+        Map<String, Double> ratios = metrics.getCacheHitRatioByType();
+        Assertions.assertEquals(2, ratios.size());
+        Assertions.assertEquals(1.0, ratios.get("A"), 1e-9);
+        Assertions.assertEquals(0.0, ratios.get("AAAA"), 1e-9);
+        Assertions.assertEquals(Long.valueOf(3), metrics.getCacheLookupCountByType().get("A"));
+        Assertions.assertTrue(metrics.dump().contains("AAAA"));
+    }
+
+    @Test
+    public void testResolutionsRecorded() throws Exception {
+        SimulatedNameServer parent = new SimulatedNameServer("127.0.0.13", 0, 0,
+                SimulatedNameServer.referral("metrics.test", "127.0.0.14"));
+        SimulatedNameServer child = new SimulatedNameServer("127.0.0.14", parent.getPort(), 2,
+                SimulatedNameServer.answer("10.10.1.1"));
+        try {
+            service.setNameServer("127.0.0.13");
+            service.setNameServerPort(parent.getPort());
+            DNSMetrics metrics = service.getMetrics();
+
+            Assertions.assertEquals(1, service.getResults(uniqueQuestion("metrics.test")).size());
+            Assertions.assertEquals(1, service.getResultsAsync(uniqueQuestion("metrics.test"))
+                    .get(5, TimeUnit.SECONDS).size());
+            // The second resolution starts at the cached zone cut, without a referral
+            Assertions.assertEquals(3, metrics.getQueryCount());
+            Assertions.assertEquals(0, metrics.getRetryCount());
+            Assertions.assertEquals(0, metrics.getTimeoutCount());
+            Assertions.assertEquals(0, metrics.getInFlightQueryCount());
+            Assertions.assertEquals(1, metrics.getZoneCutCount());
+            Assertions.assertEquals(1, metrics.getMaxReferralDepth());
+            Assertions.assertEquals(0.5, metrics.getMeanReferralDepth(), 1e-9);
+            Assertions.assertEquals(1, metrics.getRttHistogram(parent.getAddress()).getCount());
+            Assertions.assertEquals(2, metrics.getRttHistogram(child.getAddress()).getCount());
+            Assertions.assertTrue(metrics.getRttHistogram(child.getAddress()).getMax() >= 2_000,
+                    "Delay of the nameserver missing from its RTT");
+            Assertions.assertEquals(2, metrics.getMedianRttMillisByServer().size());
+        } finally {
+            parent.close();
+            child.close();
+        }
+    }
+
+    @Test
+    public void testRetriesAndTimeouts() throws Exception {
+        SimulatedNameServer.Responder answer = SimulatedNameServer.answer("10.10.2.1");
+        SimulatedNameServer lossy = new SimulatedNameServer("127.0.0.13", 0, 0, answer);
+        SimulatedNameServer healthy = new SimulatedNameServer("127.0.0.14", lossy.getPort(), 0, answer);
+        try {
+            lossy.setDropping(true);
+            service.setNameServerPort(lossy.getPort());
+            DNSInfraCache infra = DNSInfraCache.getInstance();
+            infra.recordRtt(lossy.getAddress(), 1_000);
+            infra.recordRtt(healthy.getAddress(), 5_000);
+            DNSMetrics metrics = service.getMetrics();
+
+            Assertions.assertNotNull(service.individualQueryProcess(uniqueQuestion("lossy.test"),
+                    Arrays.asList(healthy.getAddress(), lossy.getAddress())));
+            Assertions.assertEquals(2, metrics.getQueryCount());
+            Assertions.assertEquals(1, metrics.getRetryCount());
+            Assertions.assertEquals(1, metrics.getTimeoutCount());
+            Assertions.assertNull(metrics.getRttHistogram(lossy.getAddress()));
+            Assertions.assertEquals(1, metrics.getRttHistogram(healthy.getAddress()).getCount());
+            Assertions.assertEquals(0, metrics.getInFlightQueryCount());
+        } finally {
+            lossy.close();
+            healthy.close();
+        }
+    }
+
+    @Test
+    public void testExportedOverJmx() throws Exception {
+        DNSMetrics metrics = service.getMetrics();
+        metrics.recordQuery(false);
+        metrics.recordRtt(InetAddress.getByName("192.0.2.1"), 12_000);
+        ObjectName name = metrics.register("test" + random.nextInt(1000000));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Assertions.assertTrue(server.isRegistered(name));
+
+        Assertions.assertEquals(1L, server.getAttribute(name, "QueryCount"));
+        TabularData rtts = (TabularData) server.getAttribute(name, "MedianRttMillisByServer");
+        CompositeData row = rtts.get(new Object[]{"192.0.2.1"});
+        Assertions.assertEquals(12.0, (Double) row.get("value"), 12.0 / 8);
+        String dump = (String) server.invoke(name, "dump", new Object[0], new String[0]);
+        Assertions.assertTrue(dump.contains("192.0.2.1"), dump);
+
+        service.close();
+        Assertions.assertFalse(server.isRegistered(name), "Metrics still exported after close");
+        Assertions.assertEquals(Collections.emptyMap(), new DNSMetrics(service, new DNSCache())
+                .getCacheHitRatioByType());
+    }
+}
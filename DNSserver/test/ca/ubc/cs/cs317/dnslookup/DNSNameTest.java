@@ -0,0 +1,69 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+
+public class DNSNameTest {
+
+    @Test
+    public void testInterning() {
+        DNSName name = DNSName.of("www.cs.ubc.ca");
+        Assertions.assertSame(name, DNSName.of(new String("www.cs.ubc.ca")));
+        Assertions.assertSame(DNSName.of("cs.ubc.ca"), name.getParent());
+        Assertions.assertSame(DNSName.ROOT, DNSName.of(""));
+        Assertions.assertEquals(3, name.getLabelLength());
+
+        int labels = 0;
+        for (DNSName n = name; !n.isRoot(); n = n.getParent())
+            labels++;
+        Assertions.assertEquals(4, labels);
+    }
+
+    @Test
+    public void testCaseInsensitiveHash() {
+        DNSName lower = DNSName.of("mail.cs.ubc.ca");
+        DNSName upper = DNSName.of("MAIL.CS.UBC.CA");
+        Assertions.assertNotSame(lower, upper);
+        Assertions.assertEquals(lower.hashCode(), upper.hashCode());
+        Assertions.assertTrue(lower.equalsIgnoreCase(upper));
+        Assertions.assertFalse(lower.equalsIgnoreCase(DNSName.of("mail.ece.ubc.ca")));
+    }
+
+    @Test
+    public void testInZone() {
+        DNSName name = DNSName.of("www.cs.ubc.ca");
+        Assertions.assertTrue(name.isInZone(name));
+        Assertions.assertTrue(name.isInZone(DNSName.of("UBC.ca")));
+        Assertions.assertTrue(name.isInZone(DNSName.ROOT));
+        Assertions.assertFalse(name.isInZone(DNSName.of("ece.ubc.ca")));
+        Assertions.assertFalse(name.isInZone(DNSName.of("bc.ca")));
+        Assertions.assertFalse(DNSName.of("ubc.ca").isInZone(name));
+    }
+
+    @Test
+    public void testSharedByQuestionsAndMessages() {
+        DNSQuestion question = new DNSQuestion("shared.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSMessage message = new DNSMessage((short) 1);
+        message.addQuestion(question);
+        byte[] content = message.getUsed();
+
+        DNSQuestion decoded = new DNSMessage(content, content.length).getQuestion();
+        Assertions.assertEquals(question, decoded);
+        Assertions.assertSame(question.getHostName(), decoded.getHostName());
+    }
+
+    @Test
+    public void testSerializationPreservesIdentity() throws Exception {
+        DNSQuestion question = new DNSQuestion("serialized.cs.ubc.ca", RecordType.NS, RecordClass.IN);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(question);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            DNSQuestion copy = (DNSQuestion) in.readObject();
+            Assertions.assertEquals(question, copy);
+            Assertions.assertSame(question.getName(), copy.getName());
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DNSQueryEngineTest {
+
+    private DNSQueryEngine engine;
+    private DatagramSocket responder;
+    private InetSocketAddress responderAddress;
+
+    @BeforeEach
+    public void start() throws IOException {
+        this.engine = new DNSQueryEngine(100, 3);
+        this.responder = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        this.responder.setSoTimeout(2000);
+        this.responderAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), responder.getLocalPort());
+    }
+
+    @AfterEach
+    public void stop() {
+        engine.close();
+        responder.close();
+    }
+
+    private static DNSMessage query(int id, String hostName) {
+        DNSMessage query = new DNSMessage((short) id);
+        query.addQuestion(new DNSQuestion(hostName, RecordType.A, RecordClass.IN));
+        return query;
+    }
+
+    private static DatagramPacket reply(DatagramPacket request) {
+        byte[] data = Arrays.copyOf(request.getData(), request.getLength());
+        data[2] |= (byte) 0x80;
+        return new DatagramPacket(data, data.length, request.getSocketAddress());
+    }
+
+    /**
+     * Starts a thread that receives a number of queries and answers them after all of them are received, in reverse
+     * order, ignoring the first transmission of every query if requested.
+     */
+    private Thread respond(int count, boolean dropFirstTransmission) {
+        Thread thread = new Thread(() -> {
+            Deque<DatagramPacket> received = new ArrayDeque<>();
+            Set<Integer> seen = new HashSet<>();
+            try {
+                while (received.size() < count) {
+                    DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                    responder.receive(packet);
+                    DNSMessage message = new DNSMessage(packet.getData(), packet.getLength());
+                    if (dropFirstTransmission && seen.add(message.getID())) continue;
+                    received.push(reply(packet));
+                }
+                while (!received.isEmpty())
+                    responder.send(received.pop());
+            } catch (IOException e) {
+                // Test fails on the client side
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Reads a query sent over TCP, framed by its length.
+     */
+    private static byte[] readTcp(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readUnsignedShort()];
+        in.readFully(data);
+        return data;
+    }
+
+    /**
+     * Answers a query sent over TCP with a copy of the query, flagged as a response.
+     */
+    private static void replyTcp(DataOutputStream out, byte[] query) throws IOException {
+        byte[] data = query.clone();
+        data[2] |= (byte) 0x80;
+        out.writeShort(data.length);
+        out.write(data);
+        out.flush();
+    }
+
+    @Test
+    public void testManyQueriesInFlight() throws Exception {
+        int count = 200;
+        Thread thread = respond(count, false);
+        List<CompletableFuture<DNSMessage>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            futures.add(engine.query(query(7, "host" + i + ".example.com"), responderAddress, () -> { }));
+
+        for (int i = 0; i < count; i++) {
+            DNSMessage response = futures.get(i).get(5, TimeUnit.SECONDS);
+            Assertions.assertTrue(response.getQR());
+            Assertions.assertEquals("host" + i + ".example.com", response.getQuestion().getHostName());
+        }
+        thread.join();
+        Assertions.assertEquals(0, engine.getPendingCount());
+    }
+
+    @Test
+    public void testRetransmission() throws Exception {
+        AtomicInteger sends = new AtomicInteger();
+        Thread thread = respond(1, true);
+        DNSMessage response = engine.query(query(42, "lossy.example.com"), responderAddress, sends::incrementAndGet)
+                .get(5, TimeUnit.SECONDS);
+        Assertions.assertEquals(42, response.getID());
+        Assertions.assertEquals(2, sends.get());
+        thread.join();
+    }
+
+    @Test
+    public void testTimeout() {
+        AtomicInteger sends = new AtomicInteger();
+        CompletableFuture<DNSMessage> future = engine.query(query(1, "silent.example.com"), responderAddress,
+                sends::incrementAndGet);
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof SocketTimeoutException);
+        Assertions.assertEquals(3, sends.get());
+    }
+
+    @Test
+    public void testFailedSendOnlyFailsItsQuery() throws Exception {
+        InetSocketAddress broadcast = new InetSocketAddress(InetAddress.getByName("255.255.255.255"), 53);
+        CompletableFuture<DNSMessage> failed = engine.query(query(5, "broadcast.example.com"), broadcast, () -> { });
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+        Assertions.assertFalse(e.getCause() instanceof ClosedChannelException, "Engine closed by a failed send");
+        Assertions.assertTrue(e.getCause() instanceof IOException);
+        Assertions.assertFalse(e.getCause() instanceof SocketTimeoutException, "Query was sent");
+        Assertions.assertTrue(engine.isOpen());
+
+        Thread thread = respond(1, false);
+        DNSMessage response = engine.query(query(6, "after.example.com"), responderAddress, () -> { })
+                .get(5, TimeUnit.SECONDS);
+        Assertions.assertEquals(6, response.getID());
+        thread.join();
+    }
+
+    @Test
+    public void testDelay() throws Exception {
+        long start = System.nanoTime();
+        CompletableFuture<Void> later = engine.delay(200);
+        CompletableFuture<Void> sooner = engine.delay(50);
+        sooner.get(5, TimeUnit.SECONDS);
+        Assertions.assertFalse(later.isDone());
+        Assertions.assertTrue(System.nanoTime() - start >= 50_000_000L);
+        later.get(5, TimeUnit.SECONDS);
+        Assertions.assertTrue(System.nanoTime() - start >= 200_000_000L);
+
+        CompletableFuture<Void> pending = engine.delay(10_000);
+        engine.close();
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> pending.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof ClosedChannelException);
+    }
+
+    @Test
+    public void testTcpPipelining() throws Exception {
+        Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(2000);
+            Thread thread = new Thread(() -> {
+                try (Socket connection = server.accept()) {
+                    DataInputStream in = new DataInputStream(connection.getInputStream());
+                    DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+                    Deque<byte[]> received = new ArrayDeque<>();
+                    for (int i = 0; i < 3; i++) {
+                        byte[] query = readTcp(in);
+                        ids.add(new DNSMessage(query, query.length).getID());
+                        received.push(query);
+                    }
+                    // Answered out of order
+                    while (!received.isEmpty())
+                        replyTcp(out, received.pop());
+                    in.read();
+                } catch (IOException e) {
+                    // Test fails on the client side
+                }
+            });
+            thread.start();
+            InetSocketAddress address = new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+            List<CompletableFuture<DNSMessage>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++)
+                futures.add(engine.queryTcp(query(9, "tcp" + i + ".example.com"), address, 2000));
+
+            for (int i = 0; i < 3; i++) {
+                DNSMessage response = futures.get(i).get(5, TimeUnit.SECONDS);
+                Assertions.assertEquals(9, response.getID());
+                Assertions.assertEquals("tcp" + i + ".example.com", response.getQuestion().getHostName());
+            }
+            Assertions.assertEquals(3, ids.size(), "Pipelined queries sent with the same ID");
+            engine.close();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testTcpIdleConnectionClosed() throws Exception {
+        engine.setTcpIdleTimeout(100);
+        AtomicInteger closedAfter = new AtomicInteger(-1);
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(2000);
+            Thread thread = new Thread(() -> {
+                try (Socket connection = server.accept()) {
+                    connection.setSoTimeout(2000);
+                    DataInputStream in = new DataInputStream(connection.getInputStream());
+                    DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+                    replyTcp(out, readTcp(in));
+                    long start = System.nanoTime();
+                    if (in.read() < 0)
+                        closedAfter.set((int) ((System.nanoTime() - start) / 1_000_000));
+                } catch (IOException e) {
+                    // Not closed in time
+                }
+            });
+            thread.start();
+            InetSocketAddress address = new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+            engine.queryTcp(query(3, "idle.example.com"), address, 2000).get(5, TimeUnit.SECONDS);
+            thread.join();
+            Assertions.assertTrue(closedAfter.get() >= 0, "Idle connection not closed");
+        }
+    }
+
+    @Test
+    public void testTcpQueriesResentWhenServerCloses() throws Exception {
+        AtomicInteger connections = new AtomicInteger();
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(2000);
+            Thread thread = new Thread(() -> {
+                try {
+                    // The first connection is closed with one query unanswered, which must be sent again
+                    try (Socket connection = server.accept()) {
+                        connections.incrementAndGet();
+                        DataInputStream in = new DataInputStream(connection.getInputStream());
+                        DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+                        byte[] first = readTcp(in);
+                        readTcp(in);
+                        replyTcp(out, first);
+                    }
+                    try (Socket connection = server.accept()) {
+                        connections.incrementAndGet();
+                        DataInputStream in = new DataInputStream(connection.getInputStream());
+                        replyTcp(new DataOutputStream(connection.getOutputStream()), readTcp(in));
+                        in.read();
+                    }
+                } catch (IOException e) {
+                    // Test fails on the client side
+                }
+            });
+            thread.start();
+            InetSocketAddress address = new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+            CompletableFuture<DNSMessage> first = engine.queryTcp(query(1, "first.example.com"), address, 2000);
+            CompletableFuture<DNSMessage> second = engine.queryTcp(query(2, "second.example.com"), address, 2000);
+            Assertions.assertEquals(1, first.get(5, TimeUnit.SECONDS).getID());
+            Assertions.assertEquals(2, second.get(5, TimeUnit.SECONDS).getID());
+            Assertions.assertEquals(2, connections.get());
+            engine.close();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testTcpTimeout() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            InetSocketAddress address = new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+            CompletableFuture<DNSMessage> future = engine.queryTcp(query(4, "slow.example.com"), address, 100);
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                    () -> future.get(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+public class LogHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        for (long value = 0; value < 8; value++)
+            Assertions.assertEquals(value, LogHistogram.lowestValueOf(LogHistogram.bucketOf(value)));
+        long[] values = {8, 15, 16, 17, 100, 1_000, 123_456, 5_000_000, 1L << 39};
+        for (long value : values) {
+            int bucket = LogHistogram.bucketOf(value);
+            Assertions.assertTrue(LogHistogram.lowestValueOf(bucket) <= value, "Value below its bucket: " + value);
+            Assertions.assertTrue(LogHistogram.highestValueOf(bucket) >= value, "Value above its bucket: " + value);
+            Assertions.assertTrue(LogHistogram.highestValueOf(bucket) - LogHistogram.lowestValueOf(bucket)
+                    <= value / 8, "Bucket too wide for " + value);
+            Assertions.assertEquals(bucket + 1, LogHistogram.bucketOf(LogHistogram.highestValueOf(bucket) + 1));
+        }
+        Assertions.assertEquals(LogHistogram.bucketOf(1L << 40), LogHistogram.bucketOf(Long.MAX_VALUE));
+        Assertions.assertEquals(0, LogHistogram.bucketOf(-5));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LogHistogram histogram = new LogHistogram();
+        Assertions.assertEquals(0, histogram.getValueAtPercentile(50));
+        for (int value = 1; value <= 1000; value++)
+            histogram.record(value * 1000L);
+        Assertions.assertEquals(1000, histogram.getCount());
+        Assertions.assertEquals(1_000_000, histogram.getMax());
+        Assertions.assertEquals(500_000, histogram.getValueAtPercentile(50), 500_000 / 8.0);
+        Assertions.assertEquals(990_000, histogram.getValueAtPercentile(99), 990_000 / 8.0);
+        Assertions.assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+        Assertions.assertEquals(500_500, histogram.getMean(), 500_500 / 8.0);
+    }
+
+    @Test
+    public void testSmallValuesExact() {
+        LogHistogram histogram = new LogHistogram();
+        for (int i = 0; i < 90; i++)
+            histogram.record(1);
+        for (int i = 0; i < 10; i++)
+            histogram.record(3);
+        Assertions.assertEquals(1, histogram.getValueAtPercentile(50));
+        Assertions.assertEquals(1, histogram.getValueAtPercentile(90));
+        Assertions.assertEquals(3, histogram.getValueAtPercentile(99));
+        Assertions.assertEquals(1.2, histogram.getMean(), 1e-9);
+    }
+}
@@ -0,0 +1,81 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+public class RecordTableTest {
+
+    private static final DNSQuestion QUESTION = new DNSQuestion("table.example.com", RecordType.A, RecordClass.IN);
+
+    private static ResourceRecord record(int i) {
+        return new ResourceRecord(QUESTION, 3600, "10.0." + (i >> 8 & 0xff) + "." + (i & 0xff));
+    }
+
+    private static Set<ResourceRecord> contents(RecordTable table) {
+        Set<ResourceRecord> records = new HashSet<>();
+        for (ResourceRecord record : table)
+            Assertions.assertTrue(records.add(record), "Record visited twice: " + record);
+        return records;
+    }
+
+    @Test
+    public void testAddReturnsExisting() {
+        RecordTable table = new RecordTable();
+        Assertions.assertTrue(table.isEmpty());
+        Assertions.assertNull(table.get(record(1)));
+        ResourceRecord first = record(1);
+        Assertions.assertNull(table.add(first));
+        Assertions.assertSame(first, table.add(record(1)));
+        Assertions.assertSame(first, table.get(record(1)));
+        Assertions.assertNull(table.get(record(2)));
+        Assertions.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testGrowAndRemove() {
+        RecordTable table = new RecordTable();
+        Set<ResourceRecord> expected = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertNull(table.add(record(i)));
+            expected.add(record(i));
+        }
+        Assertions.assertEquals(1000, table.size());
+        Assertions.assertEquals(expected, contents(table));
+
+        Iterator<ResourceRecord> it = table.iterator();
+        while (it.hasNext())
+            if (it.next().getTextResult().endsWith("1")) it.remove();
+        expected.removeIf(r -> r.getTextResult().endsWith("1"));
+        Assertions.assertEquals(expected.size(), table.size());
+        Assertions.assertEquals(expected, contents(table));
+        for (int i = 0; i < 1000; i++)
+            Assertions.assertEquals(expected.contains(record(i)), table.get(record(i)) != null);
+
+        // Slots of removed records are reused
+        for (int round = 0; round < 100; round++) {
+            Assertions.assertNull(table.add(record(5000 + round)));
+            Iterator<ResourceRecord> again = table.iterator();
+            while (again.hasNext())
+                if (again.next().equals(record(5000 + round))) again.remove();
+        }
+        Assertions.assertEquals(expected, contents(table));
+    }
+
+    @Test
+    public void testRemoveWhileGrowing() {
+        RecordTable table = new RecordTable();
+        table.add(record(0));
+        Iterator<ResourceRecord> it = table.iterator();
+        ResourceRecord first = it.next();
+        for (int i = 1; i < 10; i++)
+            table.add(record(i));
+        it.remove();
+        Assertions.assertEquals(9, table.size());
+        Assertions.assertNull(table.get(first));
+        Assertions.assertNull(table.add(first));
+        Assertions.assertEquals(10, table.size());
+    }
+}
@@ -0,0 +1,212 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A nameserver answering queries over UDP on a loopback address, after a fixed delay, used to simulate nameservers
+ * with different latencies. Queries are answered one at a time, in the order they are received. Responses larger than
+ * the UDP payload size advertised by a query are truncated; the full responses can be served over TCP, on connections
+ * that stay open until the client closes them.
+ */
+class SimulatedNameServer implements AutoCloseable {
+
+    /**
+     * Fills the response to a query. The header of the response (ID and QR flag) and its question are already set.
+     */
+    interface Responder {
+        void respond(DNSQuestion question, DNSMessage response);
+    }
+
+    /**
+     * Returns a responder answering every query with a referral to the nameservers of a zone, named ns0, ns1... in
+     * the zone, with glue records.
+     *
+     * @param zone      The name of the zone.
+     * @param addresses The addresses of the nameservers of the zone.
+     */
+    static Responder referral(String zone, String... addresses) {
+        DNSQuestion zoneQuestion = new DNSQuestion(zone, RecordType.NS, RecordClass.IN);
+        return (question, response) -> {
+            for (int i = 0; i < addresses.length; i++)
+                response.addResourceRecord(new ResourceRecord(zoneQuestion, 3600, "ns" + i + "." + zone), "nameserver");
+            for (int i = 0; i < addresses.length; i++) {
+                DNSQuestion glue = new DNSQuestion("ns" + i + "." + zone, RecordType.A, RecordClass.IN);
+                response.addResourceRecord(new ResourceRecord(glue, 3600, address(addresses[i])), "additional");
+            }
+        };
+    }
+
+    /**
+     * Returns a responder answering every query authoritatively with an A record.
+     *
+     * @param address The address in the answer.
+     */
+    static Responder answer(String address) {
+        return (question, response) -> {
+            response.setAA(true);
+            response.addResourceRecord(new ResourceRecord(question, 60, address(address)), "answer");
+        };
+    }
+
+    private static InetAddress address(String address) {
+        try {
+            return InetAddress.getByName(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private final DatagramSocket socket;
+    private final Thread thread;
+    private final Responder responder;
+    private final AtomicInteger queryCount = new AtomicInteger();
+    private final AtomicInteger tcpQueryCount = new AtomicInteger();
+    private final AtomicInteger tcpConnectionCount = new AtomicInteger();
+    private ServerSocket tcpSocket;
+    private volatile int delayMillis;
+    private volatile boolean dropping;
+
+    /**
+     * Starts a nameserver.
+     *
+     * @param address     Loopback address the server listens on, e.g., 127.0.0.2.
+     * @param port        Port the server listens on, or 0 for any free port.
+     * @param delayMillis Time waited before each response is sent.
+     * @param responder   Fills the responses.
+     */
+    SimulatedNameServer(String address, int port, int delayMillis, Responder responder) throws IOException {
+        this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName(address), port));
+        this.delayMillis = delayMillis;
+        this.responder = responder;
+        this.thread = new Thread(this::serve, "simulated-nameserver-" + address);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts serving queries over TCP too, on the same address and port.
+     */
+    void enableTcp() throws IOException {
+        tcpSocket = new ServerSocket(getPort(), 50, getAddress());
+        Thread tcpThread = new Thread(this::serveTcp, "simulated-nameserver-tcp-" + getAddress().getHostAddress());
+        tcpThread.setDaemon(true);
+        tcpThread.start();
+    }
+
+    private byte[] respond(DNSMessage query) {
+        DNSQuestion question = query.getQuestion();
+        DNSMessage response = new DNSMessage((short) query.getID(), 0xffff);
+        response.setQR(true);
+        response.addQuestion(question);
+        responder.respond(question, response);
+        return response.getUsed();
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[DNSMessage.MAX_UDP_PAYLOAD_SIZE];
+        try {
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                queryCount.incrementAndGet();
+                if (dropping) continue;
+                DNSMessage query = new DNSMessage(buffer, packet.getLength());
+                byte[] data = respond(query);
+                if (data.length > query.getUDPPayloadSize()) {
+                    DNSMessage truncated = new DNSMessage((short) query.getID());
+                    truncated.setQR(true);
+                    truncated.setTC(true);
+                    truncated.addQuestion(new DNSMessage(buffer, packet.getLength()).getQuestion());
+                    data = truncated.getUsed();
+                }
+                if (delayMillis > 0) Thread.sleep(delayMillis);
+                socket.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+            }
+        } catch (IOException | InterruptedException e) {
+            // Closed
+        }
+    }
+
+    private void serveTcp() {
+        try {
+            while (true) {
+                Socket connection = tcpSocket.accept();
+                tcpConnectionCount.incrementAndGet();
+                Thread thread = new Thread(() -> serveTcp(connection), "simulated-nameserver-tcp-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Answers the queries received on a connection, in order, until the client closes it.
+     */
+    private void serveTcp(Socket connection) {
+        try (Socket socket = connection) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            while (true) {
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                tcpQueryCount.incrementAndGet();
+                byte[] data = respond(new DNSMessage(query, query.length));
+                out.writeShort(data.length);
+                out.write(data);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    InetAddress getAddress() {
+        return socket.getLocalAddress();
+    }
+
+    int getQueryCount() {
+        return queryCount.get();
+    }
+
+    int getTcpQueryCount() {
+        return tcpQueryCount.get();
+    }
+
+    int getTcpConnectionCount() {
+        return tcpConnectionCount.get();
+    }
+
+    void setDelay(int delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Makes the server ignore every query it receives, or answer them again.
+     */
+    void setDropping(boolean dropping) {
+        this.dropping = dropping;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        if (tcpSocket != null) {
+            try {
+                tcpSocket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,84 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class TimerWheelTest {
+
+    private static final long START = -TimeUnit.DAYS.toNanos(3);
+
+    private TimerWheel<TimerWheel.Node> wheel;
+    private List<TimerWheel.Node> expired;
+
+    @BeforeEach
+    public void createWheel() {
+        this.wheel = new TimerWheel<>(START);
+        this.expired = new ArrayList<>();
+    }
+
+    private TimerWheel.Node schedule(long delay, TimeUnit unit) {
+        TimerWheel.Node node = new TimerWheel.Node();
+        node.deadline = START + unit.toNanos(delay);
+        wheel.schedule(node);
+        return node;
+    }
+
+    private void advanceTo(long nanos) {
+        wheel.advance(nanos, expired::add);
+    }
+
+    @Test
+    public void testExpiresAtEveryLevel() {
+        long[] delays = {TimeUnit.MILLISECONDS.toNanos(200), TimeUnit.SECONDS.toNanos(5),
+                TimeUnit.MINUTES.toNanos(10), TimeUnit.HOURS.toNanos(20), TimeUnit.DAYS.toNanos(30),
+                TimeUnit.DAYS.toNanos(400)};
+        List<TimerWheel.Node> nodes = new ArrayList<>();
+        for (long delay : delays)
+            nodes.add(schedule(delay, TimeUnit.NANOSECONDS));
+
+        for (int i = 0; i < delays.length; i++) {
+            advanceTo(START + delays[i] - 1);
+            Assertions.assertEquals(nodes.subList(0, i), expired, "Node expired before its deadline");
+            advanceTo(START + delays[i] + TimeUnit.SECONDS.toNanos(2));
+            Assertions.assertEquals(nodes.subList(0, i + 1), expired, "Node not expired after its deadline");
+        }
+    }
+
+    @Test
+    public void testGradualAdvance() {
+        TimerWheel.Node node = schedule(90, TimeUnit.MINUTES);
+        for (long t = START; t < START + TimeUnit.MINUTES.toNanos(89); t += TimeUnit.MILLISECONDS.toNanos(700))
+            advanceTo(t);
+        Assertions.assertTrue(expired.isEmpty());
+        Assertions.assertTrue(node.isScheduled());
+        for (long t = START + TimeUnit.MINUTES.toNanos(89); t < START + TimeUnit.MINUTES.toNanos(92); t += TimeUnit.MILLISECONDS.toNanos(700))
+            advanceTo(t);
+        Assertions.assertEquals(Collections.singletonList(node), expired);
+        Assertions.assertFalse(node.isScheduled());
+    }
+
+    @Test
+    public void testDescheduleAndReschedule() {
+        TimerWheel.Node removed = schedule(3, TimeUnit.SECONDS);
+        TimerWheel.Node moved = schedule(3, TimeUnit.SECONDS);
+        wheel.deschedule(removed);
+        moved.deadline = START + TimeUnit.MINUTES.toNanos(5);
+        wheel.schedule(moved);
+
+        advanceTo(START + TimeUnit.MINUTES.toNanos(1));
+        Assertions.assertTrue(expired.isEmpty());
+        advanceTo(START + TimeUnit.MINUTES.toNanos(6));
+        Assertions.assertEquals(Collections.singletonList(moved), expired);
+    }
+
+    @Test
+    public void testClear() {
+        TimerWheel.Node node = schedule(1, TimeUnit.HOURS);
+        wheel.clear();
+        Assertions.assertFalse(node.isScheduled());
+        advanceTo(START + TimeUnit.HOURS.toNanos(2));
+        Assertions.assertTrue(expired.isEmpty());
+    }
+}